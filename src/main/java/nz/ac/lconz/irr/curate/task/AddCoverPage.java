@@ -0,0 +1,307 @@
+package nz.ac.lconz.irr.curate.task;
+
+import nz.ac.lconz.irr.curate.task.cover.CoverPageCache;
+import nz.ac.lconz.irr.curate.task.cover.CoverPageRenderer;
+import nz.ac.lconz.irr.curate.task.format.ConversionWorkspace;
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.io.RandomAccessFile;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.util.PDFMergerUtility;
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.authorize.AuthorizeManager;
+import org.dspace.content.Bitstream;
+import org.dspace.content.Bundle;
+import org.dspace.content.DCDate;
+import org.dspace.content.DSpaceObject;
+import org.dspace.content.Item;
+import org.dspace.content.Metadatum;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.curate.AbstractCurationTask;
+import org.dspace.curate.Curator;
+import org.dspace.curate.Mutative;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Curation task that adds a cover page to the PDF files of an item. The PDF with the cover page replaces the original
+ * in the ORIGINAL bundle (keeping its name, format, policies and primary bitstream status), and the untouched original
+ * is moved into a separate bundle. PDFs that already have a namesake in that bundle are assumed to have their cover
+ * page already and are skipped.
+ *
+ * The cover page template is parsed once and shared by all task instances in the JVM; it is only re-read when the file
+ * changes. Originals are merged in a conversion workspace: PDFBox keeps the document data in scratch files there rather
+ * than on the heap, so the memory needed doesn't grow with the size of the PDF.
+ *
+ * If stamp.fields is set, the cover page is personalised with the values of these fields (eg title, authors, citation
+ * and handle), stamped onto the first page of the template. The personalised page is rendered once per item, cached
+ * and reused for all its PDFs; later runs render it again only if the stamped values, the template or the layout have
+ * changed (see CoverPageCache).
+ *
+ * Task options (config module addcover):
+ * - cover.filename: the PDF file with the cover page.
+ * - moveto.bundle: the bundle into which the originals are moved. Default: PRESERVATION
+ * - moveto.policy: keep|bundle Whether the moved originals keep their policies or get those of moveto.bundle instead.
+ *   Note that moveto.bundle usually has the item's policies, which may well be less restrictive than an embargo on the
+ *   original. Default: keep
+ * - scratch.dir: directory in which the workspaces are created. Default: java.io.tmpdir.
+ * - scratch.min-free: disk space (in MB) that must remain free in the scratch directory. Default: 1024.
+ * - stamp.fields: comma-separated list of fields to stamp onto the cover page, one text block per field (multiple
+ *   values are separated by semicolons), eg dc.title, dc.contributor.author, dc.identifier.citation, dc.identifier.uri
+ *   The first block is set in bold. If not set, the template is used as is.
+ * - stamp.x: distance of the text from the left edge of the page, in points. Default: 72.
+ * - stamp.top: distance of the first line from the bottom edge of the page, in points. Default: 600.
+ * - stamp.bottom: distance of the lowest possible line from the bottom edge of the page, in points. Longer text is set
+ *   in a smaller font, and cut off if it still doesn't fit. Default: 72.
+ * - stamp.width: width available for the text, in points. Default: 451.
+ * - stamp.font-size: font size in points. Default: 11.
+ * - stamp.min-font-size: font size down to which long text is shrunk, in points. Default: 8.
+ * - stamp.cache.dir: directory for the rendered cover pages. Default: [dspace.dir]/var/[task id]-covers
+ *
+ * @see nz.ac.lconz.irr.curate.CurateOnInstallation
+ */
+@Mutative
+public class AddCoverPage extends AbstractCurationTask {
+	private static final Logger log = Logger.getLogger(AddCoverPage.class);
+
+	private static final String PDF_MIMETYPE = "application/pdf";
+
+	// the parsed cover page template; guarded by the class lock, since PDFBox documents aren't thread-safe
+	private static PDDocument coverTemplate;
+	private static File coverTemplateFile;
+	private static long coverTemplateModified;
+
+	private File coverFile;
+	private String moveToBundle;
+	private BitstreamMover.PolicyMode moveToPolicy;
+	private File scratchDir;
+	private long minFreeBytes;
+	private String[] stampFields;
+	private CoverPageCache coverPageCache;
+
+	@Override
+	public void init(Curator curator, String taskId) throws IOException {
+		super.init(curator, taskId);
+		String coverFileName = taskProperty("cover.filename");
+		if (coverFileName == null || "".equals(coverFileName)) {
+			throw new IOException("No cover page configured for task " + taskId + " (cover.filename)");
+		}
+		coverFile = new File(coverFileName);
+
+		moveToBundle = taskProperty("moveto.bundle");
+		if (moveToBundle == null || "".equals(moveToBundle)) {
+			moveToBundle = "PRESERVATION";
+		}
+		moveToPolicy = BitstreamMover.parsePolicyMode(taskProperty("moveto.policy"), BitstreamMover.PolicyMode.KEEP);
+
+		String scratchDirProperty = taskProperty("scratch.dir");
+		if (scratchDirProperty == null || "".equals(scratchDirProperty)) {
+			scratchDirProperty = System.getProperty("java.io.tmpdir");
+		}
+		scratchDir = new File(scratchDirProperty);
+		minFreeBytes = taskLongProperty("scratch.min-free", 1024) * 1024 * 1024;
+
+		String stampFieldsProperty = taskProperty("stamp.fields");
+		if (stampFieldsProperty != null && !"".equals(stampFieldsProperty.trim())) {
+			stampFields = stampFieldsProperty.trim().split(",\\s*");
+			CoverPageRenderer renderer = new CoverPageRenderer(taskIntProperty("stamp.x", 72),
+					                                                  taskIntProperty("stamp.top", 600),
+					                                                  taskIntProperty("stamp.bottom", 72),
+					                                                  taskIntProperty("stamp.width", 451),
+					                                                  taskIntProperty("stamp.font-size", 11),
+					                                                  taskIntProperty("stamp.min-font-size", 8));
+			String cacheDirProperty = taskProperty("stamp.cache.dir");
+			if (cacheDirProperty == null || "".equals(cacheDirProperty)) {
+				cacheDirProperty = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + taskId + "-covers";
+			}
+			coverPageCache = new CoverPageCache(new File(cacheDirProperty), coverFile, renderer);
+		}
+	}
+
+	@Override
+	public int perform(DSpaceObject dso) throws IOException {
+		if (dso == null || dso.getType() != Constants.ITEM) {
+			return Curator.CURATE_SKIP;
+		}
+		Item item = (Item) dso;
+
+		int numCovered = 0;
+		// the item's personalised cover page, if any; loaded once it is needed and used for all of the item's PDFs
+		PDDocument itemCover = null;
+		// the originals are moved once all PDFs of the item have their cover page
+		BitstreamMover mover = new BitstreamMover(moveToPolicy);
+		try {
+			Context context = Curator.curationContext();
+			Bundle preservationBundle = null;
+			for (Bundle bundle : item.getBundles(Constants.CONTENT_BUNDLE_NAME)) {
+				for (Bitstream bitstream : bundle.getBitstreams()) {
+					if (!PDF_MIMETYPE.equals(bitstream.getFormat().getMIMEType())) {
+						continue;
+					}
+					if (preservationBundle == null) {
+						preservationBundle = findOrCreateBundle(item, moveToBundle);
+					}
+					if (preservationBundle.getBitstreamByName(bitstream.getName()) != null) {
+						log.debug("Bitstream id=" + bitstream.getID() + " of item id=" + item.getID() + " already has a cover page");
+						continue;
+					}
+					if (coverPageCache != null && itemCover == null) {
+						itemCover = PDDocument.load(coverPageCache.coverFor(item.getID(), stampText(item)));
+					}
+					addCoverPage(context, item, bundle, bitstream, itemCover);
+					mover.add(bitstream, bundle, preservationBundle);
+					numCovered++;
+				}
+			}
+			if (numCovered > 0) {
+				mover.apply(context);
+				context.commit();
+			}
+		} catch (SQLException | AuthorizeException | COSVisitorException e) {
+			String message = "Problem adding cover page to item id=" + item.getID() + ": " + e.getMessage();
+			log.error(message, e);
+			report(message);
+			setResult(message);
+			return Curator.CURATE_ERROR;
+		} finally {
+			if (itemCover != null) {
+				itemCover.close();
+			}
+		}
+
+		if (numCovered == 0) {
+			String message = "No PDF files without cover page in item id=" + item.getID();
+			report(message);
+			setResult(message);
+			return Curator.CURATE_SKIP;
+		}
+		String message = "Added cover page to " + numCovered + " PDF file(s) of item id=" + item.getID();
+		report(message);
+		setResult(message);
+		return Curator.CURATE_SUCCESS;
+	}
+
+	private static Bundle findOrCreateBundle(Item item, String name) throws SQLException, AuthorizeException {
+		Bundle[] bundles = item.getBundles(name);
+		if (bundles.length > 0) {
+			return bundles[0];
+		}
+		return item.createBundle(name);
+	}
+
+	private List<String> stampText(Item item) {
+		List<String> blocks = new ArrayList<>();
+		for (String field : stampFields) {
+			StringBuilder block = new StringBuilder();
+			for (Metadatum value : item.getMetadataByMetadataString(field)) {
+				if (value.value == null || "".equals(value.value.trim())) {
+					continue;
+				}
+				if (block.length() > 0) {
+					block.append("; ");
+				}
+				block.append(value.value.trim());
+			}
+			if (block.length() > 0) {
+				blocks.add(block.toString());
+			}
+		}
+		return blocks;
+	}
+
+	/**
+	 * @param itemCover the personalised cover page of the item, or null to use the shared template.
+	 */
+	private void addCoverPage(Context context, Item item, Bundle bundle, Bitstream original, PDDocument itemCover)
+			throws IOException, SQLException, AuthorizeException, COSVisitorException {
+		// room for a copy of the original, PDFBox scratch data and the merged result
+		ConversionWorkspace workspace = ConversionWorkspace.create(scratchDir, original.getSize() * 3, minFreeBytes, 0);
+		try {
+			File originalFile = workspace.newFile("original.pdf");
+			try (InputStream in = original.retrieve()) {
+				FileUtils.copyInputStreamToFile(in, originalFile);
+			}
+			File mergedFile = workspace.newFile("merged.pdf");
+			merge(workspace, itemCover, originalFile, mergedFile);
+
+			Bitstream covered;
+			try (InputStream in = new FileInputStream(mergedFile)) {
+				covered = bundle.createBitstream(in);
+			}
+			covered.setName(original.getName());
+			covered.setFormat(original.getFormat());
+			covered.setDescription(original.getDescription());
+			covered.setSource("Written by curation task " + taskId + " on " + DCDate.getCurrent() + " (GMT).");
+			covered.update();
+			// createBitstream gave it the bundle's policies; it should have exactly those of the original
+			AuthorizeManager.removeAllPolicies(context, covered);
+			AuthorizeManager.inheritPolicies(context, original, covered);
+			if (bundle.getPrimaryBitstreamID() == original.getID()) {
+				bundle.setPrimaryBitstreamID(covered.getID());
+			}
+			bundle.update();
+			log.info("Added cover page to bitstream id=" + original.getID() + " of item id=" + item.getID() + ", new bitstream id=" + covered.getID());
+		} finally {
+			workspace.close();
+		}
+	}
+
+	private void merge(ConversionWorkspace workspace, PDDocument itemCover, File originalFile, File mergedFile) throws IOException, COSVisitorException {
+		PDFMergerUtility merger = new PDFMergerUtility();
+		RandomAccessFile mergedScratch = new RandomAccessFile(workspace.newFile("merged.scratch"), "rw");
+		RandomAccessFile originalScratch = new RandomAccessFile(workspace.newFile("original.scratch"), "rw");
+		PDDocument merged = null;
+		PDDocument originalDocument = null;
+		try {
+			merged = new PDDocument(mergedScratch);
+			if (itemCover != null) {
+				merger.appendDocument(merged, itemCover);
+			} else {
+				synchronized (AddCoverPage.class) {
+					merger.appendDocument(merged, getCoverTemplate(coverFile));
+				}
+			}
+			originalDocument = PDDocument.loadNonSeq(originalFile, originalScratch);
+			merger.appendDocument(merged, originalDocument);
+			merged.save(mergedFile);
+		} finally {
+			if (originalDocument != null) {
+				originalDocument.close();
+			}
+			if (merged != null) {
+				merged.close();
+			}
+			originalScratch.close();
+			mergedScratch.close();
+		}
+	}
+
+	/**
+	 * @return the parsed cover page template, re-reading it if the file has changed. Callers must hold the class lock
+	 * while using the template.
+	 */
+	private static PDDocument getCoverTemplate(File file) throws IOException {
+		if (coverTemplate != null && file.equals(coverTemplateFile) && file.lastModified() == coverTemplateModified) {
+			return coverTemplate;
+		}
+		if (coverTemplate != null) {
+			coverTemplate.close();
+			coverTemplate = null;
+		}
+		log.info("Reading cover page template " + file);
+		long modified = file.lastModified();
+		coverTemplate = PDDocument.load(file);
+		coverTemplateFile = file;
+		coverTemplateModified = modified;
+		return coverTemplate;
+	}
+}
@@ -3,8 +3,6 @@ package nz.ac.lconz.irr.curate.task;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.dspace.authorize.AuthorizeException;
-import org.dspace.authorize.AuthorizeManager;
-import org.dspace.authorize.ResourcePolicy;
 import org.dspace.content.*;
 import org.dspace.core.ConfigurationManager;
 import org.dspace.core.Constants;
@@ -116,8 +114,9 @@ public class AnnotateWithBitstreamFormats extends AbstractCurationTask {
 	}
 
 	private List<String> getBitstreamFormats(Context c, Item item) throws SQLException, AuthorizeException, IOException {
+		PolicySnapshot policies = PolicySnapshot.load(c, item);
 		// return empty list if item isn't public
-		if (!anonymousCanRead(c, item)) {
+		if (!anonymousCanRead(policies, item)) {
 			return Collections.emptyList();
 		}
 
@@ -127,7 +126,7 @@ public class AnnotateWithBitstreamFormats extends AbstractCurationTask {
 
 		for (Bundle bundle : bundles)
 		{
-			if (!anonymousCanRead(c, bundle))
+			if (!anonymousCanRead(policies, bundle))
 			{
 				// skip non-public bundle
 				continue;
@@ -138,7 +137,7 @@ public class AnnotateWithBitstreamFormats extends AbstractCurationTask {
 			Bitstream[] bitstreams = bundle.getBitstreams();
 			for (Bitstream bitstream : bitstreams)
 			{
-				if (!anonymousCanRead(c, bitstream))
+				if (!anonymousCanRead(policies, bitstream))
 				{
 					// skip non-public bitstream
 					continue;
@@ -163,8 +162,8 @@ public class AnnotateWithBitstreamFormats extends AbstractCurationTask {
 		return mimetypes;
 	}
 
-	private boolean anonymousCanRead(Context c, DSpaceObject dso) throws SQLException {
-		ResourcePolicy anonymousReadPolicy = AuthorizeManager.findByTypeIdGroupAction(c, dso.getType(), dso.getID(), Group.ANONYMOUS_ID, Constants.READ, -1);
+	private boolean anonymousCanRead(PolicySnapshot policies, DSpaceObject dso) {
+		PolicySnapshot.Policy anonymousReadPolicy = policies.findByGroupAction(dso, Group.ANONYMOUS_ID, Constants.READ);
 		return anonymousReadPolicy != null && anonymousReadPolicy.isDateValid();
 	}
 }
@@ -0,0 +1,113 @@
+package nz.ac.lconz.irr.curate.task;
+
+import org.apache.log4j.Logger;
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.authorize.AuthorizeManager;
+import org.dspace.authorize.ResourcePolicy;
+import org.dspace.content.Bitstream;
+import org.dspace.content.Bundle;
+import org.dspace.core.Context;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Moves bitstreams between bundles by reference: only the bundle membership (and, optionally, the policies) of a
+ * bitstream change, its content is never read or written. A bitstream is added to the target bundle before it is
+ * removed from the source bundle, so it is never orphaned (DSpace deletes bitstreams that are removed from their last
+ * bundle).
+ *
+ * Moves are collected first and then applied together, updating each affected bundle once; the caller commits the
+ * context afterwards, so that all moves of an item end up in the same transaction.
+ */
+public class BitstreamMover {
+	private static final Logger log = Logger.getLogger(BitstreamMover.class);
+
+	public enum PolicyMode {
+		/** the bitstream keeps its own policies, and only those. */
+		KEEP,
+		/** the bitstream's policies are replaced with those of the target bundle. */
+		TARGET_BUNDLE
+	}
+
+	private static class Move {
+		final Bitstream bitstream;
+		final Bundle from;
+		final Bundle to;
+
+		Move(Bitstream bitstream, Bundle from, Bundle to) {
+			this.bitstream = bitstream;
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	private final PolicyMode policyMode;
+	private final List<Move> pending = new ArrayList<>();
+
+	public BitstreamMover(PolicyMode policyMode) {
+		this.policyMode = policyMode;
+	}
+
+	/**
+	 * @param value the configured policy mode, keep or bundle (case-insensitive).
+	 * @param defaultMode the mode to use if no valid value is configured.
+	 */
+	public static PolicyMode parsePolicyMode(String value, PolicyMode defaultMode) {
+		if ("keep".equalsIgnoreCase(value)) {
+			return PolicyMode.KEEP;
+		} else if ("bundle".equalsIgnoreCase(value)) {
+			return PolicyMode.TARGET_BUNDLE;
+		}
+		if (value != null && !"".equals(value)) {
+			log.warn("Unknown policy mode " + value + ", using " + defaultMode);
+		}
+		return defaultMode;
+	}
+
+	/**
+	 * Schedule a move; nothing changes until {@link #apply(org.dspace.core.Context)} is called.
+	 */
+	public void add(Bitstream bitstream, Bundle from, Bundle to) {
+		pending.add(new Move(bitstream, from, to));
+	}
+
+	public boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * Apply all scheduled moves. If a moved bitstream was the primary bitstream of its source bundle, the source
+	 * bundle is left without a primary bitstream.
+	 *
+	 * @return the number of bitstreams moved.
+	 */
+	public int apply(Context context) throws SQLException, AuthorizeException, IOException {
+		Set<Bundle> changed = new LinkedHashSet<>();
+		for (Move move : pending) {
+			// addBitstream adds the target bundle's policies to the bitstream's own
+			List<ResourcePolicy> ownPolicies = policyMode == PolicyMode.KEEP ? AuthorizeManager.getPolicies(context, move.bitstream) : null;
+			move.to.addBitstream(move.bitstream);
+			move.from.removeBitstream(move.bitstream);
+			AuthorizeManager.removeAllPolicies(context, move.bitstream);
+			if (policyMode == PolicyMode.KEEP) {
+				AuthorizeManager.addPolicies(context, ownPolicies, move.bitstream);
+			} else {
+				AuthorizeManager.inheritPolicies(context, move.to, move.bitstream);
+			}
+			changed.add(move.from);
+			changed.add(move.to);
+			log.debug("Moved bitstream id=" + move.bitstream.getID() + " from bundle id=" + move.from.getID() + " to bundle id=" + move.to.getID());
+		}
+		for (Bundle bundle : changed) {
+			bundle.update();
+		}
+		int moved = pending.size();
+		pending.clear();
+		return moved;
+	}
+}
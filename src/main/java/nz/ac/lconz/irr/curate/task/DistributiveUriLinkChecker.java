@@ -1,5 +1,15 @@
 package nz.ac.lconz.irr.curate.task;
 
+import nz.ac.lconz.irr.curate.task.linkcheck.DnsCache;
+import nz.ac.lconz.irr.curate.task.linkcheck.HostHealth;
+import nz.ac.lconz.irr.curate.task.linkcheck.HostScheduler;
+import nz.ac.lconz.irr.curate.task.linkcheck.HttpProber;
+import nz.ac.lconz.irr.curate.task.linkcheck.LinkCheckEngine;
+import nz.ac.lconz.irr.curate.task.linkcheck.LinkReportWriter;
+import nz.ac.lconz.irr.curate.task.linkcheck.LinkResult;
+import nz.ac.lconz.irr.curate.task.linkcheck.LinkStatusStore;
+import nz.ac.lconz.irr.curate.task.linkcheck.LinkSummary;
+import nz.ac.lconz.irr.curate.task.linkcheck.UrlNormaliser;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 import org.dspace.content.DSpaceObject;
@@ -10,9 +20,16 @@ import org.dspace.curate.AbstractCurationTask;
 import org.dspace.curate.Curator;
 import org.dspace.curate.Distributive;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -20,14 +37,96 @@ import java.util.List;
 import java.util.Map;
 
 /**
+ * Curation task that checks the links in the *.*.uri fields of items. Links are checked concurrently by a
+ * LinkCheckEngine, each distinct URL once per run; the per-item reports still come out in item order.
+ *
+ * Results are kept across runs in a LinkStatusStore, and a run only rechecks links whose stored result is stale. Stale
+ * links that were ok are rechecked with a conditional request if the server sent an ETag or Last-Modified header.
+ *
+ * Links are checked with an HttpProber: HEAD first, falling back to a GET for the first byte, with time limits and
+ * connection reuse. Redirects are followed; a link is ok if the end of the redirect chain is.
+ *
+ * Requests go through a HostScheduler, which limits the number of concurrent requests and the request rate per host
+ * and backs off when a host answers 429 or 503. Host names are resolved once per run, and once a host has failed to
+ * respond several times in a row its remaining links are reported as "host down" without being requested. Throttled
+ * links are reported as deferred in their item's report and checked again at the end of the run; their final results
+ * are reported separately.
+ *
+ * URLs are normalised (see UrlNormaliser) before they are compared, so spelling variants of the same URL are checked
+ * once. In two-phase mode, the links of all items in scope are first written to a spool file while the set of
+ * distinct URLs is collected; that set is then checked in one go, which lets the scheduler spread the requests over
+ * all hosts from the start, and finally the spool file is read back to report the results item by item. This needs
+ * memory for the distinct URLs only; the reports come out at the end of the run instead of as the run progresses.
+ *
+ * Besides the task report, results can be streamed to a file (CSV or newline-delimited JSON, see LinkReportWriter)
+ * with one record per link occurrence, for triage in a spreadsheet or with scripts; the task report then only has a
+ * summary of the results by host and status class unless per-item reports are switched on explicitly.
+ *
+ * Task options:
+ * - selflinks.check: true|false Whether to check links to this repository's own handles. Default: false.
+ * - concurrency: maximum number of links checked at the same time. Default: 8.
+ * - pending.items: maximum number of items whose links are being checked at the same time. Default: 1000.
+ * - two-phase: true|false Whether to collect all links in scope before checking any of them. Default: false.
+ * - cache.enabled: true|false Whether to keep results across runs. Default: true.
+ * - cache.file: file in which results are kept. Default: [dspace.dir]/var/[task id]-links.tsv
+ * - cache.ttl.ok: hours after which a successful result is rechecked. Default: 720 (30 days).
+ * - cache.ttl.failed: hours after which a failed result is rechecked. Default: 24.
+ * - timeout.connect: seconds to wait for a connection. Default: 10.
+ * - timeout.read: seconds to wait for response data. Default: 20.
+ * - redirects.max: maximum number of redirects to follow per link. Default: 5.
+ * - host.concurrency: maximum number of links checked at the same time per host. Default: 2.
+ * - host.spacing: minimum milliseconds between the starts of two requests to the same host. Default: 200.
+ * - host.max-spacing: maximum milliseconds between requests to the same host when backing off. Default: 60000.
+ * - retries.max: how often a throttled link is checked again at the end of the run. Default: 2.
+ * - retry-after.max: maximum seconds to wait when a host sends a Retry-After header. Default: 300.
+ * - host.max-failures: number of consecutive connection errors after which a host is considered down for the rest of
+ *   the run; 0 to keep trying. Default: 5.
+ * - results.file: file to write the results to; replaced on each run. Default: none.
+ * - results.format: csv|ndjson Format of the results file. Default: csv.
+ * - report.items: true|false Whether to report the results of each item. Default: true, false if results.file is set.
+ * - summary.max-hosts: maximum number of hosts listed separately in the summary. Default: 500.
+ *
  * @author Andrea Schweer schweer@waikato.ac.nz for the UoW Institutional Research Repositories
  */
 @Distributive
-public class DistributiveUriLinkChecker extends AbstractCurationTask {
-	private Map<String, Integer> statusCache;
+public class DistributiveUriLinkChecker extends AbstractCurationTask implements LinkCheckEngine.UrlChecker, LinkCheckEngine.ResultListener {
+	private LinkCheckEngine engine;
+	private int concurrency;
+	private int maxPendingItems;
+	private File statusStoreFile;
+	private long okTtlMillis;
+	private long failedTtlMillis;
+	private LinkStatusStore statusStore;
+	private int connectTimeoutMillis;
+	private int readTimeoutMillis;
+	private int maxRedirects;
+	private HttpProber prober;
+	private int hostMaxFailures;
+	private HostHealth hostHealth;
+	private DnsCache dnsCache;
+	private int hostConcurrency;
+	private long hostSpacingMillis;
+	private long hostMaxSpacingMillis;
+	private int maxRetries;
+	private long maxRetryAfterMillis;
+	private HostScheduler scheduler;
 	private int numChecked;
+	private int numCached;
 	private int numOk;
 	private int numNotOk;
+	private Map<String, List<String[]>> deferredOccurrences;
+	private StringBuilder deferredResults;
+	private boolean twoPhase;
+	private File spoolFile;
+	private Writer spoolWriter;
+	// normalised URL -> the URL as first spooled, which is the one requested
+	private Map<String, String> spooledUrls;
+	private File resultsFile;
+	private LinkReportWriter.Format resultsFormat;
+	private LinkReportWriter resultsWriter;
+	private boolean reportItems;
+	private int summaryMaxHosts;
+	private LinkSummary summary;
 
 	private boolean checkSelfLinks;
 	private String handlePrefix;
@@ -42,8 +141,35 @@ public class DistributiveUriLinkChecker extends AbstractCurationTask {
 		if (!checkSelfLinks) {
 			handlePrefix = ConfigurationManager.getProperty("handle.canonical.prefix") + ConfigurationManager.getProperty("handle.prefix");
 		}
-		statusCache = new HashMap<>();
+		concurrency = taskIntProperty("concurrency", 8);
+		maxPendingItems = taskIntProperty("pending.items", 1000);
+		twoPhase = taskBooleanProperty("two-phase", false);
+		String resultsFileProperty = taskProperty("results.file");
+		if (resultsFileProperty != null && !"".equals(resultsFileProperty)) {
+			resultsFile = new File(resultsFileProperty);
+		}
+		resultsFormat = LinkReportWriter.parseFormat(taskProperty("results.format"), LinkReportWriter.Format.CSV);
+		reportItems = taskBooleanProperty("report.items", resultsFile == null);
+		summaryMaxHosts = taskIntProperty("summary.max-hosts", 500);
+		if (taskBooleanProperty("cache.enabled", true)) {
+			String storeFileProperty = taskProperty("cache.file");
+			if (storeFileProperty == null || "".equals(storeFileProperty)) {
+				storeFileProperty = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + taskId + "-links.tsv";
+			}
+			statusStoreFile = new File(storeFileProperty);
+			okTtlMillis = taskLongProperty("cache.ttl.ok", 720) * 60 * 60 * 1000;
+			failedTtlMillis = taskLongProperty("cache.ttl.failed", 24) * 60 * 60 * 1000;
+		}
 		userAgent = String.format("DSpace link checker for %s", ConfigurationManager.getProperty("dspace.url"));
+		connectTimeoutMillis = taskIntProperty("timeout.connect", 10) * 1000;
+		readTimeoutMillis = taskIntProperty("timeout.read", 20) * 1000;
+		maxRedirects = taskIntProperty("redirects.max", 5);
+		hostConcurrency = taskIntProperty("host.concurrency", 2);
+		hostSpacingMillis = taskLongProperty("host.spacing", 200);
+		hostMaxSpacingMillis = taskLongProperty("host.max-spacing", 60000);
+		maxRetries = taskIntProperty("retries.max", 2);
+		maxRetryAfterMillis = taskLongProperty("retry-after.max", 300) * 1000;
+		hostMaxFailures = taskIntProperty("host.max-failures", 5);
 	}
 
 	@Override
@@ -51,12 +177,77 @@ public class DistributiveUriLinkChecker extends AbstractCurationTask {
 		numChecked = 0;
 		numOk = 0;
 		numNotOk = 0;
+		numCached = 0;
+		deferredOccurrences = new HashMap<>();
+		deferredResults = new StringBuilder();
+		summary = new LinkSummary(summaryMaxHosts);
 
-		distribute(dso);
+		if (statusStoreFile != null) {
+			statusStore = new LinkStatusStore(statusStoreFile, okTtlMillis, failedTtlMillis);
+		}
+		hostHealth = new HostHealth(hostMaxFailures);
+		dnsCache = new DnsCache();
+		prober = new HttpProber(userAgent, connectTimeoutMillis, readTimeoutMillis, maxRedirects, hostHealth, dnsCache);
+		scheduler = new HostScheduler(this, concurrency, hostConcurrency, hostSpacingMillis, hostMaxSpacingMillis, maxRetries, maxRetryAfterMillis);
+		engine = new LinkCheckEngine(this, this, scheduler, maxPendingItems);
+		try {
+			if (resultsFile != null) {
+				resultsWriter = new LinkReportWriter(resultsFile, resultsFormat);
+			}
+			if (twoPhase) {
+				spoolFile = File.createTempFile(taskId + "-links", ".tsv");
+				spoolWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spoolFile), "UTF-8"));
+				spooledUrls = new HashMap<>();
+			}
+			distribute(dso);
+			if (twoPhase) {
+				spoolWriter.close();
+				spoolWriter = null;
+				checkSpooled();
+			}
+			engine.finish();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while checking links", e);
+		} finally {
+			if (spoolWriter != null) {
+				spoolWriter.close();
+				spoolWriter = null;
+			}
+			if (spoolFile != null) {
+				if (!spoolFile.delete()) {
+					log.warn("Cannot delete spool file " + spoolFile);
+				}
+				spoolFile = null;
+			}
+			spooledUrls = null;
+			if (resultsWriter != null) {
+				resultsWriter.close();
+				resultsWriter = null;
+			}
+			if (statusStore != null) {
+				statusStore.save();
+			}
+		}
 
-		String message = String.format("Checked %d links; %d were ok and %d weren't.", numChecked, numOk, numNotOk);
+		if (deferredResults.length() > 0) {
+			report("Throttled links, checked again at the end of the run:\n" + deferredResults);
+		}
+		if (!summary.isEmpty()) {
+			report("Links by host:\n" + summary.format());
+		}
+		if (resultsFile != null) {
+			report("Results written to " + resultsFile);
+		}
+		String message = String.format("Checked %d links (%d distinct; %d answered from fresh results of earlier runs); %d were ok and %d weren't.",
+				                              numChecked, engine.getNumDistinctUrls(), numCached, numOk, numNotOk);
 		report(message);
 		setResult(message);
+		log.info(String.format("%s: %d HTTP requests, %d response bytes read, %.1fs spent waiting for responses, %d timeouts",
+				                      taskId, prober.getNumRequests(), prober.getBytesRead(), prober.getRequestMillis() / 1000.0, prober.getNumTimeouts()));
+		log.info(String.format("%s: %d throttled responses, %d retries", taskId, scheduler.getNumThrottled(), scheduler.getNumRetried()));
+		log.info(String.format("%s: %d DNS lookups, %d unresolvable hosts, %d hosts down",
+				                      taskId, dnsCache.getNumLookups(), dnsCache.getNumUnresolvable(), hostHealth.getNumHostsDown()));
 
 		if (numChecked == 0) {
 			return Curator.CURATE_SKIP;
@@ -69,94 +260,237 @@ public class DistributiveUriLinkChecker extends AbstractCurationTask {
 
 	@Override
 	protected void performItem(Item item) throws SQLException, IOException {
-		List<String> urls = getURLs(item, checkSelfLinks, handlePrefix);
-		StringBuilder itemResults = new StringBuilder();
-		itemResults.append("Item: ").append(getItemHandle(item)).append("\n");
+		if (spoolWriter != null) {
+			spool(getItemHandle(item), getLinks(item, checkSelfLinks, handlePrefix));
+			return;
+		}
+		List<Metadatum> links = getLinks(item, checkSelfLinks, handlePrefix);
+		List<String> urls = new ArrayList<>(links.size());
+		List<String> fields = new ArrayList<>(links.size());
+		for (Metadatum link : links) {
+			urls.add(link.value);
+			fields.add(getFieldName(link));
+		}
+		try {
+			engine.submit(getItemHandle(item), urls, fields);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while checking links", e);
+		}
+	}
 
-		for (String url : urls) {
-			boolean success = checkURL(url, itemResults, statusCache);
-			if (success) {
+	/**
+	 * Write the links of an item to the spool file, one line per link (item label, field, URL); an item without links
+	 * gets a line with just its label.
+	 */
+	private void spool(String itemLabel, List<Metadatum> links) throws IOException {
+		if (links.isEmpty()) {
+			spoolWriter.write(itemLabel + "\n");
+			return;
+		}
+		for (Metadatum link : links) {
+			String url = link.value.replaceAll("[\t\r\n]", " ");
+			spoolWriter.write(itemLabel + "\t" + getFieldName(link) + "\t" + url + "\n");
+			String normalised = UrlNormaliser.normalise(url);
+			if (!spooledUrls.containsKey(normalised)) {
+				spooledUrls.put(normalised, url.trim());
+			}
+		}
+	}
+
+	/**
+	 * Check the distinct spooled URLs, then read the spool file back and report the results item by item.
+	 */
+	private void checkSpooled() throws IOException, InterruptedException {
+		log.info(taskId + ": checking " + spooledUrls.size() + " distinct links");
+		Map<String, LinkResult> results = engine.checkAll(spooledUrls.values());
+		spooledUrls = null;
+
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(spoolFile), "UTF-8"))) {
+			String itemLabel = null;
+			List<String> urls = new ArrayList<>();
+			List<String> fields = new ArrayList<>();
+			List<LinkResult> itemResults = new ArrayList<>();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", 3);
+				if (itemLabel != null && !itemLabel.equals(parts[0])) {
+					itemChecked(itemLabel, urls, fields, itemResults);
+					urls = new ArrayList<>();
+					fields = new ArrayList<>();
+					itemResults = new ArrayList<>();
+				}
+				itemLabel = parts[0];
+				if (parts.length == 3) {
+					urls.add(parts[2]);
+					fields.add(parts[1]);
+					itemResults.add(results.get(UrlNormaliser.normalise(parts[2])));
+				}
+			}
+			if (itemLabel != null) {
+				itemChecked(itemLabel, urls, fields, itemResults);
+			}
+		}
+	}
+
+	/**
+	 * Report the results of an item; called by the engine in item order.
+	 */
+	@Override
+	public void itemChecked(String itemLabel, List<String> urls, List<String> fields, List<LinkResult> results) throws IOException {
+		StringBuilder itemResults = new StringBuilder();
+		itemResults.append("Item: ").append(itemLabel).append("\n");
+		for (int i = 0; i < urls.size(); i++) {
+			String httpStatus = results.get(i).getStatusLabel();
+			if (results.get(i).isCached()) {
+				numCached++;
+			}
+			String redirect = "";
+			if (results.get(i).getFinalUrl() != null) {
+				redirect = " (via " + results.get(i).getFinalUrl() + ")";
+			}
+			if (results.get(i).isDeferred()) {
+				// counted once the final result is in
+				itemResults.append(" - ").append(urls.get(i)).append(" = ").append(httpStatus).append(" - DEFERRED\n");
+				String url = UrlNormaliser.normalise(urls.get(i));
+				List<String[]> occurrences = deferredOccurrences.get(url);
+				if (occurrences == null) {
+					occurrences = new ArrayList<>();
+					deferredOccurrences.put(url, occurrences);
+				}
+				occurrences.add(new String[] {itemLabel, fields.get(i), urls.get(i)});
+			} else if (results.get(i).isOk()) {
+				itemResults.append(" - ").append(urls.get(i)).append(" = ").append(httpStatus).append(redirect).append(" - OK\n");
+				recordResult(itemLabel, fields.get(i), urls.get(i), results.get(i));
 				numOk++;
 			} else {
+				itemResults.append(" - ").append(urls.get(i)).append(" = ").append(httpStatus).append(redirect).append(" - FAILED\n");
+				recordResult(itemLabel, fields.get(i), urls.get(i), results.get(i));
 				numNotOk++;
 			}
 			numChecked++;
 		}
-		report(itemResults.toString());
+		if (reportItems) {
+			report(itemResults.toString());
+		}
 	}
 
-
 	/**
-	 * Check the URL and perform appropriate reporting
-	 *
-	 * @param url The URL to check
-	 * @return If the URL was OK or not
+	 * Report the final result of a link that was throttled earlier in the run; called by the engine at the end.
 	 */
-	protected boolean checkURL(String url, StringBuilder results, Map<String, Integer> statusCache)
-	{
-		// Link check the URL
-		int httpStatus;
-		if (statusCache != null && statusCache.containsKey(url)) {
-			httpStatus = statusCache.get(url);
+	@Override
+	public void deferredChecked(String url, LinkResult result) throws IOException {
+		List<String[]> occurrences = deferredOccurrences.remove(url);
+		int count = 0;
+		if (occurrences != null) {
+			for (String[] occurrence : occurrences) {
+				recordResult(occurrence[0], occurrence[1], occurrence[2], result);
+			}
+			count = occurrences.size();
+		}
+		String redirect = result.getFinalUrl() != null ? " (via " + result.getFinalUrl() + ")" : "";
+		deferredResults.append(" - ").append(url).append(" = ").append(result.getStatusLabel()).append(redirect);
+		if (result.isOk()) {
+			deferredResults.append(" - OK\n");
+			numOk += count;
 		} else {
-			httpStatus = getResponseStatus(url);
-			if (statusCache != null) {
-				statusCache.put(url, httpStatus);
+			deferredResults.append(" - FAILED\n");
+			numNotOk += count;
+		}
+	}
+
+	/**
+	 * Add the final result of a link occurrence to the summary and the results file.
+	 */
+	private void recordResult(String itemLabel, String field, String url, LinkResult result) throws IOException {
+		summary.add(url, result);
+		if (resultsWriter != null) {
+			resultsWriter.write(itemLabel, field, url, result);
+		}
+	}
+
+	/**
+	 * @return the stored result for the URL if it is still fresh, otherwise null.
+	 */
+	@Override
+	public LinkResult cached(String url) {
+		if (statusStore != null) {
+			LinkStatusStore.Entry previous = statusStore.get(url);
+			if (statusStore.isFresh(previous, System.currentTimeMillis())) {
+				return LinkResult.fromStore(previous);
 			}
 		}
+		return null;
+	}
 
-		if ((httpStatus >= 200) && (httpStatus < 300))
-		{
-			results.append(" - ").append(url).append(" = ").append(httpStatus).append(" - OK\n");
-			return true;
+	/**
+	 * Check a single URL; called concurrently by the scheduler's worker threads.
+	 */
+	@Override
+	public LinkResult check(String url) {
+		// the engine passes the URL as submitted; the store is keyed by the normalised form
+		String key = UrlNormaliser.normalise(url);
+		LinkStatusStore.Entry previous = statusStore != null ? statusStore.get(key) : null;
+
+		LinkResult result = getResponse(url, previous != null && previous.isOk() ? previous : null);
+		if (result.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+			// unchanged since the last check, so still ok
+			result = new LinkResult(previous.getStatus(), result.getLatencyMillis(), result.getCheckedAt(),
+					                       result.getEtag() != null ? result.getEtag() : previous.getEtag(),
+					                       result.getLastModified() != null ? result.getLastModified() : previous.getLastModified(),
+					                       result.getFinalUrl() != null ? result.getFinalUrl() : previous.getFinalUrl(),
+					                       result.getRedirects(), false);
 		}
-		else
-		{
-			results.append(" - ").append(url).append(" = ").append(httpStatus).append(" - FAILED\n");
-			return false;
+		if (statusStore != null && !result.isThrottled() && result.getStatus() != LinkResult.STATUS_HOST_DOWN) {
+			// a throttled response or a skipped request says nothing about the link, so don't let it stop the next run
+			// from checking it
+			statusStore.put(key, result.toStoreEntry());
 		}
+		return result;
 	}
 
 	/**
-	 * Get the response code for a URL.  If something goes wrong opening the URL, a
+	 * Get the response for a URL, following redirects.  If something goes wrong opening the URL, a
 	 * response code of 0 is returned.
 	 *
 	 * @param url The url to open
-	 * @return The HTTP response code (e.g. 200 / 301 / 404 / 500) or 0 if an exception was encountered
+	 * @param previous the previous successful result for the url, used to make a conditional request; may be null
+	 * @return The result with the HTTP response code (e.g. 200 / 304 / 404 / 500), 0 if an exception was encountered,
+	 * or a negative code if the host doesn't resolve or is down
 	 */
-	protected int getResponseStatus(String url)
+	protected LinkResult getResponse(String url, LinkStatusStore.Entry previous)
 	{
-		try
-		{
-			URL theURL = new URL(url);
-			HttpURLConnection connection = (HttpURLConnection)theURL.openConnection();
-			connection.setRequestProperty("User-Agent", userAgent);
-			int code = connection.getResponseCode();
-			connection.disconnect();
-
-			return code;
+		return prober.probe(url, previous);
+	}
 
+	protected List<String> getURLs(Item item, boolean includeSelfLinks, String handlePrefix) {
+		List<Metadatum> links = getLinks(item, includeSelfLinks, handlePrefix);
+		ArrayList<String> theURLs = new ArrayList<>(links.size());
+		for (Metadatum link : links) {
+			theURLs.add(link.value);
 		}
-		catch (IOException | RuntimeException e)
-		{
-			// Must be a bad URL
-			log.info("Encountered exception while trying to check url (" + url + "): " + e.getMessage());
-			return 0;
-		}
+		return theURLs;
 	}
 
-	protected List<String> getURLs(Item item, boolean includeSelfLinks, String handlePrefix) {
+	/**
+	 * @return the metadata values holding the links to check, with the fields they are in.
+	 */
+	protected List<Metadatum> getLinks(Item item, boolean includeSelfLinks, String handlePrefix) {
 		// Get URIs from anyschema.anyelement.uri.*
 		Metadatum[] urls = item.getMetadata(Item.ANY, Item.ANY, "uri", Item.ANY);
-		ArrayList<String> theURLs = new ArrayList<>();
+		ArrayList<Metadatum> links = new ArrayList<>();
 		for (Metadatum url : urls)
 		{
 			// unless we include self links, only add those URLs NOT starting with the handle prefix
 			if (includeSelfLinks || !StringUtils.startsWithIgnoreCase(url.value, handlePrefix)) {
-				theURLs.add(url.value);
+				links.add(url);
 			}
 		}
-		return theURLs;
+		return links;
+	}
+
+	private static String getFieldName(Metadatum value) {
+		return value.schema + "." + value.element + (value.qualifier != null ? "." + value.qualifier : "");
 	}
 
 	/**
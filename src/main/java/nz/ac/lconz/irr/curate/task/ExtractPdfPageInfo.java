@@ -0,0 +1,326 @@
+package nz.ac.lconz.irr.curate.task;
+
+import org.apache.log4j.Logger;
+import org.apache.pdfbox.io.RandomAccessFile;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDPageLabels;
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Bitstream;
+import org.dspace.content.Bundle;
+import org.dspace.content.DSpaceObject;
+import org.dspace.content.Item;
+import org.dspace.content.Metadatum;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.curate.AbstractCurationTask;
+import org.dspace.curate.Curator;
+import org.dspace.curate.Distributive;
+import org.dspace.curate.Mutative;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Curation task that reads the number of pages and the page labels of each item's primary PDF and records them in the
+ * fields that the citeproc crosswalk uses for number-of-pages and page. The PDF is parsed with PDFBox's non-sequential
+ * parser, which buffers the file in a scratch file rather than in memory and only reads the objects it needs.
+ *
+ * The start and end page are only recorded if the PDF has page labels (eg a journal article labelled 123-140); without
+ * labels, physical page numbers say nothing about the page range in the original publication.
+ *
+ * The checksum of the bitstream each item was last processed with is kept in a state file, and items whose primary
+ * PDF hasn't changed since are skipped. Changes are committed in batches; the entries of each batch are appended to the
+ * state file (later lines override earlier ones), and the file is compacted once at the end of the run.
+ *
+ * Task options:
+ * - field.pages: field for the number of pages. Default: otago.bitstream.pages
+ * - field.startpage: field for the label of the first page. Default: otago.bitstream.startpage
+ * - field.endpage: field for the label of the last page. Default: otago.bitstream.endpage
+ * - force: true|false Whether to overwrite existing values in these fields. Default: false.
+ * - state.file: file in which the processed checksums are kept. Default: [dspace.dir]/var/[task id].state
+ * - commit.batch-size: number of changed items after which changes are committed. Default: 100.
+ * - scratch.dir: directory for PDFBox scratch files. Default: java.io.tmpdir.
+ */
+@Distributive
+@Mutative
+public class ExtractPdfPageInfo extends AbstractCurationTask {
+	private static final Logger log = Logger.getLogger(ExtractPdfPageInfo.class);
+
+	private static final String PDF_MIMETYPE = "application/pdf";
+
+	private String[] pagesField;
+	private String[] startPageField;
+	private String[] endPageField;
+	private boolean force;
+	private File stateFile;
+	private int batchSize;
+	private File scratchDir;
+
+	// item id -> checksum of the bitstream it was last processed with
+	private Map<Integer, String> state;
+	// entries for items changed since the last commit; only written to the state file once committed
+	private Map<Integer, String> pendingState;
+	// whether entries have been appended to the state file since it was last compacted
+	private boolean stateAppended;
+
+	private int numProcessed;
+	private int numUnchanged;
+	private int numUpdated;
+	private int numErrors;
+
+	@Override
+	public void init(Curator curator, String taskId) throws IOException {
+		super.init(curator, taskId);
+		pagesField = parseField("field.pages", "otago.bitstream.pages");
+		startPageField = parseField("field.startpage", "otago.bitstream.startpage");
+		endPageField = parseField("field.endpage", "otago.bitstream.endpage");
+		force = taskBooleanProperty("force", false);
+		batchSize = Math.max(1, taskIntProperty("commit.batch-size", 100));
+
+		String stateFileProperty = taskProperty("state.file");
+		if (stateFileProperty == null || "".equals(stateFileProperty)) {
+			stateFileProperty = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + taskId + ".state";
+		}
+		stateFile = new File(stateFileProperty);
+
+		String scratchDirProperty = taskProperty("scratch.dir");
+		if (scratchDirProperty == null || "".equals(scratchDirProperty)) {
+			scratchDirProperty = System.getProperty("java.io.tmpdir");
+		}
+		scratchDir = new File(scratchDirProperty);
+	}
+
+	private String[] parseField(String property, String defaultValue) {
+		String field = taskProperty(property);
+		if (field == null || "".equals(field)) {
+			field = defaultValue;
+		}
+		String[] components = field.split("\\.");
+		return new String[]{components[0], components[1], components.length > 2 ? components[2] : null};
+	}
+
+	@Override
+	public int perform(DSpaceObject dso) throws IOException {
+		numProcessed = 0;
+		numUnchanged = 0;
+		numUpdated = 0;
+		numErrors = 0;
+		state = readState();
+		pendingState = new HashMap<>();
+		stateAppended = false;
+
+		try {
+			distribute(dso);
+			commitBatch();
+			if (stateAppended) {
+				compactState();
+			}
+		} catch (IOException | SQLException e) {
+			String message = "Problem extracting PDF page information: " + e.getMessage();
+			log.error(message, e);
+			report(message);
+			setResult(message);
+			return Curator.CURATE_ERROR;
+		}
+
+		String message = String.format("%d item(s) processed: %d updated, %d unchanged since the last run, %d with errors",
+				                              numProcessed, numUpdated, numUnchanged, numErrors);
+		report(message);
+		setResult(message);
+		if (numErrors > 0) {
+			return Curator.CURATE_FAIL;
+		}
+		return numProcessed > 0 ? Curator.CURATE_SUCCESS : Curator.CURATE_SKIP;
+	}
+
+	@Override
+	protected void performItem(Item item) throws SQLException, IOException {
+		Bitstream pdf = findPrimaryPdf(item);
+		if (pdf == null) {
+			return;
+		}
+		numProcessed++;
+
+		String checksum = pdf.getID() + ":" + pdf.getChecksum();
+		if (checksum.equals(state.get(item.getID()))) {
+			numUnchanged++;
+			return;
+		}
+
+		int numPages;
+		String[] labels;
+		try {
+			PageInfo info = readPageInfo(pdf);
+			numPages = info.numPages;
+			labels = info.labels;
+		} catch (IOException | AuthorizeException e) {
+			numErrors++;
+			String message = "Cannot read PDF bitstream id=" + pdf.getID() + " of item id=" + item.getID() + ": " + e.getMessage();
+			log.warn(message, e);
+			report(message);
+			return;
+		}
+
+		boolean changed = setIfAllowed(item, pagesField, String.valueOf(numPages));
+		if (labels != null && labels.length > 0) {
+			changed |= setIfAllowed(item, startPageField, labels[0]);
+			changed |= setIfAllowed(item, endPageField, labels[labels.length - 1]);
+		}
+		if (changed) {
+			try {
+				item.update();
+			} catch (AuthorizeException e) {
+				numErrors++;
+				String message = "Not authorised to update item id=" + item.getID() + ": " + e.getMessage();
+				log.warn(message, e);
+				report(message);
+				return;
+			}
+			numUpdated++;
+			report("Item id=" + item.getID() + ": " + numPages + " pages" + (labels != null && labels.length > 0 ? ", labelled " + labels[0] + "-" + labels[labels.length - 1] : ""));
+		}
+		pendingState.put(item.getID(), checksum);
+		if (pendingState.size() >= batchSize) {
+			commitBatch();
+		}
+	}
+
+	private Bitstream findPrimaryPdf(Item item) throws SQLException {
+		Bitstream firstPdf = null;
+		for (Bundle bundle : item.getBundles(Constants.CONTENT_BUNDLE_NAME)) {
+			for (Bitstream bitstream : bundle.getBitstreams()) {
+				if (!PDF_MIMETYPE.equals(bitstream.getFormat().getMIMEType())) {
+					continue;
+				}
+				if (bitstream.getID() == bundle.getPrimaryBitstreamID()) {
+					return bitstream;
+				}
+				if (firstPdf == null) {
+					firstPdf = bitstream;
+				}
+			}
+		}
+		return firstPdf;
+	}
+
+	private static class PageInfo {
+		int numPages;
+		String[] labels;
+	}
+
+	private PageInfo readPageInfo(Bitstream pdf) throws IOException, SQLException, AuthorizeException {
+		File scratchFile = File.createTempFile("pdfpageinfo", ".tmp", scratchDir);
+		// PDFBox 1.8 scratch files aren't Closeable, so no try-with-resources here
+		RandomAccessFile scratch = new RandomAccessFile(scratchFile, "rw");
+		try (InputStream in = pdf.retrieve()) {
+			PDDocument document = PDDocument.loadNonSeq(in, scratch);
+			try {
+				PageInfo info = new PageInfo();
+				info.numPages = document.getNumberOfPages();
+				PDPageLabels pageLabels = document.getDocumentCatalog().getPageLabels();
+				if (pageLabels != null) {
+					info.labels = pageLabels.getLabelsByPageIndices();
+				}
+				return info;
+			} finally {
+				document.close();
+			}
+		} finally {
+			scratch.close();
+			if (!scratchFile.delete()) {
+				log.warn("Cannot delete scratch file " + scratchFile);
+			}
+		}
+	}
+
+	private boolean setIfAllowed(Item item, String[] field, String value) {
+		if (value == null || "".equals(value)) {
+			return false;
+		}
+		Metadatum[] existing = item.getMetadata(field[0], field[1], field[2], Item.ANY);
+		if (existing != null && existing.length > 0) {
+			if (!force || (existing.length == 1 && value.equals(existing[0].value))) {
+				return false;
+			}
+			item.clearMetadata(field[0], field[1], field[2], Item.ANY);
+		}
+		item.addMetadata(field[0], field[1], field[2], null, value);
+		return true;
+	}
+
+	private void commitBatch() throws SQLException, IOException {
+		if (pendingState.isEmpty()) {
+			return;
+		}
+		Context context = Curator.curationContext();
+		context.commit();
+		state.putAll(pendingState);
+		appendState(pendingState);
+		pendingState.clear();
+	}
+
+	private Map<Integer, String> readState() throws IOException {
+		Map<Integer, String> result = new HashMap<>();
+		if (!stateFile.exists()) {
+			return result;
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), "UTF-8"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t");
+				if (parts.length != 2) {
+					continue;
+				}
+				try {
+					result.put(Integer.parseInt(parts[0]), parts[1]);
+				} catch (NumberFormatException e) {
+					log.warn("Ignoring invalid line in state file " + stateFile + ": " + line);
+				}
+			}
+		}
+		return result;
+	}
+
+	private void appendState(Map<Integer, String> entries) throws IOException {
+		File directory = stateFile.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory for state file " + stateFile);
+		}
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(stateFile, true), "UTF-8")) {
+			for (Map.Entry<Integer, String> entry : entries.entrySet()) {
+				writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+			}
+		}
+		stateAppended = true;
+	}
+
+	/**
+	 * Rewrite the state file with one line per item, dropping the entries that later lines have overridden.
+	 */
+	private void compactState() throws IOException {
+		File directory = stateFile.getAbsoluteFile().getParentFile();
+		// write to a temporary file first so that an interrupted run doesn't leave a truncated state file
+		File tmpFile = new File(directory, stateFile.getName() + ".tmp");
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8")) {
+			for (Map.Entry<Integer, String> entry : new TreeMap<>(state).entrySet()) {
+				writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+			}
+		}
+		Files.move(tmpFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		stateAppended = false;
+	}
+}
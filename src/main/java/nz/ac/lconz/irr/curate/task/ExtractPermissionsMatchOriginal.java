@@ -3,7 +3,6 @@ package nz.ac.lconz.irr.curate.task;
 import org.apache.log4j.Logger;
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.authorize.AuthorizeManager;
-import org.dspace.authorize.ResourcePolicy;
 import org.dspace.content.*;
 import org.dspace.core.ConfigurationManager;
 import org.dspace.core.Constants;
@@ -119,6 +118,8 @@ public class ExtractPermissionsMatchOriginal extends AbstractCurationTask {
 	}
 
 	private boolean workOnItem(Item item, Context context) throws SQLException, AuthorizeException, IOException {
+		// read all policies up front; each target's policies are replaced at most once, so the snapshot stays valid
+		PolicySnapshot policies = PolicySnapshot.load(context, item);
 		boolean changes = false;
 		Bundle originalBundle = null;
 		Bundle[] originalBundles = item.getBundles(Constants.CONTENT_BUNDLE_NAME);
@@ -139,7 +140,7 @@ public class ExtractPermissionsMatchOriginal extends AbstractCurationTask {
 					}
 				}
 
-				changes |= matchPolicies(context, originalBundle, bundle);
+				changes |= matchPolicies(context, policies, originalBundle, bundle);
 
 				Bitstream[] bitstreams = bundle.getBitstreams();
 				for (Bitstream bitstream : bitstreams) {
@@ -153,7 +154,7 @@ public class ExtractPermissionsMatchOriginal extends AbstractCurationTask {
 							report("Bitstream id=" + bitstream.getID() + " (" + bitstream.getName() + ") doesn't have an original, but not deleting according to settings");
 						}
 					} else {
-						changes |= matchPolicies(context, originalBitstream, bitstream);
+						changes |= matchPolicies(context, policies, originalBitstream, bitstream);
 					}
 				}
 			}
@@ -177,10 +178,8 @@ public class ExtractPermissionsMatchOriginal extends AbstractCurationTask {
 		return null;
 	}
 
-	private boolean matchPolicies(Context context, DSpaceObject source, DSpaceObject target) throws SQLException, AuthorizeException {
-		List<ResourcePolicy> sourcePolicies = AuthorizeManager.getPolicies(context, source);
-		List<ResourcePolicy> targetPolicies = AuthorizeManager.getPolicies(context, target);
-		if (sourcePolicies.equals(targetPolicies)) {
+	private boolean matchPolicies(Context context, PolicySnapshot policies, DSpaceObject source, DSpaceObject target) throws SQLException, AuthorizeException {
+		if (samePolicies(policies.getPolicies(source), policies.getPolicies(target))) {
 			report("policies of target object " + target.getName() + " already match those of source " + source.getName() + "; no change needed");
 			return false;
 		}
@@ -193,6 +192,18 @@ public class ExtractPermissionsMatchOriginal extends AbstractCurationTask {
 		return true;
 	}
 
+	private static boolean samePolicies(List<PolicySnapshot.Policy> source, List<PolicySnapshot.Policy> target) {
+		if (source.size() != target.size()) {
+			return false;
+		}
+		for (int i = 0; i < source.size(); i++) {
+			if (!source.get(i).grantsSameAs(target.get(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private boolean deleteIfNoOriginal() {
 		return taskBooleanProperty("no-original.delete", false);
 	}
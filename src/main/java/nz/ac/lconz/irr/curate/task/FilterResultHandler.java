@@ -1,5 +1,6 @@
 package nz.ac.lconz.irr.curate.task;
 
+import nz.ac.lconz.irr.curate.task.format.ConversionProgress;
 import org.apache.commons.exec.DefaultExecuteResultHandler;
 import org.apache.commons.exec.ExecuteException;
 import org.apache.commons.exec.ExecuteWatchdog;
@@ -11,25 +12,49 @@ import org.apache.log4j.Logger;
  */
 public class FilterResultHandler extends DefaultExecuteResultHandler {
 	private ExecuteWatchdog watchdog;
+	private ConversionProgress progress;
+	private volatile boolean stalled = false;
 	private Logger log = Logger.getLogger(FilterResultHandler.class);
 
 	public FilterResultHandler(ExecuteWatchdog watchdog) {
+		this(watchdog, null);
+	}
+
+	public FilterResultHandler(ExecuteWatchdog watchdog, ConversionProgress progress) {
 		this.watchdog = watchdog;
+		this.progress = progress;
+	}
+
+	/**
+	 * Record that the process is about to be killed because it stopped reporting progress, so that the failure is
+	 * not reported as a plain timeout.
+	 */
+	public void markStalled() {
+		stalled = true;
 	}
 
 	@Override
 	public void onProcessComplete(int exitValue) {
 		super.onProcessComplete(exitValue);
-		log.info("Completed filtering successfully");
+		log.info("Completed filtering successfully" + (progress != null ? " (" + progress + ")" : ""));
 	}
 
 	@Override
 	public void onProcessFailed(ExecuteException e) {
 		super.onProcessFailed(e);
-		if(watchdog != null && watchdog.killedProcess()) {
-			log.warn("Conversion process timed out");
+		String details = "";
+		if (progress != null) {
+			details = " at " + progress;
+			if (progress.getLastLine() != null) {
+				details += "; last output: " + progress.getLastLine();
+			}
+		}
+		if (stalled) {
+			log.warn("Conversion process stalled" + details);
+		} else if(watchdog != null && watchdog.killedProcess()) {
+			log.warn("Conversion process timed out" + details);
 		} else {
-			log.warn("Conversion process failed");
+			log.warn("Conversion process failed" + details);
 		}
 	}
 }
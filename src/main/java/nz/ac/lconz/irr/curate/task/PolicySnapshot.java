@@ -0,0 +1,347 @@
+package nz.ac.lconz.irr.curate.task;
+
+import org.dspace.content.Bundle;
+import org.dspace.content.DSpaceObject;
+import org.dspace.content.Item;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The resource policies of an item, its bundles and their bitstreams (or of a bundle and its bitstreams), read with a
+ * single query instead of one or more AuthorizeManager calls per object. The snapshot is immutable: it does not see
+ * policy changes made after it was loaded, so tasks should take it before they change anything, and load a new one
+ * if they need to look at policies again afterwards.
+ *
+ * Lookups mirror the AuthorizeManager methods they replace: {@link #getPolicies(DSpaceObject, int)} for
+ * getPoliciesActionFilter, {@link #getAuthorizedGroupIds(DSpaceObject, int)} for getAuthorizedGroups and
+ * {@link #findByGroupAction(DSpaceObject, int, int)} for findByTypeIdGroupAction.
+ */
+public class PolicySnapshot {
+	private static final String POLICY_COLUMNS = "rp.policy_id, rp.resource_type_id, rp.resource_id, rp.action_id, rp.eperson_id, "
+			                                             + "rp.epersongroup_id, rp.start_date, rp.end_date, rp.rptype";
+
+	private static final String ITEM_QUERY =
+			"SELECT " + POLICY_COLUMNS + " FROM resourcepolicy rp"
+					+ " WHERE rp.resource_type_id = " + Constants.ITEM + " AND rp.resource_id = ?"
+					+ " UNION ALL SELECT " + POLICY_COLUMNS + " FROM resourcepolicy rp"
+					+ " JOIN item2bundle i2b ON rp.resource_id = i2b.bundle_id"
+					+ " WHERE rp.resource_type_id = " + Constants.BUNDLE + " AND i2b.item_id = ?"
+					+ " UNION ALL SELECT " + POLICY_COLUMNS + " FROM resourcepolicy rp"
+					+ " JOIN bundle2bitstream b2b ON rp.resource_id = b2b.bitstream_id"
+					+ " JOIN item2bundle i2b ON b2b.bundle_id = i2b.bundle_id"
+					+ " WHERE rp.resource_type_id = " + Constants.BITSTREAM + " AND i2b.item_id = ?"
+					+ " ORDER BY policy_id";
+
+	private static final String BUNDLE_QUERY =
+			"SELECT " + POLICY_COLUMNS + " FROM resourcepolicy rp"
+					+ " WHERE rp.resource_type_id = " + Constants.BUNDLE + " AND rp.resource_id = ?"
+					+ " UNION ALL SELECT " + POLICY_COLUMNS + " FROM resourcepolicy rp"
+					+ " JOIN bundle2bitstream b2b ON rp.resource_id = b2b.bitstream_id"
+					+ " WHERE rp.resource_type_id = " + Constants.BITSTREAM + " AND b2b.bundle_id = ?"
+					+ " ORDER BY policy_id";
+
+	private static final String[] OWNED_BY_ITEM = {
+			" FROM resourcepolicy rp JOIN item i ON rp.resource_id = i.item_id"
+					+ " WHERE rp.resource_type_id = " + Constants.ITEM,
+			" FROM resourcepolicy rp JOIN item2bundle i2b ON rp.resource_id = i2b.bundle_id"
+					+ " JOIN item i ON i2b.item_id = i.item_id"
+					+ " WHERE rp.resource_type_id = " + Constants.BUNDLE,
+			" FROM resourcepolicy rp JOIN bundle2bitstream b2b ON rp.resource_id = b2b.bitstream_id"
+					+ " JOIN item2bundle i2b ON b2b.bundle_id = i2b.bundle_id JOIN item i ON i2b.item_id = i.item_id"
+					+ " WHERE rp.resource_type_id = " + Constants.BITSTREAM
+	};
+
+	/**
+	 * A single resource policy.
+	 */
+	public static class Policy {
+		private final int id;
+		private final int resourceType;
+		private final int resourceId;
+		private final int action;
+		private final int epersonId;
+		private final int groupId;
+		private final Date startDate;
+		private final Date endDate;
+		private final String rpType;
+
+		Policy(TableRow row) throws SQLException {
+			id = row.getIntColumn("policy_id");
+			resourceType = row.getIntColumn("resource_type_id");
+			resourceId = row.getIntColumn("resource_id");
+			action = row.getIntColumn("action_id");
+			epersonId = row.isColumnNull("eperson_id") ? -1 : row.getIntColumn("eperson_id");
+			groupId = row.isColumnNull("epersongroup_id") ? -1 : row.getIntColumn("epersongroup_id");
+			startDate = row.getDateColumn("start_date");
+			endDate = row.getDateColumn("end_date");
+			rpType = row.getStringColumn("rptype");
+		}
+
+		Policy(int id, int resourceType, int resourceId, int action, int epersonId, int groupId, Date startDate, Date endDate,
+		       String rpType) {
+			this.id = id;
+			this.resourceType = resourceType;
+			this.resourceId = resourceId;
+			this.action = action;
+			this.epersonId = epersonId;
+			this.groupId = groupId;
+			this.startDate = startDate;
+			this.endDate = endDate;
+			this.rpType = rpType;
+		}
+
+		public int getID() {
+			return id;
+		}
+
+		public int getResourceType() {
+			return resourceType;
+		}
+
+		public int getResourceID() {
+			return resourceId;
+		}
+
+		public int getAction() {
+			return action;
+		}
+
+		public String getActionText() {
+			return action >= 0 && action < Constants.actionText.length ? Constants.actionText[action] : String.valueOf(action);
+		}
+
+		/**
+		 * @return the id of the e-person the policy is for, or -1.
+		 */
+		public int getEPersonID() {
+			return epersonId;
+		}
+
+		/**
+		 * @return the id of the group the policy is for, or -1.
+		 */
+		public int getGroupID() {
+			return groupId;
+		}
+
+		public Date getStartDate() {
+			return startDate == null ? null : new Date(startDate.getTime());
+		}
+
+		public Date getEndDate() {
+			return endDate == null ? null : new Date(endDate.getTime());
+		}
+
+		public String getRpType() {
+			return rpType;
+		}
+
+		/**
+		 * @return whether the policy is in effect now; same rules as ResourcePolicy.isDateValid().
+		 */
+		public boolean isDateValid() {
+			return isDateValid(new Date());
+		}
+
+		/**
+		 * @return whether the policy is in effect at the given time; both ends of the period are included.
+		 */
+		boolean isDateValid(Date now) {
+			if (startDate == null && endDate == null) {
+				return true;
+			}
+			if (startDate != null && now.before(startDate)) {
+				return false;
+			}
+			return endDate == null || !now.after(endDate);
+		}
+
+		/**
+		 * @return whether the other policy grants the same action to the same e-person or group for the same period;
+		 * same rules as ResourcePolicy.equals(), but without database lookups.
+		 */
+		public boolean grantsSameAs(Policy other) {
+			return action == other.action && epersonId == other.epersonId && groupId == other.groupId
+					       && sameDate(startDate, other.startDate) && sameDate(endDate, other.endDate);
+		}
+
+		private static boolean sameDate(Date a, Date b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+	private final Map<Long, List<Policy>> policies;
+
+	private PolicySnapshot(Map<Long, List<Policy>> policies) {
+		this.policies = policies;
+	}
+
+	/**
+	 * Load the policies of an item, its bundles and their bitstreams.
+	 */
+	public static PolicySnapshot load(Context context, Item item) throws SQLException {
+		return load(context, ITEM_QUERY, item.getID(), item.getID(), item.getID());
+	}
+
+	/**
+	 * Load the policies of a bundle and its bitstreams.
+	 */
+	public static PolicySnapshot load(Context context, Bundle bundle) throws SQLException {
+		return load(context, BUNDLE_QUERY, bundle.getID(), bundle.getID());
+	}
+
+	private static PolicySnapshot load(Context context, String query, Object... parameters) throws SQLException {
+		Map<Long, List<Policy>> policies = new HashMap<>();
+		TableRowIterator rows = DatabaseManager.query(context, query, parameters);
+		try {
+			while (rows.hasNext()) {
+				addPolicy(policies, new Policy(rows.next()));
+			}
+		} finally {
+			rows.close();
+		}
+		return new PolicySnapshot(unmodifiable(policies));
+	}
+
+	private static void addPolicy(Map<Long, List<Policy>> policies, Policy policy) {
+		long key = key(policy.getResourceType(), policy.getResourceID());
+		List<Policy> objectPolicies = policies.get(key);
+		if (objectPolicies == null) {
+			objectPolicies = new ArrayList<>();
+			policies.put(key, objectPolicies);
+		} else if (objectPolicies.get(objectPolicies.size() - 1).getID() == policy.getID()) {
+			return; // bitstream is in more than one bundle of the item
+		}
+		objectPolicies.add(policy);
+	}
+
+	private static Map<Long, List<Policy>> unmodifiable(Map<Long, List<Policy>> policies) {
+		for (Map.Entry<Long, List<Policy>> entry : policies.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+		return policies;
+	}
+
+	/**
+	 * Load the policies of archived items, their bundles and their bitstreams that start or end after the given date,
+	 * with a single query. Policies without such dates are not part of the snapshots.
+	 *
+	 * @param collectionIds only look at items in these collections; null for all items.
+	 * @return a snapshot per item that has such policies, by item id in ascending order.
+	 */
+	public static Map<Integer, PolicySnapshot> loadStartingOrEndingAfter(Context context, Date date, List<Integer> collectionIds) throws SQLException {
+		Map<Integer, PolicySnapshot> snapshots = new LinkedHashMap<>();
+		if (collectionIds != null && collectionIds.isEmpty()) {
+			return snapshots;
+		}
+
+		Timestamp after = new Timestamp(date.getTime());
+		List<Object> parameters = new ArrayList<>();
+		StringBuilder query = new StringBuilder();
+		for (String ownedByItem : OWNED_BY_ITEM) {
+			if (query.length() > 0) {
+				query.append(" UNION ALL ");
+			}
+			query.append("SELECT i.item_id AS owner_id, ").append(POLICY_COLUMNS).append(ownedByItem)
+			     .append(" AND (rp.start_date > ? OR rp.end_date > ?) AND i.in_archive = '1'");
+			parameters.add(after);
+			parameters.add(after);
+			if (collectionIds != null) {
+				query.append(" AND EXISTS (SELECT 1 FROM collection2item c2i WHERE c2i.item_id = i.item_id AND c2i.collection_id IN (");
+				for (int i = 0; i < collectionIds.size(); i++) {
+					query.append(i > 0 ? ", ?" : "?");
+					parameters.add(collectionIds.get(i));
+				}
+				query.append("))");
+			}
+		}
+		query.append(" ORDER BY owner_id, policy_id");
+
+		int ownerId = -1;
+		Map<Long, List<Policy>> policies = null;
+		TableRowIterator rows = DatabaseManager.query(context, query.toString(), parameters.toArray());
+		try {
+			while (rows.hasNext()) {
+				TableRow row = rows.next();
+				if (policies == null || row.getIntColumn("owner_id") != ownerId) {
+					if (policies != null) {
+						snapshots.put(ownerId, new PolicySnapshot(unmodifiable(policies)));
+					}
+					ownerId = row.getIntColumn("owner_id");
+					policies = new HashMap<>();
+				}
+				addPolicy(policies, new Policy(row));
+			}
+		} finally {
+			rows.close();
+		}
+		if (policies != null) {
+			snapshots.put(ownerId, new PolicySnapshot(unmodifiable(policies)));
+		}
+		return snapshots;
+	}
+
+	/**
+	 * @return all policies of the object, in policy id order; empty if the object isn't part of the snapshot.
+	 */
+	public List<Policy> getPolicies(DSpaceObject dso) {
+		List<Policy> objectPolicies = policies.get(key(dso.getType(), dso.getID()));
+		return objectPolicies != null ? objectPolicies : Collections.<Policy>emptyList();
+	}
+
+	/**
+	 * @return the policies of the object for the given action.
+	 */
+	public List<Policy> getPolicies(DSpaceObject dso, int action) {
+		List<Policy> result = new ArrayList<>();
+		for (Policy policy : getPolicies(dso)) {
+			if (policy.getAction() == action) {
+				result.add(policy);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the ids of the groups that currently have the given action on the object through a policy that is in
+	 * effect now.
+	 */
+	public List<Integer> getAuthorizedGroupIds(DSpaceObject dso, int action) {
+		List<Integer> groupIds = new ArrayList<>();
+		for (Policy policy : getPolicies(dso)) {
+			if (policy.getAction() == action && policy.getGroupID() != -1 && policy.isDateValid()) {
+				groupIds.add(policy.getGroupID());
+			}
+		}
+		return groupIds;
+	}
+
+	/**
+	 * @return the first policy giving the group the action on the object, or null if there is none.
+	 */
+	public Policy findByGroupAction(DSpaceObject dso, int groupId, int action) {
+		for (Policy policy : getPolicies(dso)) {
+			if (policy.getGroupID() == groupId && policy.getAction() == action) {
+				return policy;
+			}
+		}
+		return null;
+	}
+
+	private static long key(int type, int id) {
+		return ((long) type << 32) | (id & 0xFFFFFFFFL);
+	}
+}
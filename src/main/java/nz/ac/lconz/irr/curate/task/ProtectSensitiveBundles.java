@@ -12,7 +12,6 @@ import org.dspace.core.Context;
 import org.dspace.curate.AbstractCurationTask;
 import org.dspace.curate.Curator;
 import org.dspace.curate.Mutative;
-import org.dspace.eperson.Group;
 
 import java.io.IOException;
 import java.sql.SQLException;
@@ -87,7 +86,8 @@ public class ProtectSensitiveBundles extends AbstractCurationTask {
 		if (dso.getType() == Constants.ITEM) {
 			return processItem((Item) dso, context);
 		} else if (dso.getType() == Constants.BUNDLE) {
-			return processBundle((Bundle) dso, context);
+			Bundle bundle = (Bundle) dso;
+			return processBundle(bundle, context, PolicySnapshot.load(context, bundle));
 		}
 		return false;
 	}
@@ -97,26 +97,25 @@ public class ProtectSensitiveBundles extends AbstractCurationTask {
 			return false; // don't mess with workflows
 		}
 
+		PolicySnapshot policies = PolicySnapshot.load(context, item);
 		Bundle[] bundles = item.getBundles();
 		boolean changes = false;
 		for (Bundle bundle : bundles) {
-			changes |= process(bundle, context);
+			changes |= processBundle(bundle, context, policies);
 		}
 		return changes;
 	}
 
-	private boolean processBundle(Bundle bundle, Context context) throws SQLException {
+	private boolean processBundle(Bundle bundle, Context context, PolicySnapshot policies) throws SQLException {
 		boolean changes = false;
 		if (isProtectedBundle(bundle.getName())) {
-			Group[] bundleReadGroups = AuthorizeManager.getAuthorizedGroups(context, bundle, Constants.READ);
-			if (bundleReadGroups != null && bundleReadGroups.length > 0) {
+			if (!policies.getAuthorizedGroupIds(bundle, Constants.READ).isEmpty()) {
 				AuthorizeManager.removePoliciesActionFilter(context, bundle, Constants.READ);
 				changes = true;
 				bundlesFixed++;
 			}
 			for (Bitstream bitstream : bundle.getBitstreams()) {
-				Group[] bitstreamReadGroups = AuthorizeManager.getAuthorizedGroups(context, bitstream, Constants.READ);
-				if (bitstreamReadGroups != null && bitstreamReadGroups.length > 0) {
+				if (!policies.getAuthorizedGroupIds(bitstream, Constants.READ).isEmpty()) {
 					AuthorizeManager.removePoliciesActionFilter(context, bitstream, Constants.READ);
 					changes = true;
 					bitstreamsFixed++;
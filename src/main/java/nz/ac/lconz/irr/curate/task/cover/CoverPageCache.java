@@ -0,0 +1,103 @@
+package nz.ac.lconz.irr.curate.task.cover;
+
+import org.apache.log4j.Logger;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Keeps the rendered cover page of each item in a cache directory, so that it is rendered once and then reused for
+ * all PDFs of the item and on later runs. Cached pages are named after the item id and a hash of everything that goes
+ * into the page: the stamped text, the template file (path, size and modification time) and the layout. When any of
+ * these change, the page is rendered again and the item's outdated pages are removed.
+ */
+public class CoverPageCache {
+	private static final Logger log = Logger.getLogger(CoverPageCache.class);
+
+	private final File cacheDir;
+	private final File template;
+	private final CoverPageRenderer renderer;
+
+	public CoverPageCache(File cacheDir, File template, CoverPageRenderer renderer) {
+		this.cacheDir = cacheDir;
+		this.template = template;
+		this.renderer = renderer;
+	}
+
+	/**
+	 * @param itemId the id of the item.
+	 * @param blocks the text blocks to stamp onto the cover page.
+	 * @return the cover page of the item, rendered if there is no up-to-date one in the cache.
+	 * @throws IOException if the cover page cannot be rendered or cached.
+	 */
+	public File coverFor(int itemId, List<String> blocks) throws IOException, COSVisitorException {
+		String prefix = itemId + "-";
+		File cover = new File(cacheDir, prefix + hash(blocks) + ".pdf");
+		if (cover.isFile()) {
+			return cover;
+		}
+
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			throw new IOException("Cannot create cover page cache directory " + cacheDir);
+		}
+		// render into a temporary file so that concurrent runs never see a partially written page
+		File tmpFile = File.createTempFile(prefix, ".tmp", cacheDir);
+		try {
+			renderer.render(template, blocks, tmpFile);
+			Files.move(tmpFile.toPath(), cover.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			if (tmpFile.exists() && !tmpFile.delete()) {
+				log.warn("Cannot delete temporary file " + tmpFile);
+			}
+		}
+		log.debug("Rendered cover page " + cover + " for item id=" + itemId);
+
+		File[] outdated = cacheDir.listFiles();
+		if (outdated != null) {
+			for (File file : outdated) {
+				if (file.getName().startsWith(prefix) && file.getName().endsWith(".pdf") && !file.equals(cover) && !file.delete()) {
+					log.warn("Cannot delete outdated cover page " + file);
+				}
+			}
+		}
+		return cover;
+	}
+
+	private String hash(List<String> blocks) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 not available", e);
+		}
+		update(digest, template.getAbsolutePath());
+		update(digest, String.valueOf(template.length()));
+		update(digest, String.valueOf(template.lastModified()));
+		update(digest, renderer.toString());
+		for (String block : blocks) {
+			update(digest, block);
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b & 0xff));
+		}
+		return hex.toString();
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		try {
+			digest.update(value.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("UTF-8 not available", e);
+		}
+		// separator, so that eg ("ab", "c") and ("a", "bc") hash differently
+		digest.update((byte) 0);
+	}
+}
@@ -0,0 +1,206 @@
+package nz.ac.lconz.irr.curate.task.cover;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stamps text onto the first page of a cover page template. The first text block is set in bold, the others in the
+ * regular font; each block is wrapped to the configured width. Only the standard 14 fonts are used, so nothing needs
+ * to be embedded.
+ *
+ * Text that would run below the bottom margin is set in a smaller font, down to the minimum font size; if it still
+ * doesn't fit, it is cut off at the bottom margin and ends in an ellipsis.
+ */
+public class CoverPageRenderer {
+	// characters outside Latin-1 that WinAnsi has, and their codes in WinAnsi
+	private static final String WIN_ANSI_EXTRAS = "\u20AC\u201A\u0192\u201E\u2026\u2020\u2021\u02C6\u2030\u0160\u2039\u0152\u017D"
+			                                              + "\u2018\u2019\u201C\u201D\u2022\u2013\u2014\u02DC\u2122\u0161\u203A\u0153\u017E\u0178";
+	private static final String WIN_ANSI_CODES = "\u0080\u0082\u0083\u0084\u0085\u0086\u0087\u0088\u0089\u008A\u008B\u008C\u008E"
+			                                             + "\u0091\u0092\u0093\u0094\u0095\u0096\u0097\u0098\u0099\u009A\u009B\u009C\u009E\u009F";
+	private static final String ELLIPSIS = "\u0085";
+
+	private final float x;
+	private final float top;
+	private final float bottom;
+	private final float width;
+	private final float fontSize;
+	private final float minFontSize;
+
+	private final PDFont font = PDType1Font.HELVETICA;
+	private final PDFont boldFont = PDType1Font.HELVETICA_BOLD;
+
+	/**
+	 * @param x the distance of the text from the left edge of the page, in points.
+	 * @param top the distance of the first baseline from the bottom edge of the page, in points.
+	 * @param bottom the distance of the lowest possible baseline from the bottom edge of the page, in points.
+	 * @param width the width available for the text, in points.
+	 * @param fontSize the font size, in points.
+	 * @param minFontSize the size down to which the font is reduced to fit long text, in points.
+	 */
+	public CoverPageRenderer(float x, float top, float bottom, float width, float fontSize, float minFontSize) {
+		this.x = x;
+		this.top = top;
+		this.bottom = bottom;
+		this.width = width;
+		this.fontSize = fontSize;
+		this.minFontSize = Math.min(minFontSize, fontSize);
+	}
+
+	/**
+	 * Render a cover page.
+	 *
+	 * @param template the cover page template.
+	 * @param blocks the text blocks to stamp, from top to bottom.
+	 * @param outFile the file to write the stamped cover page to.
+	 */
+	public void render(File template, List<String> blocks, File outFile) throws IOException, COSVisitorException {
+		float size = fontSize;
+		List<Line> lines = layout(blocks, size);
+		while (!fits(lines) && size > minFontSize) {
+			size = Math.max(minFontSize, size - 0.5f);
+			lines = layout(blocks, size);
+		}
+		if (!fits(lines)) {
+			lines = clip(lines, size);
+		}
+
+		PDDocument document = PDDocument.load(template);
+		try {
+			PDPage page = (PDPage) document.getDocumentCatalog().getAllPages().get(0);
+			PDPageContentStream content = new PDPageContentStream(document, page, true, true, true);
+			try {
+				for (Line line : lines) {
+					content.beginText();
+					content.setFont(line.font, size);
+					content.moveTextPositionByAmount(x, line.y);
+					content.drawString(line.text);
+					content.endText();
+				}
+			} finally {
+				content.close();
+			}
+			document.save(outFile);
+		} finally {
+			document.close();
+		}
+	}
+
+	private static class Line {
+		final PDFont font;
+		final String text;
+		final float y;
+
+		Line(PDFont font, String text, float y) {
+			this.font = font;
+			this.text = text;
+			this.y = y;
+		}
+	}
+
+	private List<Line> layout(List<String> blocks, float size) throws IOException {
+		List<Line> lines = new ArrayList<>();
+		float leading = size * 1.3f;
+		float y = top;
+		for (int i = 0; i < blocks.size(); i++) {
+			PDFont blockFont = i == 0 ? boldFont : font;
+			for (String line : wrap(toWinAnsi(blocks.get(i)), blockFont, size)) {
+				lines.add(new Line(blockFont, line, y));
+				y -= leading;
+			}
+			y -= leading / 2;
+		}
+		return lines;
+	}
+
+	private boolean fits(List<Line> lines) {
+		return lines.isEmpty() || lines.get(lines.size() - 1).y >= bottom;
+	}
+
+	/**
+	 * Drop the lines below the bottom margin and end the last remaining line in an ellipsis.
+	 */
+	private List<Line> clip(List<Line> lines, float size) throws IOException {
+		List<Line> clipped = new ArrayList<>();
+		for (Line line : lines) {
+			if (line.y < bottom) {
+				break;
+			}
+			clipped.add(line);
+		}
+		if (!clipped.isEmpty()) {
+			Line last = clipped.remove(clipped.size() - 1);
+			String text = last.text;
+			while (!text.isEmpty() && last.font.getStringWidth(text + ELLIPSIS) / 1000 * size > width) {
+				text = text.substring(0, text.length() - 1);
+			}
+			clipped.add(new Line(last.font, text.trim() + ELLIPSIS, last.y));
+		}
+		return clipped;
+	}
+
+	private List<String> wrap(String text, PDFont blockFont, float size) throws IOException {
+		List<String> lines = new ArrayList<>();
+		StringBuilder line = new StringBuilder();
+		for (String word : text.split("\\s+")) {
+			String candidate = line.length() == 0 ? word : line + " " + word;
+			if (line.length() > 0 && blockFont.getStringWidth(candidate) / 1000 * size > width) {
+				lines.add(line.toString());
+				line = new StringBuilder(word);
+			} else {
+				line = new StringBuilder(candidate);
+			}
+		}
+		if (line.length() > 0) {
+			lines.add(line.toString());
+		}
+		return lines;
+	}
+
+	/**
+	 * The standard fonts only cover WinAnsi: map the characters outside Latin-1 that it has (typographic quotes and
+	 * dashes, the euro sign, ...) to their WinAnsi codes, strip diacritics that it doesn't have (eg macrons) rather than
+	 * dropping the whole character, turn other spaces into plain ones and replace anything else with a question mark.
+	 */
+	static String toWinAnsi(String text) {
+		StringBuilder result = new StringBuilder(text.length());
+		for (char c : text.toCharArray()) {
+			if (c < 0x80 || (c >= 0xA0 && c < 0x100)) {
+				result.append(c);
+				continue;
+			}
+			if (c < 0xA0) {
+				// C1 control characters, which WinAnsi would show as unrelated glyphs
+				result.append('?');
+				continue;
+			}
+			int extra = WIN_ANSI_EXTRAS.indexOf(c);
+			if (extra >= 0) {
+				result.append(WIN_ANSI_CODES.charAt(extra));
+				continue;
+			}
+			if (Character.isSpaceChar(c)) {
+				result.append(' ');
+				continue;
+			}
+			String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+			char base = decomposed.charAt(0);
+			result.append(base < 0x80 || (base >= 0xA0 && base < 0x100) ? base : '?');
+		}
+		return result.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "x=" + x + " top=" + top + " bottom=" + bottom + " width=" + width + " size=" + fontSize + " min-size=" + minFontSize;
+	}
+}
@@ -0,0 +1,62 @@
+package nz.ac.lconz.irr.curate.task.format;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Throughput figures for one conversion job. Published through a dedicated logger so that they can be routed to their
+ * own log file and used to size transcoding hardware.
+ */
+public class ConversionMetrics {
+	private static final Logger metricsLog = Logger.getLogger(ConversionMetrics.class);
+
+	private final long inputBytes;
+	private final long outputBytes;
+	private final long elapsedMillis;
+	private final double mediaSeconds;
+
+	/**
+	 * @param inputBytes the size of the source.
+	 * @param outputBytes the total size of everything the job wrote.
+	 * @param elapsedMillis the wall-clock time the job took.
+	 * @param mediaSeconds the duration of the source media, zero or negative if unknown.
+	 */
+	public ConversionMetrics(long inputBytes, long outputBytes, long elapsedMillis, double mediaSeconds) {
+		this.inputBytes = inputBytes;
+		this.outputBytes = outputBytes;
+		this.elapsedMillis = elapsedMillis;
+		this.mediaSeconds = mediaSeconds;
+	}
+
+	/**
+	 * @return the number of source bytes processed per second of wall-clock time.
+	 */
+	public double getBytesPerSecond() {
+		return elapsedMillis > 0 ? inputBytes * 1000.0 / elapsedMillis : 0;
+	}
+
+	/**
+	 * @return the number of seconds of media processed per second of wall-clock time, or -1 if the media duration is
+	 * unknown.
+	 */
+	public double getRealtimeFactor() {
+		if (mediaSeconds <= 0 || elapsedMillis <= 0) {
+			return -1;
+		}
+		return mediaSeconds * 1000 / elapsedMillis;
+	}
+
+	/**
+	 * Write these metrics to the metrics log.
+	 *
+	 * @param job a description of the job, eg the task id and bitstream id.
+	 */
+	public void publish(String job) {
+		metricsLog.info(job + " " + toString());
+	}
+
+	@Override
+	public String toString() {
+		return String.format("input=%d output=%d elapsed=%dms media=%.1fs throughput=%.0fB/s realtime=%.2fx",
+				                    inputBytes, outputBytes, elapsedMillis, mediaSeconds, getBytesPerSecond(), getRealtimeFactor());
+	}
+}
@@ -0,0 +1,69 @@
+package nz.ac.lconz.irr.curate.task.format;
+
+import java.io.File;
+
+/**
+ * One output of a conversion command, together with the settings for the derivative bitstream made from it. Target
+ * settings that are null fall back to the ones configured for the MediaFilter task.
+ */
+public class ConversionOutput {
+	private final String name;
+	private final String args;
+	private final String suffix;
+	private final String bundle;
+	private final String nameSpec;
+	private final String format;
+	private final String description;
+
+	/**
+	 * @param name the name of the output; must consist of word characters and dashes only.
+	 * @param args the output options to append to the conversion command, including ${outfile}; null if the command
+	 *             already contains everything needed to write this output.
+	 * @param suffix the suffix to append to the name of the source file to get the name of the output file.
+	 * @param bundle the name of the bundle for the derivative.
+	 * @param nameSpec the name spec for the derivative ($src = source name, $ext = extension of the target format).
+	 * @param format the short description of the bitstream format of the derivative.
+	 * @param description the description of the derivative.
+	 */
+	public ConversionOutput(String name, String args, String suffix, String bundle, String nameSpec, String format, String description) {
+		this.name = name;
+		this.args = args;
+		this.suffix = suffix;
+		this.bundle = bundle;
+		this.nameSpec = nameSpec;
+		this.format = format;
+		this.description = description;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getArgs() {
+		return args;
+	}
+
+	public String getBundle() {
+		return bundle;
+	}
+
+	public String getNameSpec() {
+		return nameSpec;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * @param inFileName the name of the source file.
+	 * @return the file that this output is written to.
+	 */
+	public File fileFor(String inFileName) {
+		return new File(inFileName + suffix);
+	}
+}
@@ -0,0 +1,157 @@
+package nz.ac.lconz.irr.curate.task.format;
+
+import org.apache.commons.exec.LogOutputStream;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Collects the progress reported by an ffmpeg-style converter on its output. Understands both the periodic status line
+ * (frame=... time=... speed=...) and the key=value lines written with -progress, as well as the Duration: line that
+ * describes the input.
+ *
+ * Fields are updated from the stream pumper thread and read from the thread waiting for the conversion, so they are
+ * all volatile.
+ */
+public class ConversionProgress extends LogOutputStream {
+	private static final Pattern FRAME = Pattern.compile("\\bframe=\\s*(\\d+)");
+	private static final Pattern TIME = Pattern.compile("\\btime=\\s*(\\d+):(\\d{2}):(\\d{2}(?:\\.\\d+)?)");
+	private static final Pattern OUT_TIME_US = Pattern.compile("^out_time_(?:us|ms)=(\\d+)");
+	private static final Pattern SPEED = Pattern.compile("\\bspeed=\\s*(\\d+(?:\\.\\d+)?)x");
+	private static final Pattern DURATION = Pattern.compile("^\\s*Duration:\\s*(\\d+):(\\d{2}):(\\d{2}(?:\\.\\d+)?)");
+
+	private volatile long frames = -1;
+	private volatile double seconds = -1;
+	private volatile double speed = -1;
+	private volatile double inputDuration = -1;
+	private volatile long lastUpdate;
+	private volatile boolean reported = false;
+	private volatile String lastLine;
+
+	public ConversionProgress() {
+		lastUpdate = System.currentTimeMillis();
+	}
+
+	/**
+	 * LogOutputStream buffers partial lines, so the stdout and stderr pumper threads must not share one stream. Use
+	 * this object for one of them and the stream returned here for the other.
+	 *
+	 * @return a second stream feeding this progress tracker.
+	 */
+	public LogOutputStream secondaryStream() {
+		return new LogOutputStream() {
+			@Override
+			protected void processLine(String line, int level) {
+				ConversionProgress.this.processLine(line, level);
+			}
+		};
+	}
+
+	@Override
+	protected synchronized void processLine(String line, int level) {
+		if (line == null || line.trim().isEmpty()) {
+			return;
+		}
+		lastLine = line;
+
+		Matcher duration = DURATION.matcher(line);
+		if (duration.find()) {
+			inputDuration = toSeconds(duration.group(1), duration.group(2), duration.group(3));
+			return;
+		}
+
+		boolean updated = false;
+		Matcher frame = FRAME.matcher(line);
+		if (frame.find()) {
+			frames = Long.parseLong(frame.group(1));
+			updated = true;
+		}
+		Matcher time = TIME.matcher(line);
+		if (time.find()) {
+			seconds = toSeconds(time.group(1), time.group(2), time.group(3));
+			updated = true;
+		} else {
+			Matcher outTime = OUT_TIME_US.matcher(line);
+			if (outTime.find()) {
+				seconds = Long.parseLong(outTime.group(1)) / 1000000.0;
+				updated = true;
+			}
+		}
+		Matcher speedMatcher = SPEED.matcher(line);
+		if (speedMatcher.find()) {
+			speed = Double.parseDouble(speedMatcher.group(1));
+			updated = true;
+		}
+		if (updated) {
+			lastUpdate = System.currentTimeMillis();
+			reported = true;
+		}
+	}
+
+	private static double toSeconds(String hours, String minutes, String seconds) {
+		return Integer.parseInt(hours) * 3600 + Integer.parseInt(minutes) * 60 + Double.parseDouble(seconds);
+	}
+
+	/**
+	 * @return the number of frames written so far, or -1 if the converter hasn't reported any.
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * @return the position (in seconds of media time) reached so far, or -1 if the converter hasn't reported any.
+	 */
+	public double getSeconds() {
+		return seconds;
+	}
+
+	/**
+	 * @return the most recently reported conversion speed as a multiple of realtime, or -1 if unknown.
+	 */
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * @return the duration of the input (in seconds) as reported by the converter, or -1 if unknown.
+	 */
+	public double getInputDuration() {
+		return inputDuration;
+	}
+
+	/**
+	 * @return whether the converter has reported any progress so far. Converters that don't print ffmpeg-style status
+	 * output never do.
+	 */
+	public boolean hasReportedProgress() {
+		return reported;
+	}
+
+	/**
+	 * @return the number of milliseconds since the converter last reported progress (or since this object was
+	 * created, if it hasn't reported any progress yet).
+	 */
+	public long millisSinceLastUpdate() {
+		return System.currentTimeMillis() - lastUpdate;
+	}
+
+	/**
+	 * @return the last non-blank line of converter output, which usually explains why a conversion failed.
+	 */
+	public String getLastLine() {
+		return lastLine;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("frame=").append(frames);
+		builder.append(" time=").append(String.format("%.2f", seconds));
+		if (inputDuration > 0) {
+			builder.append("/").append(String.format("%.2f", inputDuration));
+		}
+		builder.append(" speed=").append(speed).append("x");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,57 @@
+package nz.ac.lconz.irr.curate.task.format;
+
+/**
+ * Time limits for an external conversion. The overall limit is derived from the duration of the source media, so
+ * that long recordings get enough time while short clips don't wait for a generous fixed limit; the stall limit kills
+ * a converter that has stopped reporting progress. Converters that never report progress are only subject to the
+ * overall limit.
+ */
+public class ConversionTimeout {
+	private final long defaultMillis;
+	private final long baseMillis;
+	private final double factor;
+	private final long maxMillis;
+	private final long stallMillis;
+
+	/**
+	 * @param defaultMillis the overall limit when the source duration is unknown.
+	 * @param baseMillis fixed allowance added to the duration-derived limit (start-up, muxing, etc).
+	 * @param factor milliseconds allowed per millisecond of source media.
+	 * @param maxMillis upper bound for the overall limit, 0 for no bound.
+	 * @param stallMillis maximum time without progress output, 0 to disable stall detection.
+	 */
+	public ConversionTimeout(long defaultMillis, long baseMillis, double factor, long maxMillis, long stallMillis) {
+		this.defaultMillis = defaultMillis;
+		this.baseMillis = baseMillis;
+		this.factor = factor;
+		this.maxMillis = maxMillis;
+		this.stallMillis = stallMillis;
+	}
+
+	/**
+	 * @param millis the overall limit.
+	 * @return a timeout with a fixed overall limit and no stall detection.
+	 */
+	public static ConversionTimeout fixed(long millis) {
+		return new ConversionTimeout(millis, millis, 0, 0, 0);
+	}
+
+	/**
+	 * @param durationSeconds the duration of the source media in seconds; zero or negative if unknown.
+	 * @return the overall time limit in milliseconds.
+	 */
+	public long limitFor(double durationSeconds) {
+		if (durationSeconds <= 0) {
+			return defaultMillis;
+		}
+		long limit = baseMillis + (long) (durationSeconds * 1000 * factor);
+		if (maxMillis > 0) {
+			limit = Math.min(limit, maxMillis);
+		}
+		return limit;
+	}
+
+	public long getStallMillis() {
+		return stallMillis;
+	}
+}
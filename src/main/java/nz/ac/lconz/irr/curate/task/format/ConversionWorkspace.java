@@ -0,0 +1,205 @@
+package nz.ac.lconz.irr.curate.task.format;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Scratch directory for a single conversion job. All temporary files of the job live inside the workspace directory,
+ * and the whole directory is removed when the workspace is closed -- nothing is left to File.deleteOnExit(), so disk
+ * usage stays bounded in a long-running JVM.
+ *
+ * Before a workspace is handed out, the scratch directory is checked for enough usable space (and, optionally, against
+ * a quota shared by all workspaces in this JVM). Workspaces left behind by a JVM that died mid-job can be removed with
+ * {@link #sweepOrphans(java.io.File, long)}.
+ *
+ * Each workspace holds an exclusive lock on a lock file inside its directory for as long as it is open. The lock is
+ * released by the operating system when the owning JVM dies, so the sweep can tell a long-running job in another JVM
+ * (which still holds its lock, however old its directory looks) from an orphan. File locks may not be reliable on
+ * network file systems; use a local scratch directory.
+ */
+public class ConversionWorkspace implements Closeable {
+	private static final Logger log = Logger.getLogger(ConversionWorkspace.class);
+
+	static final String PREFIX = "conversion-";
+	static final String LOCK_FILE = ".lock";
+	// name prefix of the temp files written by earlier versions of VideoConversionHelper
+	private static final String LEGACY_PREFIX = "VideoConversionSource";
+
+	private static final Set<File> activeDirectories = Collections.synchronizedSet(new HashSet<File>());
+	private static long reservedBytes = 0;
+
+	private final File directory;
+	private final long reservation;
+	private final FileChannel lockChannel;
+	private boolean closed = false;
+
+	private ConversionWorkspace(File directory, long reservation, FileChannel lockChannel) {
+		this.directory = directory;
+		this.reservation = reservation;
+		this.lockChannel = lockChannel;
+	}
+
+	/**
+	 * Create a new workspace inside the given scratch directory.
+	 *
+	 * @param scratchDir the directory in which to create the workspace; created if it doesn't exist yet.
+	 * @param requiredBytes the expected disk usage of the job.
+	 * @param minFreeBytes the number of bytes that must remain usable on the scratch file system once the job's
+	 *                     files have been written.
+	 * @param quotaBytes the maximum number of bytes that all workspaces of this JVM may use together, 0 for no quota.
+	 * @return the new workspace.
+	 * @throws IOException if the workspace cannot be created or if there is not enough space for the job.
+	 */
+	public static ConversionWorkspace create(File scratchDir, long requiredBytes, long minFreeBytes, long quotaBytes) throws IOException {
+		FileUtils.forceMkdir(scratchDir);
+		synchronized (ConversionWorkspace.class) {
+			long usable = scratchDir.getUsableSpace();
+			if (usable - requiredBytes < minFreeBytes) {
+				throw new IOException("Not enough space in scratch directory " + scratchDir + ": need " + requiredBytes
+						                      + " bytes plus " + minFreeBytes + " bytes headroom, only " + usable + " bytes usable");
+			}
+			if (quotaBytes > 0 && reservedBytes + requiredBytes > quotaBytes) {
+				throw new IOException("Scratch quota of " + quotaBytes + " bytes exceeded: " + reservedBytes
+						                      + " bytes in use by running jobs, " + requiredBytes + " bytes requested");
+			}
+			reservedBytes += requiredBytes;
+		}
+
+		File directory = null;
+		FileChannel lockChannel = null;
+		try {
+			directory = Files.createTempDirectory(scratchDir.toPath(), PREFIX).toFile();
+			lockChannel = FileChannel.open(new File(directory, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			if (lockChannel.tryLock() == null) {
+				throw new IOException("Cannot lock new conversion workspace " + directory);
+			}
+		} catch (IOException | RuntimeException e) {
+			closeQuietly(lockChannel);
+			FileUtils.deleteQuietly(directory);
+			release(requiredBytes);
+			throw e;
+		}
+		activeDirectories.add(directory);
+		log.debug("Created conversion workspace " + directory);
+		return new ConversionWorkspace(directory, requiredBytes, lockChannel);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @param name the file name.
+	 * @return a file of the given name inside this workspace. The file itself is not created.
+	 */
+	public File newFile(String name) {
+		return new File(directory, name);
+	}
+
+	/**
+	 * Delete the workspace directory and everything in it.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		// closing the channel releases the lock
+		closeQuietly(lockChannel);
+		if (!FileUtils.deleteQuietly(directory)) {
+			log.warn("Could not delete conversion workspace " + directory + "; it will be removed by the next orphan sweep");
+		}
+		activeDirectories.remove(directory);
+		release(reservation);
+	}
+
+	private static synchronized void release(long bytes) {
+		reservedBytes -= bytes;
+	}
+
+	private static void closeQuietly(FileChannel channel) {
+		if (channel == null) {
+			return;
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.debug("Cannot close workspace lock file", e);
+		}
+	}
+
+	/**
+	 * Remove workspaces (and temp files written by earlier versions of the conversion code) that haven't been modified
+	 * for the given amount of time and that are not in use: not by this JVM, and not by another JVM that still holds
+	 * the workspace's lock.
+	 *
+	 * @param scratchDir the scratch directory to sweep.
+	 * @param maxAgeMillis the minimum age of entries to remove.
+	 * @return the number of entries removed.
+	 */
+	public static int sweepOrphans(File scratchDir, long maxAgeMillis) {
+		File[] candidates = scratchDir.listFiles();
+		if (candidates == null) {
+			return 0;
+		}
+		long cutoff = System.currentTimeMillis() - maxAgeMillis;
+		int removed = 0;
+		for (File candidate : candidates) {
+			String name = candidate.getName();
+			if (!name.startsWith(PREFIX) && !name.startsWith(LEGACY_PREFIX)) {
+				continue;
+			}
+			if (activeDirectories.contains(candidate) || candidate.lastModified() > cutoff) {
+				continue;
+			}
+			File lockFile = new File(candidate, LOCK_FILE);
+			if (!lockFile.isFile()) {
+				// legacy temp file, or a workspace created before workspaces were locked
+				if (deleteOrphan(candidate)) {
+					removed++;
+				}
+				continue;
+			}
+			try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+				FileLock lock = channel.tryLock();
+				if (lock == null) {
+					log.debug("Conversion workspace " + candidate + " is still in use by another process");
+					continue;
+				}
+				// delete while holding the lock; closing the channel releases it
+				if (deleteOrphan(candidate)) {
+					removed++;
+				}
+			} catch (OverlappingFileLockException e) {
+				// locked by this JVM after all
+			} catch (IOException e) {
+				log.warn("Cannot check whether conversion workspace " + candidate + " is in use: " + e.getMessage());
+			}
+		}
+		if (removed > 0) {
+			log.info("Removed " + removed + " orphaned conversion file(s) from " + scratchDir);
+		}
+		return removed;
+	}
+
+	private static boolean deleteOrphan(File candidate) {
+		if (FileUtils.deleteQuietly(candidate)) {
+			return true;
+		}
+		log.warn("Could not remove orphaned conversion file " + candidate);
+		return false;
+	}
+}
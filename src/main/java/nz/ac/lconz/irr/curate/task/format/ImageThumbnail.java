@@ -0,0 +1,178 @@
+package nz.ac.lconz.irr.curate.task.format;
+
+import org.apache.log4j.Logger;
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Bitstream;
+import org.dspace.content.Item;
+import org.dspace.ctask.mediafilter.MediaFilter;
+import org.dspace.curate.Curator;
+import org.dspace.curate.Mutative;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.Iterator;
+
+/**
+ * Creates JPEG thumbnails of images in-process, without ever holding the full-resolution image in memory: the image
+ * dimensions are read from the header first, and the image is then decoded with source subsampling so that the decoded
+ * raster is at most about twice the thumbnail size in each direction. Peak memory is therefore proportional to the
+ * thumbnail rather than to the source, which matters for very large archival scans.
+ *
+ * Any format with an ImageIO reader on the classpath can be thumbnailed; TIFF needs a TIFF plugin such as
+ * jai-imageio. The source is read through ImageIO's disk cache rather than into memory.
+ *
+ * Task options (in addition to the MediaFilter ones, ie source.selector, source.minsize, target.spec, target.policy etc):
+ * - thumbnail.max-width: maximum width of the thumbnail in pixels. Default: 80.
+ * - thumbnail.max-height: maximum height of the thumbnail in pixels. Default: 80.
+ * - thumbnail.quality: JPEG quality of the thumbnail, 1-100. Default: 85.
+ */
+@Mutative
+public class ImageThumbnail extends MediaFilter {
+	private static final Logger log = Logger.getLogger(ImageThumbnail.class);
+
+	private int maxWidth;
+	private int maxHeight;
+	private float quality;
+
+	public ImageThumbnail() {
+	}
+
+	/**
+	 * For tests: a filter with the given settings that doesn't need to be initialised by a curator.
+	 */
+	ImageThumbnail(int maxWidth, int maxHeight, float quality) {
+		this.maxWidth = maxWidth;
+		this.maxHeight = maxHeight;
+		this.quality = quality;
+	}
+
+	@Override
+	public void init(Curator curator, String taskId) throws IOException {
+		super.init(curator, taskId);
+		maxWidth = Math.max(1, taskIntProperty("thumbnail.max-width", 80));
+		maxHeight = Math.max(1, taskIntProperty("thumbnail.max-height", 80));
+		quality = Math.min(100, Math.max(1, taskIntProperty("thumbnail.quality", 85))) / 100f;
+	}
+
+	@Override
+	protected boolean canFilter(Item item, Bitstream bitstream) {
+		return bitstream.getFormat().getMIMEType().startsWith("image/");
+	}
+
+	@Override
+	protected boolean filterBitstream(Item item, Bitstream bitstream) throws AuthorizeException, IOException, SQLException {
+		BufferedImage thumbnail;
+		try (InputStream source = bitstream.retrieve()) {
+			thumbnail = readThumbnail(source);
+		} catch (IOException e) {
+			String message = "Cannot create thumbnail of bitstream " + bitstream.getID() + ": " + e.getMessage();
+			log.warn(message);
+			report(message);
+			return false;
+		}
+		if (thumbnail == null) {
+			String message = "No image reader available for bitstream " + bitstream.getID() + " (" + bitstream.getFormat().getMIMEType() + "), skipping it";
+			log.warn(message);
+			report(message);
+			return false;
+		}
+		return createDerivative(item, bitstream, new ByteArrayInputStream(encodeJpeg(thumbnail)));
+	}
+
+	/**
+	 * Decode the first image of the source at reduced resolution and scale it to thumbnail size.
+	 *
+	 * @return the thumbnail, or null if there is no image reader for the source's format.
+	 */
+	BufferedImage readThumbnail(InputStream source) throws IOException {
+		ImageInputStream in = ImageIO.createImageInputStream(source);
+		if (in == null) {
+			throw new IOException("cannot create image input stream");
+		}
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				return null;
+			}
+			ImageReader reader = readers.next();
+			try {
+				// seek forward only and ignore metadata: we only need the first image's pixels
+				reader.setInput(in, true, true);
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+
+				int subsampling = subsamplingFor(width, height);
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				BufferedImage decoded = reader.read(0, param);
+				log.debug("Decoded " + width + "x" + height + " image at 1/" + subsampling + " as " + decoded.getWidth() + "x" + decoded.getHeight());
+				return scale(decoded);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the largest subsampling factor that still leaves at least twice the thumbnail resolution to scale from.
+	 */
+	int subsamplingFor(int width, int height) {
+		double scale = Math.min((double) maxWidth / width, (double) maxHeight / height);
+		if (scale >= 0.5) {
+			return 1;
+		}
+		return Math.max(1, (int) Math.floor(1 / (scale * 2)));
+	}
+
+	private BufferedImage scale(BufferedImage image) {
+		double scale = Math.min(1, Math.min((double) maxWidth / image.getWidth(), (double) maxHeight / image.getHeight()));
+		int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+		int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+		// draw onto an opaque RGB image, since JPEG has no alpha channel
+		BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = thumbnail.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			graphics.setColor(Color.WHITE);
+			graphics.fillRect(0, 0, width, height);
+			graphics.drawImage(image, 0, 0, width, height, null);
+		} finally {
+			graphics.dispose();
+		}
+		return thumbnail;
+	}
+
+	private byte[] encodeJpeg(BufferedImage image) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return bytes.toByteArray();
+	}
+}
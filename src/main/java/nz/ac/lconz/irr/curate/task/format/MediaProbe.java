@@ -0,0 +1,141 @@
+package nz.ac.lconz.irr.curate.task.format;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * What a probe command found out about a media file: container, codecs, resolution, bitrate and duration. Built from
+ * the output of ffprobe -print_format json -show_format -show_streams; a probe command that only prints the duration
+ * (in seconds) is understood too, in which case everything but the duration is unknown.
+ */
+public class MediaProbe {
+	private static final Logger log = Logger.getLogger(MediaProbe.class);
+
+	private String formatName;
+	private String videoCodec;
+	private String audioCodec;
+	private int width = -1;
+	private int height = -1;
+	private long bitRate = -1;
+	private double duration = -1;
+
+	private MediaProbe() {
+	}
+
+	/**
+	 * @param output the output of the probe command.
+	 * @return the probe result, or null if the output cannot be understood.
+	 */
+	public static MediaProbe parse(String output) {
+		if (output == null) {
+			return null;
+		}
+		output = output.trim();
+		MediaProbe probe = new MediaProbe();
+		if (!output.startsWith("{")) {
+			probe.duration = parseDouble(output.split("\\s+")[0]);
+			return probe.duration > 0 ? probe : null;
+		}
+
+		JsonNode root;
+		try {
+			root = new ObjectMapper().readTree(output);
+		} catch (IOException e) {
+			log.warn("Cannot parse probe output: " + e.getMessage());
+			return null;
+		}
+		JsonNode format = root.path("format");
+		probe.formatName = textOrNull(format.path("format_name"));
+		probe.duration = parseDouble(format.path("duration").asText());
+		probe.bitRate = (long) parseDouble(format.path("bit_rate").asText());
+		for (JsonNode stream : root.path("streams")) {
+			String codecType = stream.path("codec_type").asText();
+			if ("video".equals(codecType) && probe.videoCodec == null) {
+				probe.videoCodec = textOrNull(stream.path("codec_name"));
+				probe.width = stream.path("width").asInt(-1);
+				probe.height = stream.path("height").asInt(-1);
+			} else if ("audio".equals(codecType) && probe.audioCodec == null) {
+				probe.audioCodec = textOrNull(stream.path("codec_name"));
+			}
+		}
+		return probe;
+	}
+
+	private static String textOrNull(JsonNode node) {
+		if (node == null || node.isMissingNode()) {
+			return null;
+		}
+		String text = node.asText();
+		return "".equals(text) ? null : text;
+	}
+
+	private static double parseDouble(String value) {
+		if (value == null || "".equals(value)) {
+			return -1;
+		}
+		try {
+			return Double.parseDouble(value);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the comma-separated demuxer names reported by the probe (eg mov,mp4,m4a,3gp,3g2,mj2), or null if unknown.
+	 */
+	public String getFormatName() {
+		return formatName;
+	}
+
+	/**
+	 * @return the codec of the first video stream, or null if there is none or it is unknown.
+	 */
+	public String getVideoCodec() {
+		return videoCodec;
+	}
+
+	/**
+	 * @return the codec of the first audio stream, or null if there is none or it is unknown.
+	 */
+	public String getAudioCodec() {
+		return audioCodec;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the overall bitrate in bits per second, or -1 if unknown.
+	 */
+	public long getBitRate() {
+		return bitRate;
+	}
+
+	/**
+	 * @return the duration in seconds, or -1 if unknown.
+	 */
+	public double getDuration() {
+		return duration;
+	}
+
+	/**
+	 * @return whether the probe reported stream details (rather than just a duration).
+	 */
+	public boolean hasStreamInfo() {
+		return videoCodec != null || audioCodec != null;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("format=%s video=%s %dx%d audio=%s bitrate=%d duration=%.1fs",
+				                    formatName, videoCodec, width, height, audioCodec, bitRate, duration);
+	}
+}
@@ -0,0 +1,60 @@
+package nz.ac.lconz.irr.curate.task.format;
+
+import java.util.Set;
+
+/**
+ * Decides, based on a probe of the source, whether an access copy needs a full transcode, whether copying the streams
+ * into a new container (remux) is enough, or whether the source can serve as access copy as it is.
+ */
+public class PassthroughRules {
+	public enum Decision { SKIP, REMUX, TRANSCODE }
+
+	private final Set<String> mimeTypes;
+	private final Set<String> videoCodecs;
+	private final Set<String> audioCodecs;
+	private final int maxHeight;
+	private final long maxBitRate;
+
+	/**
+	 * @param mimeTypes MIME types of sources whose container is acceptable as is.
+	 * @param videoCodecs acceptable video codecs (as named by the probe, eg h264).
+	 * @param audioCodecs acceptable audio codecs (as named by the probe, eg aac); sources without audio are acceptable.
+	 * @param maxHeight maximum acceptable frame height, 0 for no limit.
+	 * @param maxBitRate maximum acceptable overall bitrate in bits per second, 0 for no limit.
+	 */
+	public PassthroughRules(Set<String> mimeTypes, Set<String> videoCodecs, Set<String> audioCodecs, int maxHeight, long maxBitRate) {
+		this.mimeTypes = mimeTypes;
+		this.videoCodecs = videoCodecs;
+		this.audioCodecs = audioCodecs;
+		this.maxHeight = maxHeight;
+		this.maxBitRate = maxBitRate;
+	}
+
+	/**
+	 * @param mimeType the MIME type of the source bitstream.
+	 * @param probe the probe result for the source; may be null.
+	 * @param canRemux whether a remux command is configured.
+	 * @return what needs to be done to get an access copy of the source.
+	 */
+	public Decision decide(String mimeType, MediaProbe probe, boolean canRemux) {
+		if (probe == null || !probe.hasStreamInfo()) {
+			return Decision.TRANSCODE;
+		}
+		if (probe.getVideoCodec() == null || !videoCodecs.contains(probe.getVideoCodec())) {
+			return Decision.TRANSCODE;
+		}
+		if (probe.getAudioCodec() != null && !audioCodecs.contains(probe.getAudioCodec())) {
+			return Decision.TRANSCODE;
+		}
+		if (maxHeight > 0 && (probe.getHeight() < 0 || probe.getHeight() > maxHeight)) {
+			return Decision.TRANSCODE;
+		}
+		if (maxBitRate > 0 && (probe.getBitRate() < 0 || probe.getBitRate() > maxBitRate)) {
+			return Decision.TRANSCODE;
+		}
+		if (mimeTypes.contains(mimeType)) {
+			return Decision.SKIP;
+		}
+		return canRemux ? Decision.REMUX : Decision.TRANSCODE;
+	}
+}
@@ -0,0 +1,80 @@
+package nz.ac.lconz.irr.curate.task.format;
+
+import org.apache.log4j.Logger;
+import org.dspace.content.Bitstream;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * State file of the bitstreams that a filter looked at but deliberately left without a derivative, so that reruns can
+ * skip them. Each line holds a bitstream id and a key (eg the checksum of the bitstream plus a signature of the settings
+ * that led to the decision); later lines override earlier ones. A bitstream only counts as recorded while its key is
+ * unchanged, so changed content or settings get it looked at again.
+ *
+ * Entries are appended as they are recorded, so that they survive even if the task is interrupted later.
+ */
+public class RecordedBitstreams {
+	private static final Logger log = Logger.getLogger(RecordedBitstreams.class);
+
+	private final File file;
+	private final Map<Integer, String> keys = new HashMap<>();
+
+	private RecordedBitstreams(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Read the given state file; a missing file counts as empty.
+	 */
+	public static RecordedBitstreams read(File file) throws IOException {
+		RecordedBitstreams recorded = new RecordedBitstreams(file);
+		if (!file.exists()) {
+			return recorded;
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				try {
+					recorded.keys.put(Integer.parseInt(line.substring(0, tab)), line.substring(tab + 1));
+				} catch (NumberFormatException | IndexOutOfBoundsException e) {
+					log.warn("Ignoring invalid line in state file " + file + ": " + line);
+				}
+			}
+		}
+		return recorded;
+	}
+
+	/**
+	 * @return whether the bitstream has been recorded with the given key.
+	 */
+	public boolean contains(Bitstream bitstream, String key) {
+		return key.equals(keys.get(bitstream.getID()));
+	}
+
+	/**
+	 * Record the bitstream with the given key, unless it already is.
+	 */
+	public void add(Bitstream bitstream, String key) throws IOException {
+		if (contains(bitstream, key)) {
+			return;
+		}
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory for state file " + file);
+		}
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8")) {
+			writer.write(bitstream.getID() + "\t" + key + "\n");
+		}
+		keys.put(bitstream.getID(), key);
+	}
+}
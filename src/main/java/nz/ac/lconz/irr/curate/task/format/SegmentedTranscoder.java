@@ -0,0 +1,170 @@
+package nz.ac.lconz.irr.curate.task.format;
+
+import org.apache.commons.exec.CommandLine;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transcodes a long source in parallel: the source is split at keyframes into segments without re-encoding, the
+ * segments are transcoded by concurrently running converter processes, and the transcoded segments are concatenated
+ * without re-encoding.
+ *
+ * The three commands use ${infile} and ${outfile} like the single-pass conversion command; the split command also gets
+ * ${segmentlength} (in seconds) and ${segmentpattern} (the segment file name pattern without extension, in ffmpeg
+ * printf syntax), and must write the segments into the workspace; the concat command gets ${listfile}, a file in
+ * ffmpeg concat demuxer syntax that lists the transcoded segments in order. Examples:
+ * split: ffmpeg -y -i ${infile} -map 0 -c copy -f segment -segment_time ${segmentlength} -reset_timestamps 1 ${segmentpattern}.mkv
+ * concat: ffmpeg -y -f concat -safe 0 -i ${listfile} -c copy -movflags +faststart ${outfile}
+ */
+public class SegmentedTranscoder {
+	private static final Logger log = Logger.getLogger(SegmentedTranscoder.class);
+
+	static final String SEGMENT_PREFIX = "segment-";
+
+	private final VideoConversionHelper helper;
+	private final int parallelism;
+	private final int segmentLength;
+
+	/**
+	 * @param helper the helper used to run the converter processes.
+	 * @param parallelism the maximum number of segments transcoded at the same time.
+	 * @param segmentLength the target length of a segment in seconds; actual segments end at the next keyframe.
+	 */
+	public SegmentedTranscoder(VideoConversionHelper helper, int parallelism, int segmentLength) {
+		this.helper = helper;
+		this.parallelism = parallelism;
+		this.segmentLength = segmentLength;
+	}
+
+	/**
+	 * @param splitCommand the command that splits ${infile} into segments.
+	 * @param transcodeCommand the command that transcodes one segment ${infile} into ${outfile}.
+	 * @param concatCommand the command that concatenates the segments listed in ${listfile} into ${outfile}.
+	 * @param workspace the workspace of the job.
+	 * @param inFile the source file.
+	 * @param outFile the file to write the final result to.
+	 * @param timeout the time limits; applied to the split and concat steps with the full source duration and to
+	 *                each segment with the segment length.
+	 * @param duration the duration of the source in seconds, if known.
+	 * @param splitVariables additional variables for the split command, eg for outputs that the split step writes
+	 *                       alongside the segments since it decodes the whole source anyway; may be empty.
+	 * @return whether all steps succeeded.
+	 * @throws Exception if a converter process cannot be started.
+	 */
+	public boolean transcode(String splitCommand, final String transcodeCommand, String concatCommand,
+	                         final ConversionWorkspace workspace, File inFile, File outFile,
+	                         final ConversionTimeout timeout, double duration,
+	                         Map<String, File> splitVariables) throws Exception {
+		Map<String, Object> map = new HashMap<>();
+		map.putAll(splitVariables);
+		map.put("infile", inFile);
+		map.put("segmentlength", String.valueOf(segmentLength));
+		map.put("segmentpattern", SEGMENT_PREFIX + "%03d");
+		if (helper.run(CommandLine.parse(splitCommand, map), workspace, timeout, new ConversionProgress(), duration) != 0) {
+			log.warn("Splitting " + inFile + " into segments failed");
+			return false;
+		}
+
+		List<File> segments = listSegments(workspace);
+		if (segments.isEmpty()) {
+			log.warn("Splitting " + inFile + " didn't produce any segments");
+			return false;
+		}
+		log.info("Transcoding " + segments.size() + " segments of " + inFile + " with up to " + parallelism + " processes");
+
+		List<Future<Integer>> results = new ArrayList<>();
+		final List<File> transcoded = new ArrayList<>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, segments.size()));
+		try {
+			for (final File segment : segments) {
+				final File segmentOut = new File(segment.getPath() + ".out" + extensionOf(outFile));
+				transcoded.add(segmentOut);
+				results.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						Map<String, Object> segmentMap = new HashMap<>();
+						segmentMap.put("infile", segment);
+						segmentMap.put("outfile", segmentOut);
+						return helper.run(CommandLine.parse(transcodeCommand, segmentMap), workspace, timeout, new ConversionProgress(), segmentLength);
+					}
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				int status;
+				try {
+					status = results.get(i).get();
+				} catch (ExecutionException e) {
+					log.warn("Transcoding segment " + segments.get(i) + " failed", e.getCause());
+					status = -1;
+				}
+				if (status != 0) {
+					log.warn("Transcoding segment " + segments.get(i) + " failed with status " + status);
+					// don't start any more segments; the ones already running are left to finish (or time out)
+					for (Future<Integer> result : results) {
+						result.cancel(false);
+					}
+					return false;
+				}
+			}
+		} finally {
+			executor.shutdown();
+			// the workspace is deleted once we return, so wait for converters that are still writing into it
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				log.info("Waiting for segment transcodes of " + inFile + " to finish");
+			}
+		}
+
+		File listFile = workspace.newFile("segments.txt");
+		try (Writer writer = new OutputStreamWriter(new FileOutputStream(listFile), "UTF-8")) {
+			for (File segmentOut : transcoded) {
+				writer.write("file '" + segmentOut.getAbsolutePath().replace("'", "'\\''") + "'\n");
+			}
+		}
+		map = new HashMap<>();
+		map.put("listfile", listFile);
+		map.put("outfile", outFile);
+		if (helper.run(CommandLine.parse(concatCommand, map), workspace, timeout, new ConversionProgress(), duration) != 0) {
+			log.warn("Concatenating the transcoded segments of " + inFile + " failed");
+			return false;
+		}
+		return true;
+	}
+
+	private static List<File> listSegments(ConversionWorkspace workspace) throws IOException {
+		File[] files = workspace.getDirectory().listFiles();
+		if (files == null) {
+			throw new IOException("Cannot list workspace " + workspace.getDirectory());
+		}
+		List<File> segments = new ArrayList<>();
+		for (File file : files) {
+			if (file.getName().startsWith(SEGMENT_PREFIX)) {
+				segments.add(file);
+			}
+		}
+		// segment names are zero-padded, so name order is playback order
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private static String extensionOf(File file) {
+		String name = file.getName();
+		int dot = name.lastIndexOf('.');
+		return dot >= 0 ? name.substring(dot) : "";
+	}
+}
@@ -0,0 +1,315 @@
+package nz.ac.lconz.irr.curate.task.format;
+
+import org.apache.log4j.Logger;
+import org.apache.tika.config.TikaConfig;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.dspace.authorize.AuthorizeException;
+import org.dspace.content.Bitstream;
+import org.dspace.content.Item;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
+import org.dspace.ctask.mediafilter.MediaFilter;
+import org.dspace.curate.Curator;
+import org.dspace.curate.Mutative;
+import org.xml.sax.SAXException;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts full text with Tika. The text is streamed from the parser into a spool file in a conversion workspace and
+ * from there into the target bitstream, so it is never held in memory as a whole. Extraction stops once the configured
+ * number of characters has been written (the text extracted so far is kept), and is abandoned if it takes longer than
+ * the configured time.
+ *
+ * All instances share one Tika configuration and parser, which are thread-safe. Only the formats whose parsers are on
+ * the classpath (eg via tika-parsers) can be extracted; restrict the source formats accordingly.
+ *
+ * Task options (in addition to the MediaFilter ones):
+ * - text.max-chars: maximum number of characters to extract, -1 for no limit. Default: 1000000.
+ * - text.timeout: maximum time (in seconds) for extracting the text of one bitstream. Default: 300.
+ * - text.stop-grace: time (in seconds) that an abandoned extraction is given to stop. A parser thread that is still
+ *   running after this counts as stuck, and no new extractions are started once all threads are stuck. Default: 30.
+ * - text.mimetypes: comma-separated list of MIME types to extract text from when source.formats is not set; a
+ *   trailing * matches any subtype, eg text/*. Default: text, PDF, RTF, Microsoft Office, OpenDocument, XHTML, XML and
+ *   EPUB types.
+ * - text.state.file: file in which the bitstreams that yielded no text are recorded with their checksum, so that reruns
+ *   skip them (unless filter.force is set or the content changes). Default: [dspace.dir]/var/[task id].empty
+ * - scratch.dir: directory in which the spool files are created. Default: java.io.tmpdir.
+ * - scratch.min-free: disk space (in MB) that must remain free in the scratch directory. Default: 1024.
+ */
+@Mutative
+public class TextExtraction extends MediaFilter {
+	private static final Logger log = Logger.getLogger(TextExtraction.class);
+
+	private static final Parser parser = new AutoDetectParser(TikaConfig.getDefaultConfig());
+
+	private static final String DEFAULT_MIMETYPES = "text/*, application/pdf, application/rtf, application/msword, "
+			                                               + "application/vnd.ms-excel, application/vnd.ms-powerpoint, "
+			                                               + "application/vnd.openxmlformats-officedocument.*, "
+			                                               + "application/vnd.oasis.opendocument.*, application/xhtml+xml, "
+			                                               + "application/xml, application/epub+zip";
+
+	private static final int MAX_EXTRACTORS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	// runs the parsers, so that a parser stuck on a pathological document can be abandoned
+	private static final ThreadPoolExecutor extractors = new ThreadPoolExecutor(MAX_EXTRACTORS, MAX_EXTRACTORS,
+			                                                                          60, TimeUnit.SECONDS,
+			                                                                          new LinkedBlockingQueue<Runnable>(),
+			                                                                          new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "text-extraction");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	static {
+		extractors.allowCoreThreadTimeOut(true);
+	}
+
+	// parser threads that were abandoned and haven't stopped yet
+	private static final AtomicInteger stuckExtractors = new AtomicInteger();
+
+	// states of a single extraction
+	private static final int QUEUED = 0;
+	private static final int RUNNING = 1;
+	private static final int DONE = 2;
+	private static final int STUCK = 3;
+
+	private int maxChars;
+	private long timeoutMillis;
+	private long stopGraceMillis;
+	private List<String> mimeTypes;
+	private RecordedBitstreams recordedEmpty;
+	private File scratchDir;
+	private long minFreeBytes;
+
+	@Override
+	public void init(Curator curator, String taskId) throws IOException {
+		super.init(curator, taskId);
+		maxChars = taskIntProperty("text.max-chars", 1000000);
+		timeoutMillis = taskLongProperty("text.timeout", 300) * 1000;
+		stopGraceMillis = taskLongProperty("text.stop-grace", 30) * 1000;
+
+		String mimeTypesProperty = taskProperty("text.mimetypes");
+		if (mimeTypesProperty == null || "".equals(mimeTypesProperty.trim())) {
+			mimeTypesProperty = DEFAULT_MIMETYPES;
+		}
+		mimeTypes = new ArrayList<>();
+		for (String mimeType : mimeTypesProperty.trim().split(",\\s*")) {
+			if (!"".equals(mimeType)) {
+				mimeTypes.add(mimeType.toLowerCase());
+			}
+		}
+
+		String stateFileProperty = taskProperty("text.state.file");
+		if (stateFileProperty == null || "".equals(stateFileProperty)) {
+			stateFileProperty = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + taskId + ".empty";
+		}
+		recordedEmpty = RecordedBitstreams.read(new File(stateFileProperty));
+
+		String scratchDirProperty = taskProperty("scratch.dir");
+		if (scratchDirProperty == null || "".equals(scratchDirProperty)) {
+			scratchDirProperty = System.getProperty("java.io.tmpdir");
+		}
+		scratchDir = new File(scratchDirProperty);
+		minFreeBytes = taskLongProperty("scratch.min-free", 1024) * 1024 * 1024;
+	}
+
+	@Override
+	protected boolean canFilter(Item item, Bitstream bitstream) {
+		if (!sourceFormats.isEmpty()) {
+			// source.formats has already decided
+			return true;
+		}
+		String mimeType = bitstream.getFormat().getMIMEType();
+		if (mimeType == null) {
+			return false;
+		}
+		mimeType = mimeType.toLowerCase();
+		for (String accepted : mimeTypes) {
+			if (accepted.endsWith("*") ? mimeType.startsWith(accepted.substring(0, accepted.length() - 1)) : mimeType.equals(accepted)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	protected boolean targetExists(Context context, Item item, Bitstream bitstream) throws SQLException {
+		return super.targetExists(context, item, bitstream) || recordedEmpty.contains(bitstream, bitstream.getChecksum());
+	}
+
+	@Override
+	protected boolean filterBitstream(Item item, Bitstream bitstream) throws AuthorizeException, IOException, SQLException {
+		// UTF-8 needs at most three bytes per char of the BMP
+		long requiredBytes = maxChars >= 0 ? maxChars * 3L : bitstream.getSize();
+		ConversionWorkspace workspace;
+		try {
+			workspace = ConversionWorkspace.create(scratchDir, requiredBytes, minFreeBytes, 0);
+		} catch (IOException e) {
+			String message = "Cannot extract text of bitstream " + bitstream.getID() + ": " + e.getMessage();
+			log.warn(message);
+			report(message);
+			return false;
+		}
+
+		try {
+			File textFile = workspace.newFile("extracted.txt");
+			if (!extract(bitstream, textFile)) {
+				return false;
+			}
+			if (textFile.length() == 0) {
+				report("No text found in bitstream " + bitstream.getID());
+				recordedEmpty.add(bitstream, bitstream.getChecksum());
+				return true;
+			}
+			// createDerivative closes the stream; the file itself goes away with the workspace
+			return createDerivative(item, bitstream, new FileInputStream(textFile));
+		} finally {
+			workspace.close();
+		}
+	}
+
+	/**
+	 * Extract the text of the given bitstream into the given file.
+	 *
+	 * @return whether the extraction succeeded (possibly stopping at the character limit).
+	 * @throws IOException if an abandoned parser doesn't stop, or if too many earlier ones are still stuck.
+	 */
+	private boolean extract(final Bitstream bitstream, File textFile) throws IOException, SQLException, AuthorizeException {
+		final InputStream source = bitstream.retrieve();
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(textFile), "UTF-8"));
+		final WriteOutContentHandler handler = new WriteOutContentHandler(writer, maxChars);
+		final Metadata metadata = new Metadata();
+		metadata.set(Metadata.RESOURCE_NAME_KEY, bitstream.getName());
+		metadata.set(Metadata.CONTENT_TYPE, bitstream.getFormat().getMIMEType());
+
+		if (stuckExtractors.get() >= MAX_EXTRACTORS) {
+			source.close();
+			writer.close();
+			throw new IOException("All " + MAX_EXTRACTORS + " text extraction threads are stuck on earlier bitstreams, cannot extract text");
+		}
+
+		final AtomicInteger state = new AtomicInteger(QUEUED);
+		final CountDownLatch finished = new CountDownLatch(1);
+		Future<Boolean> result = extractors.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws Exception {
+				if (!state.compareAndSet(QUEUED, RUNNING)) {
+					return false;
+				}
+				ParseContext context = new ParseContext();
+				// extract the text of embedded documents too
+				context.set(Parser.class, parser);
+				try {
+					parser.parse(source, new BodyContentHandler(handler), metadata, context);
+					return false;
+				} catch (SAXException e) {
+					if (handler.isWriteLimitReached(e)) {
+						return true;
+					}
+					throw e;
+				} finally {
+					writer.close();
+					if (!state.compareAndSet(RUNNING, DONE)) {
+						stuckExtractors.decrementAndGet();
+						log.info("Abandoned text extraction of bitstream " + bitstream.getID() + " has stopped after all");
+					}
+					finished.countDown();
+				}
+			}
+		});
+
+		try {
+			if (result.get(timeoutMillis, TimeUnit.MILLISECONDS)) {
+				report("Extracted text of bitstream " + bitstream.getID() + " truncated at " + maxChars + " characters");
+			}
+			return true;
+		} catch (TimeoutException e) {
+			String message = "Text extraction of bitstream " + bitstream.getID() + " exceeded time limit of " + timeoutMillis / 1000 + "s, abandoned it";
+			log.warn(message);
+			report(message);
+			abandon(bitstream, result, state, finished, source, writer);
+			return false;
+		} catch (ExecutionException e) {
+			String message = "Cannot extract text of bitstream " + bitstream.getID() + ": " + e.getCause().getMessage();
+			log.warn(message, e.getCause());
+			report(message);
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			abandon(bitstream, result, state, finished, source, writer);
+			return false;
+		} finally {
+			source.close();
+		}
+	}
+
+	/**
+	 * Stop an extraction: interrupt the parser (which most parsers ignore) and close its input and output (which most
+	 * parsers don't), then give it the grace period to finish.
+	 *
+	 * @throws IOException if the parser thread is still running after the grace period.
+	 */
+	private void abandon(Bitstream bitstream, Future<Boolean> result, AtomicInteger state, CountDownLatch finished,
+	                     Closeable source, Closeable writer) throws IOException {
+		result.cancel(true);
+		if (state.compareAndSet(QUEUED, DONE)) {
+			// never started
+			closeQuietly(writer);
+			return;
+		}
+		closeQuietly(source);
+		closeQuietly(writer);
+		boolean stopped;
+		try {
+			stopped = finished.await(stopGraceMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			stopped = false;
+		}
+		if (!stopped && state.compareAndSet(RUNNING, STUCK)) {
+			int stuck = stuckExtractors.incrementAndGet();
+			String message = "Text extraction thread for bitstream " + bitstream.getID() + " did not stop within "
+					                 + stopGraceMillis / 1000 + "s of being abandoned (" + stuck + " stuck), giving up";
+			log.error(message);
+			throw new IOException(message);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			log.debug("Cannot close stream of abandoned text extraction", e);
+		}
+	}
+}
@@ -1,23 +1,113 @@
 package nz.ac.lconz.irr.curate.task.format;
 
 import org.apache.commons.exec.CommandLine;
-import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.content.Bitstream;
 import org.dspace.content.Item;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Context;
 import org.dspace.ctask.mediafilter.MediaFilter;
+import org.dspace.curate.Curator;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 
 /**
+ * Task options (in addition to the MediaFilter ones):
+ * - command: the conversion command line; ${infile} and ${outfile} (or %{infile} and %{outfile}) are replaced with the
+ *   names of the source and target files.
+ * - target.suffix: the suffix to append to the name of the source file to get the name of the target file.
+ * - scratch.dir: directory in which conversion workspaces are created. Default: java.io.tmpdir.
+ * - scratch.min-free: disk space (in MB) that must remain free in the scratch directory while a job runs. Default: 1024.
+ * - scratch.quota: maximum disk space (in MB) used by all concurrently running jobs, 0 for no quota. Default: 0.
+ * - scratch.size-factor: expected disk usage of a job, as a multiple of the source size. Default: 2.
+ * - scratch.orphan-age: age (in hours) after which workspaces left behind by a previous JVM are removed. Default: 24.
+ * - probe.command: command line that prints information about ${infile} as ffprobe JSON, eg
+ *   ffprobe -v error -print_format json -show_format -show_streams ${infile}
+ *   or just its duration in seconds. If not set, the duration reported by the converter itself is used.
+ * - timeout.default: time limit (in seconds) for a conversion when the source duration is unknown. Default: 600.
+ * - timeout.base: fixed allowance (in seconds) added to the duration-based time limit. Default: 300.
+ * - timeout.factor: seconds allowed per second of source media. Default: 2.
+ * - timeout.max: upper bound (in seconds) for the time limit, 0 for none. Default: 0.
+ * - timeout.stall: seconds without progress output after which the converter is killed, 0 to disable. Only applies
+ *   once the converter has printed ffmpeg-style progress, so commands run with -nostats or -loglevel quiet (or other
+ *   converters) are only subject to the overall limit. Default: 300.
+ *
+ * Probe-first mode: if passthrough.video-codecs is set (requires a JSON probe.command), sources that already meet the
+ * access requirements are not transcoded. If the container is acceptable too, nothing needs to be done; otherwise the
+ * streams are copied into a new container with remux.command.
+ * - passthrough.video-codecs: comma-separated list of acceptable video codecs, eg h264.
+ * - passthrough.audio-codecs: comma-separated list of acceptable audio codecs, eg aac. Default: aac.
+ * - passthrough.mimetypes: comma-separated list of MIME types whose container is acceptable. Default: video/mp4.
+ * - passthrough.max-height: maximum acceptable frame height, 0 for no limit. Default: 0.
+ * - passthrough.max-bitrate: maximum acceptable overall bitrate in bits per second, 0 for no limit. Default: 0.
+ * - passthrough.copy: true|false Whether to store a copy of an acceptable source as its access version, rather than
+ *   creating no derivative at all. Default: false.
+ * - remux.command: command line to copy the streams of ${infile} into ${outfile}, eg
+ *   ffmpeg -y -i ${infile} -c copy -movflags +faststart ${outfile}
+ *   If not set, sources with an unacceptable container are transcoded.
+ * - passthrough.state.file: file in which the sources that were left as they are (without passthrough.copy) are
+ *   recorded with their checksum, so that reruns don't probe them again. Default: [dspace.dir]/var/[task id].skipped
+ * In probe-first mode, the source is first probed by feeding it to probe.command on its standard input (${infile} is
+ * set to pipe:0), and is only copied to the scratch directory if it needs converting or thumbnails. Recorded sources
+ * are probed again if their checksum or the passthrough settings change, or with filter.force.
+ * Probe-first mode does not apply to rendition ladders.
+ *
+ * Segment-parallel mode: if segment.min-duration is set, sources at least that long (according to the probe) that need
+ * a full transcode are split at keyframes, the segments are transcoded in parallel with command, and the results are
+ * concatenated. See SegmentedTranscoder for the split and concat commands. Segments need extra scratch space, so
+ * consider raising scratch.size-factor.
+ * - segment.min-duration: minimum source duration (in seconds) for segment-parallel transcoding, 0 to disable.
+ *   Default: 0.
+ * - segment.length: target segment length in seconds. Default: 300.
+ * - segment.parallelism: maximum number of segments transcoded at the same time. Default: a quarter of the available
+ *   processors (converters use several threads each).
+ * - segment.split.command: command line that splits ${infile} into segments.
+ * - segment.concat.command: command line that concatenates the segments listed in ${listfile} into ${outfile}.
+ *
+ * Rendition ladder mode: if renditions is set, the source is decoded once by a single converter invocation that writes
+ * all renditions, and each rendition is attached as its own derivative.
+ * - renditions: comma-separated list of rendition names (word characters and dashes only), eg 360p, 720p, audio.
+ * - renditions.command: the input part of the command line, eg ffmpeg -y -i ${infile}. Used instead of command.
+ *   Required; if it is not set, renditions is ignored.
+ * - rendition.[name].args: the output options of the rendition, including ${outfile}.
+ * - rendition.[name].suffix: suffix of the rendition's output file. Default: .[name]
+ * - rendition.[name].spec: target spec (bundle/name spec) of the rendition. Default: target.spec, with the name spec
+ *   $src.[name].$ext
+ * - rendition.[name].format: bitstream format of the rendition. Default: target.format.
+ * - rendition.[name].description: description of the rendition. Default: target.description.
+ *
+ * Thumbnails: if thumbnails is set, still images such as a poster frame or a sprite sheet for scrub previews are written
+ * by the same converter invocation that produces the access version (or renditions), so the source is decoded only
+ * once. In segment-parallel mode they are written by the split step; a split command that only copies streams (such
+ * as the -c copy example) then has to decode the whole source as well, which makes the split step much slower. Sources
+ * that need no conversion at all get their thumbnails from a separate invocation of thumbnails.command.
+ * - thumbnails: comma-separated list of thumbnail names (word characters and dashes only), eg poster, sprite.
+ * - thumbnails.command: the input part of the command line used when the source is not converted, eg
+ *   ffmpeg -y -i ${infile}. If not set, such sources get no thumbnails.
+ * - thumbnail.[name].args: the output options of the thumbnail, including ${outfile}, eg
+ *   -ss 5 -frames:v 1 -update 1 -q:v 3 ${outfile}
+ *   for a poster frame, or
+ *   -an -vf fps=1/10,scale=160:-2,tile=10x10 -frames:v 1 -update 1 -q:v 5 ${outfile}
+ *   for a sprite sheet with one frame every ten seconds.
+ * - thumbnail.[name].suffix: suffix of the thumbnail's output file. Default: .[name].jpg
+ * - thumbnail.[name].spec: target spec (bundle/name spec) of the thumbnail. Default: THUMBNAIL/$src.[name].$ext
+ * - thumbnail.[name].format: bitstream format of the thumbnail. Default: JPEG.
+ * - thumbnail.[name].description: description of the thumbnail. Default: target.description.
+ * Thumbnails get their policies according to target.policy, like the access version.
+ *
  * @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ Institutional Research Repositories
  */
 public class VideoAccessVersion extends MediaFilter {
@@ -25,6 +115,177 @@ public class VideoAccessVersion extends MediaFilter {
 
 	private static final VideoConversionHelper helper = new VideoConversionHelper();
 
+	private File scratchDir;
+	private long minFreeBytes;
+	private long quotaBytes;
+	private int sizeFactor;
+	private ConversionTimeout timeout;
+	private List<ConversionOutput> renditions;
+	private List<ConversionOutput> thumbnails;
+	private PassthroughRules passthroughRules;
+	private boolean passthroughCopy;
+	private String passthroughSignature;
+	// sources recorded as usable as they are, with their checksum and the passthrough settings
+	private RecordedBitstreams recordedSkips;
+
+	private int segmentMinDuration;
+	private SegmentedTranscoder segmentedTranscoder;
+
+	private int numSkipped = 0;
+	private int numRemuxed = 0;
+	private double avoidedSeconds = 0;
+
+	@Override
+	public void init(Curator curator, String taskId) throws IOException {
+		super.init(curator, taskId);
+
+		String scratchDirProperty = taskProperty("scratch.dir");
+		if (scratchDirProperty == null || "".equals(scratchDirProperty)) {
+			scratchDirProperty = System.getProperty("java.io.tmpdir");
+		}
+		scratchDir = new File(scratchDirProperty);
+		minFreeBytes = taskLongProperty("scratch.min-free", 1024) * 1024 * 1024;
+		quotaBytes = taskLongProperty("scratch.quota", 0) * 1024 * 1024;
+		sizeFactor = taskIntProperty("scratch.size-factor", 2);
+
+		long orphanAgeMillis = taskLongProperty("scratch.orphan-age", 24) * 60 * 60 * 1000;
+		ConversionWorkspace.sweepOrphans(scratchDir, orphanAgeMillis);
+
+		double timeoutFactor = 2;
+		String factorProperty = taskProperty("timeout.factor");
+		if (factorProperty != null && !"".equals(factorProperty)) {
+			try {
+				timeoutFactor = Double.parseDouble(factorProperty);
+			} catch (NumberFormatException e) {
+				log.warn("Invalid value for timeout.factor, using default: " + factorProperty);
+			}
+		}
+		timeout = new ConversionTimeout(taskLongProperty("timeout.default", VideoConversionHelper.DEFAULT_TIMEOUT / 1000) * 1000,
+				                               taskLongProperty("timeout.base", 300) * 1000,
+				                               timeoutFactor,
+				                               taskLongProperty("timeout.max", 0) * 1000,
+				                               taskLongProperty("timeout.stall", 300) * 1000);
+
+		renditions = new ArrayList<>();
+		for (String name : taskSetProperty("renditions", null)) {
+			ConversionOutput rendition = readOutput("rendition." + name, name, null, "." + name, null);
+			if (rendition != null) {
+				renditions.add(rendition);
+			}
+		}
+		if (!renditions.isEmpty() && isBlank(taskProperty("renditions.command"))) {
+			log.warn("Renditions need renditions.command; ignoring renditions");
+			renditions.clear();
+		}
+		thumbnails = new ArrayList<>();
+		for (String name : taskSetProperty("thumbnails", null)) {
+			ConversionOutput thumbnail = readOutput("thumbnail." + name, name, "THUMBNAIL", "." + name + ".jpg", "JPEG");
+			if (thumbnail != null) {
+				thumbnails.add(thumbnail);
+			}
+		}
+
+		Set<String> videoCodecs = taskSetProperty("passthrough.video-codecs", null);
+		if (!videoCodecs.isEmpty()) {
+			passthroughRules = new PassthroughRules(taskSetProperty("passthrough.mimetypes", "video/mp4"),
+					                                       videoCodecs,
+					                                       taskSetProperty("passthrough.audio-codecs", "aac"),
+					                                       taskIntProperty("passthrough.max-height", 0),
+					                                       taskLongProperty("passthrough.max-bitrate", 0));
+		}
+		passthroughCopy = taskBooleanProperty("passthrough.copy", false);
+		if (passthroughRules != null) {
+			passthroughSignature = Integer.toHexString((taskSetProperty("passthrough.mimetypes", "video/mp4") + "|" + videoCodecs
+					                                           + "|" + taskSetProperty("passthrough.audio-codecs", "aac")
+					                                           + "|" + taskIntProperty("passthrough.max-height", 0)
+					                                           + "|" + taskLongProperty("passthrough.max-bitrate", 0)).hashCode());
+			String stateFileProperty = taskProperty("passthrough.state.file");
+			if (isBlank(stateFileProperty)) {
+				stateFileProperty = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + taskId + ".skipped";
+			}
+			recordedSkips = RecordedBitstreams.read(new File(stateFileProperty));
+		}
+
+		segmentMinDuration = taskIntProperty("segment.min-duration", 0);
+		if (segmentMinDuration > 0) {
+			if (isBlank(taskProperty("segment.split.command")) || isBlank(taskProperty("segment.concat.command"))) {
+				log.warn("Segment-parallel transcoding needs segment.split.command and segment.concat.command; disabling it");
+				segmentMinDuration = 0;
+			} else {
+				int parallelism = taskIntProperty("segment.parallelism", Math.max(1, Runtime.getRuntime().availableProcessors() / 4));
+				segmentedTranscoder = new SegmentedTranscoder(helper, parallelism, taskIntProperty("segment.length", 300));
+			}
+		}
+	}
+
+	private static boolean isBlank(String value) {
+		return value == null || "".equals(value.trim());
+	}
+
+	private Set<String> taskSetProperty(String name, String defaultValue) {
+		String value = taskProperty(name);
+		if (value == null || "".equals(value.trim())) {
+			value = defaultValue;
+		}
+		Set<String> result = new LinkedHashSet<>();
+		if (value != null) {
+			for (String entry : value.trim().split(",\\s*")) {
+				if (!"".equals(entry)) {
+					result.add(entry);
+				}
+			}
+		}
+		return result;
+	}
+
+	private ConversionOutput readOutput(String prefix, String name, String defaultBundle, String defaultSuffix, String defaultFormat) {
+		if (!name.matches("[\\w\\-]+")) {
+			log.warn("Invalid output name " + name + ", must consist of word characters and dashes only; ignoring it");
+			return null;
+		}
+		String args = taskProperty(prefix + ".args");
+		if (args == null || !expandVariables(args).contains("${outfile}")) {
+			log.warn("No output options containing ${outfile} configured for " + prefix + "; ignoring it");
+			return null;
+		}
+		String suffix = taskProperty(prefix + ".suffix");
+		if (suffix == null || "".equals(suffix)) {
+			suffix = defaultSuffix;
+		}
+		String bundle = defaultBundle;
+		String nameSpec = "$src." + name + ".$ext";
+		String spec = taskProperty(prefix + ".spec");
+		if (spec != null && !"".equals(spec)) {
+			String[] specParts = spec.split("/");
+			bundle = specParts[0];
+			if (specParts.length > 1) {
+				nameSpec = specParts[1];
+			}
+		}
+		String format = taskProperty(prefix + ".format");
+		if (format == null || "".equals(format)) {
+			format = defaultFormat;
+		}
+		return new ConversionOutput(name, args, suffix, bundle, nameSpec, format, taskProperty(prefix + ".description"));
+	}
+
+	@Override
+	protected boolean targetExists(Context context, Item item, Bitstream bitstream) throws SQLException {
+		if (renditions.isEmpty() && !super.targetExists(context, item, bitstream) && !isRecordedSkip(bitstream)) {
+			return false;
+		}
+		return allExist(context, item, bitstream, renditions) && allExist(context, item, bitstream, thumbnails);
+	}
+
+	private boolean allExist(Context context, Item item, Bitstream bitstream, List<ConversionOutput> outputs) throws SQLException {
+		for (ConversionOutput output : outputs) {
+			if (!targetExists(context, item, bitstream, output.getBundle(), output.getNameSpec(), output.getFormat())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	@Override
 	protected boolean canFilter(Item item, Bitstream bitstream) {
 		return bitstream.getFormat().getMIMEType().startsWith("video/");
@@ -32,40 +293,232 @@ public class VideoAccessVersion extends MediaFilter {
 
 	@Override
 	protected boolean filterBitstream(Item item, Bitstream bitstream) throws AuthorizeException, IOException, SQLException {
-		String inFileName = helper.makeTempInFile(bitstream.retrieve());
+		ConversionWorkspace workspace;
+		try {
+			workspace = ConversionWorkspace.create(scratchDir, bitstream.getSize() * sizeFactor, minFreeBytes, quotaBytes);
+		} catch (IOException e) {
+			String message = "Cannot create access version of bitstream " + bitstream.getID() + ": " + e.getMessage();
+			log.warn(message);
+			report(message);
+			return false;
+		}
 
-		return createAccessCopy(item, bitstream, inFileName);
+		try {
+			if (passthroughRules != null && renditions.isEmpty() && (thumbnails.isEmpty() || isBlank(taskProperty("thumbnails.command")))) {
+				// a source that can be used as is doesn't need to be copied at all
+				MediaProbe probe = probeStream(workspace, bitstream);
+				if (decide(bitstream, probe) == PassthroughRules.Decision.SKIP) {
+					skipSource(item, bitstream, probe);
+					return true;
+				}
+			}
+			String inFileName = helper.makeTempInFile(workspace, bitstream.retrieve());
+			return createAccessCopy(item, bitstream, workspace, inFileName);
+		} finally {
+			workspace.close();
+		}
 	}
 
-	private boolean createAccessCopy(Item item, Bitstream bitstream, String inFileName) {
-		String command = taskProperty("command");
-		command = command.replaceAll("%", Matcher.quoteReplacement("$"));
+	private PassthroughRules.Decision decide(Bitstream bitstream, MediaProbe probe) {
+		if (passthroughRules == null) {
+			return PassthroughRules.Decision.TRANSCODE;
+		}
+		return passthroughRules.decide(bitstream.getFormat().getMIMEType(), probe, !isBlank(taskProperty("remux.command")));
+	}
 
-		String suffix = taskProperty("target.suffix");
+	/**
+	 * Use the source as its own access version: store a copy if passthrough.copy is set, otherwise record it so that
+	 * reruns leave it alone.
+	 */
+	private void skipSource(Item item, Bitstream bitstream, MediaProbe probe) throws AuthorizeException, IOException, SQLException {
+		numSkipped++;
+		recordAvoided(bitstream, probe != null ? probe.getDuration() : -1, "source can be used as is (" + probe + ")");
+		if (passthroughCopy) {
+			createDerivative(item, bitstream, bitstream.retrieve());
+		} else {
+			recordedSkips.add(bitstream, skipKey(bitstream));
+		}
+	}
+
+	private boolean createAccessCopy(Item item, Bitstream bitstream, ConversionWorkspace workspace, String inFileName) throws AuthorizeException, IOException, SQLException {
+		MediaProbe probe = probe(workspace, inFileName);
+		double duration = probe != null ? probe.getDuration() : -1;
+
+		if (!renditions.isEmpty()) {
+			return convert(item, bitstream, workspace, inFileName, taskProperty("renditions.command"), withThumbnails(renditions), duration);
+		}
 
-		final String outFileName = inFileName + suffix;
+		List<ConversionOutput> accessCopy = Collections.singletonList(new ConversionOutput("access", null, taskProperty("target.suffix"), null, null, null, null));
+		String remuxCommand = taskProperty("remux.command");
 
-		Map<String, File> map = new HashMap();
+		switch (decide(bitstream, probe)) {
+			case SKIP:
+				skipSource(item, bitstream, probe);
+				String thumbnailsCommand = taskProperty("thumbnails.command");
+				if (!thumbnails.isEmpty() && !isBlank(thumbnailsCommand)) {
+					return convert(item, bitstream, workspace, inFileName, thumbnailsCommand, thumbnails, duration);
+				}
+				return true;
+			case REMUX:
+				if (convert(item, bitstream, workspace, inFileName, remuxCommand, withThumbnails(accessCopy), duration)) {
+					numRemuxed++;
+					recordAvoided(bitstream, duration, "remuxed (" + probe + ")");
+					return true;
+				}
+				return false;
+			default:
+				if (segmentMinDuration > 0 && duration >= segmentMinDuration) {
+					return transcodeInSegments(item, bitstream, workspace, inFileName, accessCopy.get(0), duration);
+				}
+				return convert(item, bitstream, workspace, inFileName, taskProperty("command"), withThumbnails(accessCopy), duration);
+		}
+	}
+
+	private List<ConversionOutput> withThumbnails(List<ConversionOutput> outputs) {
+		if (thumbnails.isEmpty()) {
+			return outputs;
+		}
+		List<ConversionOutput> result = new ArrayList<>(outputs);
+		result.addAll(thumbnails);
+		return result;
+	}
+
+	private boolean transcodeInSegments(Item item, Bitstream bitstream, ConversionWorkspace workspace, String inFileName, ConversionOutput output, double duration) {
+		File outFile = output.fileFor(inFileName);
+		// the split step writes the thumbnails too; this makes a stream-copying split decode the whole source, but
+		// saves reading the source once more
+		Map<String, File> splitVariables = new HashMap<>();
+		StringBuilder splitCommand = new StringBuilder(expandVariables(taskProperty("segment.split.command")));
+		appendOutputs(splitCommand, splitVariables, thumbnails, inFileName);
+		try {
+			long started = System.currentTimeMillis();
+			boolean success = segmentedTranscoder.transcode(splitCommand.toString(),
+					                                               expandVariables(taskProperty("command")),
+					                                               expandVariables(taskProperty("segment.concat.command")),
+					                                               workspace, new File(inFileName), outFile, timeout, duration,
+					                                               splitVariables);
+			if (success) {
+				ConversionMetrics metrics = new ConversionMetrics(bitstream.getSize(), outFile.length(), System.currentTimeMillis() - started, duration);
+				metrics.publish(taskId + " bitstream_id=" + bitstream.getID() + " segmented");
+				report("Converted bitstream " + bitstream.getID() + " in segments: " + metrics);
+
+				// createDerivative closes the stream; the file itself goes away with the workspace
+				createDerivative(item, bitstream, new FileInputStream(outFile));
+				for (ConversionOutput thumbnail : thumbnails) {
+					createDerivative(item, bitstream, new FileInputStream(thumbnail.fileFor(inFileName)),
+							                thumbnail.getBundle(), thumbnail.getNameSpec(), thumbnail.getFormat(), thumbnail.getDescription());
+				}
+				return true;
+			}
+		} catch (Exception e) {
+			log.error("Cannot create access version (" + taskProperty("target.format") + ") of bitstream " + bitstream.getID() + " in segments", e);
+		}
+		return false;
+	}
+
+	private void recordAvoided(Bitstream bitstream, double duration, String reason) {
+		if (duration > 0) {
+			avoidedSeconds += duration;
+		}
+		String message = String.format("Skipped transcoding of bitstream %d: %s; so far %d source(s) skipped and %d remuxed, avoiding %.2f hours of encoding",
+				                              bitstream.getID(), reason, numSkipped, numRemuxed, avoidedSeconds / 3600);
+		log.info(message);
+		report(message);
+	}
+
+	/**
+	 * Run a single converter invocation that writes all of the given outputs, then attach each output as a derivative.
+	 */
+	private boolean convert(Item item, Bitstream bitstream, ConversionWorkspace workspace, String inFileName, String command, List<ConversionOutput> outputs, double duration) {
+		Map<String, File> map = new HashMap<>();
 		map.put("infile", new File(inFileName));
-		map.put("outfile", new File(outFileName));
+
+		StringBuilder commandBuilder = new StringBuilder(expandVariables(command));
+		appendOutputs(commandBuilder, map, outputs, inFileName);
 
 		// see http://commons.apache.org/exec/commandline.html
-		CommandLine cmdLine = CommandLine.parse(command, map);
+		CommandLine cmdLine = CommandLine.parse(commandBuilder.toString(), map);
 
 		try {
-			int status = helper.run(cmdLine, VideoConversionHelper.DEFAULT_TIMEOUT);
+			ConversionProgress progress = new ConversionProgress();
+			long started = System.currentTimeMillis();
+			int status = helper.run(cmdLine, workspace, timeout, progress, duration);
 			if (status == 0) {
-				FileInputStream fis = new FileInputStream(outFileName);
-				byte[] resultData = IOUtils.toByteArray(fis);
-				IOUtils.closeQuietly(fis);
-				new File(outFileName).deleteOnExit();
+				if (duration <= 0) {
+					duration = progress.getInputDuration();
+				}
+				long outputBytes = 0;
+				for (ConversionOutput output : outputs) {
+					outputBytes += output.fileFor(inFileName).length();
+				}
+				ConversionMetrics metrics = new ConversionMetrics(bitstream.getSize(), outputBytes, System.currentTimeMillis() - started, duration);
+				metrics.publish(taskId + " bitstream_id=" + bitstream.getID() + " outputs=" + outputs.size());
+				report("Converted bitstream " + bitstream.getID() + ": " + metrics);
 
-				createDerivative(item, bitstream, new ByteArrayInputStream(resultData));
+				for (ConversionOutput output : outputs) {
+					// createDerivative closes the stream; the file itself goes away with the workspace
+					createDerivative(item, bitstream, new FileInputStream(output.fileFor(inFileName)),
+							                output.getBundle(), output.getNameSpec(), output.getFormat(), output.getDescription());
+				}
 				return true;
 			}
 		} catch (Exception e) {
-			log.error("Cannot create access version (" + taskProperty("target.format") + ") of bitstream " + bitstream.getID());
+			log.error("Cannot create access version (" + taskProperty("target.format") + ") of bitstream " + bitstream.getID(), e);
 		}
 		return false;
 	}
+
+	/**
+	 * Append the output options of the given outputs to a command line, each with its own output file variable.
+	 */
+	private static void appendOutputs(StringBuilder commandBuilder, Map<String, File> map, List<ConversionOutput> outputs, String inFileName) {
+		for (ConversionOutput output : outputs) {
+			if (output.getArgs() == null) {
+				map.put("outfile", output.fileFor(inFileName));
+			} else {
+				String key = "outfile_" + output.getName();
+				map.put(key, output.fileFor(inFileName));
+				commandBuilder.append(" ").append(expandVariables(output.getArgs()).replace("${outfile}", "${" + key + "}"));
+			}
+		}
+	}
+
+	private static String expandVariables(String command) {
+		return command.replaceAll("%", Matcher.quoteReplacement("$"));
+	}
+
+	/**
+	 * Probe the source without copying it, by feeding it to the probe command's standard input.
+	 *
+	 * @return the probe result, or null if there is no probe command or the source cannot be probed this way.
+	 */
+	private MediaProbe probeStream(ConversionWorkspace workspace, Bitstream bitstream) throws AuthorizeException, IOException, SQLException {
+		String probeCommand = taskProperty("probe.command");
+		if (isBlank(probeCommand)) {
+			return null;
+		}
+		Map<String, String> map = new HashMap<>();
+		map.put("infile", "pipe:0");
+		try (InputStream in = bitstream.retrieve()) {
+			return helper.probe(CommandLine.parse(expandVariables(probeCommand), map), workspace, in);
+		}
+	}
+
+	private boolean isRecordedSkip(Bitstream bitstream) {
+		return recordedSkips != null && recordedSkips.contains(bitstream, skipKey(bitstream));
+	}
+
+	private String skipKey(Bitstream bitstream) {
+		return bitstream.getChecksum() + " " + passthroughSignature;
+	}
+
+	private MediaProbe probe(ConversionWorkspace workspace, String inFileName) {
+		String probeCommand = taskProperty("probe.command");
+		if (probeCommand == null || "".equals(probeCommand)) {
+			return null;
+		}
+		Map<String, File> map = new HashMap<>();
+		map.put("infile", new File(inFileName));
+		return helper.probe(CommandLine.parse(expandVariables(probeCommand), map), workspace);
+	}
 }
@@ -15,28 +15,120 @@ import java.io.*;
 public class VideoConversionHelper {
 	private static final Logger log = Logger.getLogger(VideoConversionHelper.class);
 	public static final int DEFAULT_TIMEOUT = 1000 * 60 * 10;
+	private static final int PROBE_TIMEOUT = 1000 * 60;
+	private static final long POLL_INTERVAL = 1000;
 
-	protected int run(CommandLine cmdLine, int timeout) throws Exception {
+	protected int run(CommandLine cmdLine, ConversionWorkspace workspace, int timeout) throws Exception {
+		return run(cmdLine, workspace, ConversionTimeout.fixed(timeout), null, -1);
+	}
+
+	/**
+	 * Run a conversion command, enforcing the given time limits.
+	 *
+	 * @param cmdLine the command to run.
+	 * @param workspace the workspace of the job; used as working directory.
+	 * @param timeout the time limits for the conversion.
+	 * @param progress receives the converter's output; may be null, in which case only the default limit applies.
+	 * @param durationSeconds the duration of the source media if known, otherwise zero or negative; in that case the
+	 *                        duration reported by the converter is used once it is known.
+	 * @return the exit value of the command.
+	 * @throws Exception if the command cannot be started.
+	 */
+	protected int run(CommandLine cmdLine, ConversionWorkspace workspace, ConversionTimeout timeout, ConversionProgress progress, double durationSeconds) throws Exception {
 		Executor executor = new DefaultExecutor();
-		ExecuteWatchdog watchdog = new ExecuteWatchdog(timeout);
+		// time limits are enforced below, since the limit may depend on what the converter reports
+		ExecuteWatchdog watchdog = new ExecuteWatchdog(ExecuteWatchdog.INFINITE_TIMEOUT);
 		executor.setWatchdog(watchdog);
-		executor.setWorkingDirectory(new File(System.getProperty("java.io.tmpdir")));
+		executor.setWorkingDirectory(workspace.getDirectory());
+		if (progress != null) {
+			// the status line goes to stderr, -progress output usually to stdout
+			executor.setStreamHandler(new PumpStreamHandler(progress.secondaryStream(), progress));
+		}
 
-		DefaultExecuteResultHandler resultHandler;
+		FilterResultHandler resultHandler;
 		try {
-			resultHandler = new FilterResultHandler(watchdog);
+			resultHandler = new FilterResultHandler(watchdog, progress);
 			executor.execute(cmdLine, resultHandler);
 		} catch (Exception e) {
 			log.error("Problem running command line " + cmdLine.toString(), e);
 			throw e;
 		}
-		resultHandler.waitFor();
+
+		long started = System.currentTimeMillis();
+		boolean killed = false;
+		while (!resultHandler.hasResult()) {
+			resultHandler.waitFor(POLL_INTERVAL);
+			if (resultHandler.hasResult() || killed) {
+				continue;
+			}
+			double duration = durationSeconds;
+			if (duration <= 0 && progress != null) {
+				duration = progress.getInputDuration();
+			}
+			long limit = timeout.limitFor(duration);
+			if (System.currentTimeMillis() - started > limit) {
+				log.warn("Conversion exceeded time limit of " + limit + "ms, killing it");
+				watchdog.destroyProcess();
+				killed = true;
+			} else if (progress != null && timeout.getStallMillis() > 0 && progress.hasReportedProgress()
+					           && progress.millisSinceLastUpdate() > timeout.getStallMillis()) {
+				// only converters known to report progress can stall; quiet ones are left to the overall limit
+				log.warn("Conversion reported no progress for " + progress.millisSinceLastUpdate() + "ms, killing it");
+				resultHandler.markStalled();
+				watchdog.destroyProcess();
+				killed = true;
+			}
+		}
 		return resultHandler.getExitValue();
 	}
 
-	protected String makeTempInFile(InputStream sourceStream) throws IOException {
-		File sourceTmp = File.createTempFile("VideoConversionSource" + sourceStream.hashCode(),".tmp");
-		sourceTmp.deleteOnExit();
+	/**
+	 * Run a probe command that prints information about the source on stdout, either as ffprobe JSON, eg
+	 * ffprobe -v error -print_format json -show_format -show_streams ${infile}
+	 * or just the duration in seconds, eg
+	 * ffprobe -v error -show_entries format=duration -of default=noprint_wrappers=1:nokey=1 ${infile}
+	 *
+	 * @param probeCmd the probe command.
+	 * @param workspace the workspace of the job; used as working directory.
+	 * @return the probe result, or null if the source cannot be probed.
+	 */
+	protected MediaProbe probe(CommandLine probeCmd, ConversionWorkspace workspace) {
+		return probe(probeCmd, workspace, null);
+	}
+
+	/**
+	 * Run a probe command as above, feeding it the source on its standard input (eg with ${infile} set to pipe:0), so
+	 * that the source doesn't need to be copied to the workspace first.
+	 *
+	 * @param input the source; may be null if the probe command reads a file. Not closed.
+	 * @return the probe result, or null if the source cannot be probed.
+	 */
+	protected MediaProbe probe(CommandLine probeCmd, ConversionWorkspace workspace, InputStream input) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Executor executor = new DefaultExecutor();
+		executor.setWatchdog(new ExecuteWatchdog(PROBE_TIMEOUT));
+		executor.setWorkingDirectory(workspace.getDirectory());
+		if (input != null) {
+			// the probe usually stops reading before the end of the source; the pumper ignores the broken pipe
+			executor.setStreamHandler(new PumpStreamHandler(out, new ByteArrayOutputStream(), input));
+		} else {
+			executor.setStreamHandler(new PumpStreamHandler(out, new ByteArrayOutputStream()));
+		}
+		try {
+			executor.execute(probeCmd);
+			MediaProbe probe = MediaProbe.parse(out.toString("UTF-8"));
+			if (probe == null) {
+				log.warn("Cannot understand output of " + probeCmd);
+			}
+			return probe;
+		} catch (IOException e) {
+			log.warn("Cannot probe source with " + probeCmd + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	protected String makeTempInFile(ConversionWorkspace workspace, InputStream sourceStream) throws IOException {
+		File sourceTmp = workspace.newFile("source.tmp");
 		try
 		{
 			OutputStream sto = new FileOutputStream(sourceTmp);
@@ -0,0 +1,63 @@
+package nz.ac.lconz.irr.curate.task.linkcheck;
+
+import org.apache.log4j.Logger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers for the duration of a run whether host names resolve. Hosts that don't resolve are remembered as well, so
+ * that the links to a domain that has gone away cost one lookup rather than one (slow) failed lookup each; the JDK
+ * itself only caches failed lookups for a few seconds.
+ */
+public class DnsCache {
+	private static final Logger log = Logger.getLogger(DnsCache.class);
+
+	private final ConcurrentMap<String, Boolean> resolvable = new ConcurrentHashMap<>();
+	private final AtomicInteger numLookups = new AtomicInteger();
+
+	/**
+	 * @param host a host name, lower-cased.
+	 * @return whether the host name resolved the first time it was looked up in this run.
+	 */
+	public boolean isResolvable(String host) {
+		Boolean known = resolvable.get(host);
+		if (known != null) {
+			return known;
+		}
+		numLookups.incrementAndGet();
+		boolean result;
+		try {
+			InetAddress.getAllByName(host);
+			result = true;
+		} catch (UnknownHostException e) {
+			log.info("Cannot resolve host " + host + ": " + e.getMessage());
+			result = false;
+		}
+		Boolean previous = resolvable.putIfAbsent(host, result);
+		return previous != null ? previous : result;
+	}
+
+	/**
+	 * @return the number of lookups made so far.
+	 */
+	public int getNumLookups() {
+		return numLookups.get();
+	}
+
+	/**
+	 * @return the number of hosts found not to resolve so far.
+	 */
+	public int getNumUnresolvable() {
+		int count = 0;
+		for (Boolean value : resolvable.values()) {
+			if (!value) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
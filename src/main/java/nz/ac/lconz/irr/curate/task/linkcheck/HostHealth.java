@@ -0,0 +1,72 @@
+package nz.ac.lconz.irr.curate.task.linkcheck;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A circuit breaker per host: once a host has failed to respond a number of times in a row (connection refused or
+ * timed out, no route, unknown host, read timeout), it is considered down for the rest of the run and its remaining
+ * links are not requested at all. Any response, whatever its status, resets the count.
+ */
+public class HostHealth {
+	private static final Logger log = Logger.getLogger(HostHealth.class);
+
+	private final int maxFailures;
+	private final ConcurrentMap<String, AtomicInteger> consecutiveFailures = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxFailures the number of consecutive connection errors after which a host is considered down; 0 or less
+	 * to never consider a host down.
+	 */
+	public HostHealth(int maxFailures) {
+		this.maxFailures = maxFailures;
+	}
+
+	/**
+	 * @param host a host name, lower-cased.
+	 */
+	public boolean isDown(String host) {
+		if (maxFailures <= 0) {
+			return false;
+		}
+		AtomicInteger failures = consecutiveFailures.get(host);
+		return failures != null && failures.get() >= maxFailures;
+	}
+
+	public void connectionFailed(String host) {
+		AtomicInteger failures = consecutiveFailures.get(host);
+		if (failures == null) {
+			AtomicInteger created = new AtomicInteger();
+			failures = consecutiveFailures.putIfAbsent(host, created);
+			if (failures == null) {
+				failures = created;
+			}
+		}
+		if (failures.incrementAndGet() == maxFailures) {
+			log.warn("Host " + host + " failed to respond " + maxFailures + " times in a row; not checking its remaining links");
+		}
+	}
+
+	public void responded(String host) {
+		AtomicInteger failures = consecutiveFailures.get(host);
+		if (failures != null && failures.get() < maxFailures) {
+			failures.set(0);
+		}
+	}
+
+	/**
+	 * @return the number of hosts considered down so far.
+	 */
+	public int getNumHostsDown() {
+		int count = 0;
+		for (String host : consecutiveFailures.keySet()) {
+			if (isDown(host)) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
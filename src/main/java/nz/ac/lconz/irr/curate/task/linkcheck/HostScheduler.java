@@ -0,0 +1,372 @@
+package nz.ac.lconz.irr.curate.task.linkcheck;
+
+import org.apache.log4j.Logger;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs URL checks on a pool of worker threads while staying polite to each host: every host has its own queue, a limit
+ * on the number of requests in flight and a minimum spacing between the starts of two requests. Workers take the next
+ * URL from the hosts in turn, skipping hosts that are at their limit or whose spacing hasn't passed yet, so a host with
+ * many links neither gets hammered nor holds up the links of other hosts.
+ *
+ * Limits adapt to how the host responds (additive increase, multiplicative decrease): a 429 or 503 response halves the
+ * host's limit and doubles its spacing, and the host isn't contacted again until any Retry-After delay the server
+ * asked for has passed. Successful requests slowly bring limit and spacing back to their configured values.
+ *
+ * A throttled URL is not retried straight away. Its future completes with a result marked as deferred, so the item it
+ * belongs to isn't held up, and the URL is checked again by {@link #retryDeferred()} once everything else is done.
+ *
+ * Hosts are identified by the host name of the URL as submitted; requests for redirect targets (eg the publisher
+ * behind a doi.org link) count against the host of the original URL.
+ */
+public class HostScheduler {
+	private static final Logger log = Logger.getLogger(HostScheduler.class);
+
+	/** the spacing a host gets after its first throttled response, if the configured spacing is shorter. */
+	private static final long BACKOFF_MIN_SPACING_MILLIS = 1000;
+	/** how much the spacing shrinks again with each round of successful requests. */
+	private static final long SPACING_STEP_MILLIS = 250;
+
+	private static class Host {
+		final String name;
+		final Deque<Attempt> queue = new ArrayDeque<>();
+		int inFlight;
+		int limit;
+		long spacingMillis;
+		long nextStart;
+		int successes;
+
+		Host(String name, int limit, long spacingMillis) {
+			this.name = name;
+			this.limit = limit;
+			this.spacingMillis = spacingMillis;
+		}
+	}
+
+	private static class Attempt {
+		final String url;
+		final int previousAttempts;
+		Host host;
+		FutureTask<LinkResult> task;
+
+		Attempt(String url, int previousAttempts) {
+			this.url = url;
+			this.previousAttempts = previousAttempts;
+		}
+	}
+
+	private final LinkCheckEngine.UrlChecker checker;
+	private final int hostConcurrency;
+	private final long minSpacingMillis;
+	private final long maxSpacingMillis;
+	private final int maxRetries;
+	private final long maxRetryAfterMillis;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final Map<String, Host> hosts = new HashMap<>();
+	private final Deque<Host> ready = new ArrayDeque<>();
+	private final List<Attempt> deferred = new ArrayList<>();
+	private final List<Thread> workers = new ArrayList<>();
+	private int outstanding;
+	private int numThrottled;
+	private int numRetried;
+	private boolean shutdown;
+
+	/**
+	 * Create the scheduler and start its worker threads.
+	 *
+	 * @param checker checks a single URL.
+	 * @param concurrency the maximum number of URLs checked at the same time, over all hosts.
+	 * @param hostConcurrency the maximum number of URLs checked at the same time per host.
+	 * @param minSpacingMillis the minimum time between the starts of two requests to the same host.
+	 * @param maxSpacingMillis the maximum time between the starts of two requests to the same host when backing off.
+	 * @param maxRetries how often a throttled URL is checked again at the end of the run.
+	 * @param maxRetryAfterMillis the longest Retry-After delay that is honoured; longer delays are cut to this.
+	 */
+	public HostScheduler(LinkCheckEngine.UrlChecker checker, int concurrency, int hostConcurrency, long minSpacingMillis,
+	                     long maxSpacingMillis, int maxRetries, long maxRetryAfterMillis) {
+		this.checker = checker;
+		this.hostConcurrency = Math.max(1, hostConcurrency);
+		this.minSpacingMillis = Math.max(0, minSpacingMillis);
+		this.maxSpacingMillis = Math.max(this.minSpacingMillis, maxSpacingMillis);
+		this.maxRetries = Math.max(0, maxRetries);
+		this.maxRetryAfterMillis = Math.max(0, maxRetryAfterMillis);
+
+		for (int i = 1; i <= Math.max(1, concurrency); i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Attempt attempt;
+						while ((attempt = take()) != null) {
+							attempt.task.run();
+						}
+					} catch (InterruptedException e) {
+						// shutting down
+					}
+				}
+			}, "link-checker-" + i);
+			thread.setDaemon(true);
+			thread.start();
+			workers.add(thread);
+		}
+	}
+
+	/**
+	 * Queue a URL for checking.
+	 *
+	 * @return the result; marked as deferred if the host throttled us and the URL will be retried.
+	 */
+	public Future<LinkResult> submit(String url) {
+		return enqueue(url, 0);
+	}
+
+	/**
+	 * Wait until all queued URLs have been checked, then check the deferred URLs again, in rounds, until they are no
+	 * longer throttled or have run out of retries.
+	 *
+	 * @return the final result of each deferred URL, in the order in which they were first deferred.
+	 */
+	public Map<String, LinkResult> retryDeferred() throws InterruptedException {
+		Map<String, LinkResult> results = new LinkedHashMap<>();
+		while (true) {
+			List<Attempt> round;
+			lock.lock();
+			try {
+				while (outstanding > 0) {
+					changed.await();
+				}
+				if (deferred.isEmpty()) {
+					break;
+				}
+				round = new ArrayList<>(deferred);
+				deferred.clear();
+			} finally {
+				lock.unlock();
+			}
+
+			log.info("Retrying " + round.size() + " throttled url(s)");
+			List<Future<LinkResult>> futures = new ArrayList<>(round.size());
+			for (Attempt attempt : round) {
+				futures.add(enqueue(attempt.url, attempt.previousAttempts));
+			}
+			for (int i = 0; i < round.size(); i++) {
+				// still deferred results are overwritten in a later round
+				results.put(round.get(i).url, getResult(round.get(i).url, futures.get(i)));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Stop the worker threads, waiting up to a minute for running checks to finish.
+	 */
+	public void shutdown() throws InterruptedException {
+		lock.lock();
+		try {
+			shutdown = true;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+		for (Thread worker : workers) {
+			worker.interrupt();
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining > 0) {
+				worker.join(remaining);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of throttled (429 or 503) responses so far.
+	 */
+	public int getNumThrottled() {
+		lock.lock();
+		try {
+			return numThrottled;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of checks repeated because of throttling so far.
+	 */
+	public int getNumRetried() {
+		lock.lock();
+		try {
+			return numRetried;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Future<LinkResult> enqueue(String url, int previousAttempts) {
+		final Attempt attempt = new Attempt(url, previousAttempts);
+		attempt.task = new FutureTask<>(new Callable<LinkResult>() {
+			@Override
+			public LinkResult call() {
+				LinkResult result = null;
+				boolean retry;
+				try {
+					result = checker.check(attempt.url);
+				} finally {
+					retry = completed(attempt, result);
+				}
+				return retry ? result.asDeferred() : result;
+			}
+		});
+
+		String hostName = hostName(url);
+		lock.lock();
+		try {
+			Host host = hosts.get(hostName);
+			if (host == null) {
+				host = new Host(hostName, hostConcurrency, minSpacingMillis);
+				hosts.put(hostName, host);
+			}
+			attempt.host = host;
+			if (host.queue.isEmpty()) {
+				ready.addLast(host);
+			}
+			host.queue.addLast(attempt);
+			outstanding++;
+			if (previousAttempts > 0) {
+				numRetried++;
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		return attempt.task;
+	}
+
+	/**
+	 * @return the next attempt that may start now, waiting until there is one; null once the scheduler is shut down.
+	 */
+	private Attempt take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (!shutdown) {
+				long now = System.currentTimeMillis();
+				long wakeUp = Long.MAX_VALUE;
+				// visit each host with queued urls once, in turn; hosts go back to the end of the line
+				for (int i = ready.size(); i > 0; i--) {
+					Host host = ready.removeFirst();
+					if (host.inFlight < host.limit && now >= host.nextStart) {
+						Attempt attempt = host.queue.removeFirst();
+						host.inFlight++;
+						host.nextStart = now + host.spacingMillis;
+						if (!host.queue.isEmpty()) {
+							ready.addLast(host);
+						}
+						return attempt;
+					}
+					ready.addLast(host);
+					if (host.inFlight < host.limit) {
+						wakeUp = Math.min(wakeUp, host.nextStart);
+					}
+				}
+				if (wakeUp == Long.MAX_VALUE) {
+					changed.await();
+				} else {
+					changed.await(wakeUp - now, TimeUnit.MILLISECONDS);
+				}
+			}
+			return null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adapt the host's limits to the result of an attempt.
+	 *
+	 * @param result the result, or null if the check failed with an exception.
+	 * @return whether the URL will be retried at the end of the run.
+	 */
+	private boolean completed(Attempt attempt, LinkResult result) {
+		lock.lock();
+		try {
+			Host host = attempt.host;
+			host.inFlight--;
+			outstanding--;
+			changed.signalAll();
+
+			if (result == null) {
+				return false;
+			}
+			if (!result.isRequestSent()) {
+				// nothing went over the wire (eg the host is down), so the next url needn't wait
+				host.nextStart = Math.min(host.nextStart, System.currentTimeMillis());
+				return false;
+			}
+			if (!result.isThrottled()) {
+				if (++host.successes >= host.limit) {
+					host.successes = 0;
+					host.limit = Math.min(hostConcurrency, host.limit + 1);
+					host.spacingMillis = Math.max(minSpacingMillis, host.spacingMillis - SPACING_STEP_MILLIS);
+				}
+				return false;
+			}
+
+			numThrottled++;
+			host.successes = 0;
+			host.limit = Math.max(1, host.limit / 2);
+			host.spacingMillis = Math.min(maxSpacingMillis, Math.max(BACKOFF_MIN_SPACING_MILLIS, host.spacingMillis * 2));
+			long pause = host.spacingMillis;
+			if (result.getRetryAfterMillis() >= 0) {
+				pause = Math.max(pause, Math.min(maxRetryAfterMillis, result.getRetryAfterMillis()));
+			}
+			host.nextStart = Math.max(host.nextStart, System.currentTimeMillis() + pause);
+			log.info("Host " + host.name + " throttled us (" + result.getStatus() + "); now " + host.limit
+					         + " request(s) at a time, " + host.spacingMillis + "ms apart, pausing for " + pause + "ms");
+
+			if (attempt.previousAttempts < maxRetries) {
+				deferred.add(new Attempt(attempt.url, attempt.previousAttempts + 1));
+				return true;
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static LinkResult getResult(String url, Future<LinkResult> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			log.warn("Problem checking url (" + url + "): " + e.getCause(), e.getCause());
+			return new LinkResult(0, 0);
+		}
+	}
+
+	private static String hostName(String url) {
+		try {
+			String host = new URL(url).getHost();
+			return host == null ? "" : host.toLowerCase(Locale.ROOT);
+		} catch (MalformedURLException e) {
+			return "";
+		}
+	}
+}
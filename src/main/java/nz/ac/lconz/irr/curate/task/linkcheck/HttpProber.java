@@ -0,0 +1,266 @@
+package nz.ac.lconz.irr.curate.task.linkcheck;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds out whether a URL works while transferring as little as possible. Each URL is probed with a HEAD request; if
+ * the server doesn't support HEAD properly, a GET for the first byte only is sent instead. Redirects are followed up
+ * to a limit, and the final URL and number of redirects are part of the result.
+ *
+ * Connections are never disconnected explicitly and response bodies are closed after reading at most a few bytes, so
+ * that the JDK's HTTP client can return the connections to its per-host keep-alive pool (see the http.keepAlive and
+ * http.maxConnections system properties) and reuse them for further URLs on the same host.
+ *
+ * Before each request, the host name is looked up in a {@link DnsCache} and checked against a {@link HostHealth}
+ * circuit breaker; hosts that don't resolve or are considered down get a result with a negative status straight away.
+ */
+public class HttpProber {
+	private static final Logger log = Logger.getLogger(HttpProber.class);
+
+	private static final int MAX_BODY_BYTES = 1024;
+
+	private final String userAgent;
+	private final int connectTimeoutMillis;
+	private final int readTimeoutMillis;
+	private final int maxRedirects;
+	private final HostHealth hostHealth;
+	private final DnsCache dnsCache;
+
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong requestMillis = new AtomicLong();
+	private final AtomicInteger numRequests = new AtomicInteger();
+	private final AtomicInteger numTimeouts = new AtomicInteger();
+
+	private static class Response {
+		int status;
+		String location;
+		String etag;
+		String lastModified;
+		String retryAfter;
+	}
+
+	/**
+	 * @param userAgent the User-Agent header to send.
+	 * @param connectTimeoutMillis the time limit for establishing a connection.
+	 * @param readTimeoutMillis the time limit for waiting for response data.
+	 * @param maxRedirects the maximum number of redirects to follow.
+	 * @param hostHealth keeps track of hosts that fail to respond.
+	 * @param dnsCache remembers which host names resolve.
+	 */
+	public HttpProber(String userAgent, int connectTimeoutMillis, int readTimeoutMillis, int maxRedirects,
+	                  HostHealth hostHealth, DnsCache dnsCache) {
+		this.userAgent = userAgent;
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+		this.maxRedirects = maxRedirects;
+		this.hostHealth = hostHealth;
+		this.dnsCache = dnsCache;
+	}
+
+	/**
+	 * Probe a URL.
+	 *
+	 * @param url the URL to probe.
+	 * @param previous the previous successful result for the URL, used to make conditional requests; may be null. Its
+	 * validators are only sent to the URL they came from (the final URL of the previous redirect chain, if any).
+	 * @return the result; its status is 0 if no response could be obtained, a 3xx status if the redirect limit was
+	 * reached, and one of the negative LinkResult.STATUS_ constants if the host doesn't resolve or is down.
+	 */
+	public LinkResult probe(String url, LinkStatusStore.Entry previous) {
+		long started = System.currentTimeMillis();
+		String current = url;
+		String host = "";
+		int redirects = 0;
+		String validatedUrl = null;
+		if (previous != null) {
+			validatedUrl = previous.getFinalUrl() != null ? previous.getFinalUrl() : url;
+		}
+		try {
+			while (true) {
+				host = hostName(current);
+				if (!"".equals(host) && !dnsCache.isResolvable(host)) {
+					return new LinkResult(LinkResult.STATUS_UNRESOLVABLE, System.currentTimeMillis() - started, started, null, null,
+							                     redirects > 0 ? current : null, redirects, false);
+				}
+				if (!"".equals(host) && hostHealth.isDown(host)) {
+					return new LinkResult(LinkResult.STATUS_HOST_DOWN, System.currentTimeMillis() - started, started, null, null,
+							                     redirects > 0 ? current : null, redirects, false);
+				}
+				// a 304 from a redirecting host says nothing about the final target
+				LinkStatusStore.Entry validators = current.equals(validatedUrl) ? previous : null;
+				Response response = request(current, "HEAD", validators);
+				if (response.status == HttpURLConnection.HTTP_BAD_METHOD || response.status == HttpURLConnection.HTTP_NOT_IMPLEMENTED
+						    || response.status == HttpURLConnection.HTTP_FORBIDDEN || response.status == HttpURLConnection.HTTP_BAD_REQUEST) {
+					// some servers reject or mishandle HEAD; ask for the first byte only
+					response = request(current, "GET", validators);
+				}
+				hostHealth.responded(host);
+				if (isRedirect(response.status) && response.location != null && redirects < maxRedirects) {
+					current = new URL(new URL(current), response.location).toString();
+					redirects++;
+					continue;
+				}
+				LinkResult result = new LinkResult(response.status, System.currentTimeMillis() - started, started, response.etag, response.lastModified,
+						                                  redirects > 0 ? current : null, redirects, false);
+				long retryAfter = parseRetryAfter(response.retryAfter);
+				return retryAfter >= 0 ? result.withRetryAfter(retryAfter) : result;
+			}
+		} catch (SocketTimeoutException e) {
+			numTimeouts.incrementAndGet();
+			hostHealth.connectionFailed(host);
+			log.info("Timed out while trying to check url (" + current + "): " + e.getMessage());
+		} catch (ConnectException | NoRouteToHostException | UnknownHostException e) {
+			hostHealth.connectionFailed(host);
+			log.info("Cannot connect to check url (" + current + "): " + e.getMessage());
+		} catch (IOException | RuntimeException e) {
+			// Must be a bad URL
+			log.info("Encountered exception while trying to check url (" + current + "): " + e.getMessage());
+		}
+		return new LinkResult(0, System.currentTimeMillis() - started, started, null, null, redirects > 0 ? current : null, redirects, false);
+	}
+
+	/**
+	 * @param validators the previous result whose ETag and Last-Modified to send for a conditional request; may be null.
+	 */
+	private Response request(String url, String method, LinkStatusStore.Entry validators) throws IOException {
+		long started = System.currentTimeMillis();
+		numRequests.incrementAndGet();
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setRequestMethod(method);
+			connection.setInstanceFollowRedirects(false);
+			connection.setConnectTimeout(connectTimeoutMillis);
+			connection.setReadTimeout(readTimeoutMillis);
+			connection.setRequestProperty("User-Agent", userAgent);
+			if ("GET".equals(method)) {
+				connection.setRequestProperty("Range", "bytes=0-0");
+			}
+			if (validators != null && validators.getEtag() != null) {
+				connection.setRequestProperty("If-None-Match", validators.getEtag());
+			}
+			if (validators != null && validators.getLastModified() != null) {
+				connection.setRequestProperty("If-Modified-Since", validators.getLastModified());
+			}
+
+			Response response = new Response();
+			response.status = connection.getResponseCode();
+			response.location = connection.getHeaderField("Location");
+			response.etag = connection.getHeaderField("ETag");
+			response.lastModified = connection.getHeaderField("Last-Modified");
+			response.retryAfter = connection.getHeaderField("Retry-After");
+			if (response.status == HttpURLConnection.HTTP_PARTIAL) {
+				// the range request worked, so the resource exists
+				response.status = HttpURLConnection.HTTP_OK;
+			}
+			consumeBody(connection, response.status);
+			return response;
+		} finally {
+			requestMillis.addAndGet(System.currentTimeMillis() - started);
+		}
+	}
+
+	/**
+	 * Read (at most a little of) the response body and close it, so that the connection can be reused. If the server
+	 * ignored the range request and sends a large body, closing the stream early makes the JDK drop the connection
+	 * rather than download the rest.
+	 */
+	private void consumeBody(HttpURLConnection connection, int status) {
+		InputStream body = null;
+		try {
+			body = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+			if (body == null) {
+				return;
+			}
+			byte[] buffer = new byte[MAX_BODY_BYTES];
+			int read = body.read(buffer);
+			if (read > 0) {
+				bytesRead.addAndGet(read);
+			}
+		} catch (IOException e) {
+			log.debug("Cannot read response body: " + e.getMessage());
+		} finally {
+			if (body != null) {
+				try {
+					body.close();
+				} catch (IOException e) {
+					log.debug("Cannot close response body: " + e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param value a Retry-After header: either a number of seconds or an HTTP date.
+	 * @return the delay in milliseconds, or -1 if there is no (valid) header.
+	 */
+	static long parseRetryAfter(String value) {
+		if (value == null || "".equals(value.trim())) {
+			return -1;
+		}
+		value = value.trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		} catch (NumberFormatException e) {
+			// not a number of seconds, so it should be a date
+		}
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return Math.max(0, format.parse(value).getTime() - System.currentTimeMillis());
+		} catch (ParseException e) {
+			return -1;
+		}
+	}
+
+	private static String hostName(String url) {
+		try {
+			String host = new URL(url).getHost();
+			return host == null ? "" : host.toLowerCase(Locale.ROOT);
+		} catch (MalformedURLException e) {
+			return "";
+		}
+	}
+
+	private static boolean isRedirect(int status) {
+		return status == HttpURLConnection.HTTP_MOVED_PERM || status == HttpURLConnection.HTTP_MOVED_TEMP
+				       || status == HttpURLConnection.HTTP_SEE_OTHER || status == 307 || status == 308;
+	}
+
+	/**
+	 * @return the number of response body bytes read so far.
+	 */
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	/**
+	 * @return the total time spent waiting for requests so far, in milliseconds (summed over all threads).
+	 */
+	public long getRequestMillis() {
+		return requestMillis.get();
+	}
+
+	public int getNumRequests() {
+		return numRequests.get();
+	}
+
+	public int getNumTimeouts() {
+		return numTimeouts.get();
+	}
+}
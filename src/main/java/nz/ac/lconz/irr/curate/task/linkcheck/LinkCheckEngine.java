@@ -0,0 +1,229 @@
+package nz.ac.lconz.irr.curate.task.linkcheck;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Checks the links of many items concurrently while still handing out the results item by item, in the order in which
+ * the items were submitted. Items are submitted from a single thread (the curation task's); their URLs are checked by
+ * the worker threads of a {@link HostScheduler}, and each URL is checked only once per run no matter how many items it
+ * appears in. URLs are compared in the form produced by {@link UrlNormaliser}, but requested as they were first
+ * submitted, since some servers answer differently once a trailing slash is dropped; item results list them as
+ * submitted. URLs whose result is known without a request are answered straight away, bypassing the scheduler.
+ *
+ * Results are passed to the listener on the submitting thread, as soon as the oldest outstanding item is complete. To
+ * bound memory use, {@link #submit(String, java.util.List, java.util.List)} blocks while too many items are outstanding. URLs the
+ * scheduler defers because their host throttled us are handed out as deferred in the item results; their final
+ * results follow at the end of the run, through {@link ResultListener#deferredChecked(String, LinkResult)}.
+ */
+public class LinkCheckEngine {
+	private static final Logger log = Logger.getLogger(LinkCheckEngine.class);
+
+	/**
+	 * Checks a single URL. Must be thread-safe.
+	 */
+	public interface UrlChecker {
+		/**
+		 * @param url the URL as first submitted (trimmed).
+		 */
+		LinkResult check(String url);
+
+		/**
+		 * @param url the URL, normalised.
+		 * @return the result for the URL if it is known without making a request (eg from an earlier run), otherwise
+		 * null.
+		 */
+		LinkResult cached(String url);
+	}
+
+	/**
+	 * Receives the results of an item.
+	 */
+	public interface ResultListener {
+		/**
+		 * @param itemLabel the label the item was submitted with.
+		 * @param urls the URLs of the item, in the order they were submitted.
+		 * @param fields the metadata fields the URLs are in, in the same order as the URLs.
+		 * @param results the results, in the same order as the URLs.
+		 */
+		void itemChecked(String itemLabel, List<String> urls, List<String> fields, List<LinkResult> results) throws IOException;
+
+		/**
+		 * Called at the end of the run for each URL that was handed out as deferred.
+		 *
+		 * @param url the URL, normalised.
+		 * @param result its final result.
+		 */
+		void deferredChecked(String url, LinkResult result) throws IOException;
+	}
+
+	private static class PendingItem {
+		final String label;
+		final List<String> urls;
+		final List<String> fields;
+		final List<Future<LinkResult>> results;
+
+		PendingItem(String label, List<String> urls, List<String> fields, List<Future<LinkResult>> results) {
+			this.label = label;
+			this.urls = urls;
+			this.fields = fields;
+			this.results = results;
+		}
+
+		boolean isDone() {
+			for (Future<LinkResult> result : results) {
+				if (!result.isDone()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final UrlChecker checker;
+	private final ResultListener listener;
+	private final int maxPendingItems;
+	private final HostScheduler scheduler;
+	private final ConcurrentMap<String, Future<LinkResult>> checks = new ConcurrentHashMap<>();
+	private final Deque<PendingItem> pendingItems = new ArrayDeque<>();
+
+	/**
+	 * @param checker checks a single URL.
+	 * @param listener receives the results of each item.
+	 * @param scheduler runs the checks that need a request; it is shut down by {@link #finish()}.
+	 * @param maxPendingItems the maximum number of submitted items whose results haven't been handed out yet.
+	 */
+	public LinkCheckEngine(UrlChecker checker, ResultListener listener, HostScheduler scheduler, int maxPendingItems) {
+		this.checker = checker;
+		this.listener = listener;
+		this.scheduler = scheduler;
+		this.maxPendingItems = Math.max(1, maxPendingItems);
+	}
+
+	/**
+	 * Submit the URLs of an item for checking. Hands out the results of all items that are complete, and blocks until
+	 * the oldest item is complete if too many items are outstanding.
+	 *
+	 * @param itemLabel a label for the item, passed on to the listener.
+	 * @param urls the URLs of the item.
+	 * @param fields the metadata fields the URLs are in, in the same order as the URLs; passed on to the listener.
+	 */
+	public void submit(String itemLabel, List<String> urls, List<String> fields) throws InterruptedException, IOException {
+		List<Future<LinkResult>> results = new ArrayList<>(urls.size());
+		for (String url : urls) {
+			results.add(checkOnce(url));
+		}
+		pendingItems.addLast(new PendingItem(itemLabel, Collections.unmodifiableList(new ArrayList<>(urls)),
+				                                    Collections.unmodifiableList(new ArrayList<>(fields)), results));
+
+		while (!pendingItems.isEmpty() && (pendingItems.size() > maxPendingItems || pendingItems.peekFirst().isDone())) {
+			handOut(pendingItems.removeFirst());
+		}
+	}
+
+	/**
+	 * Wait for all submitted items to complete and hand out their results, retry the deferred URLs and hand out their
+	 * final results, then stop the worker threads.
+	 */
+	public void finish() throws InterruptedException, IOException {
+		try {
+			while (!pendingItems.isEmpty()) {
+				handOut(pendingItems.removeFirst());
+			}
+			for (Map.Entry<String, LinkResult> deferred : scheduler.retryDeferred().entrySet()) {
+				listener.deferredChecked(UrlNormaliser.normalise(deferred.getKey()), deferred.getValue());
+			}
+		} finally {
+			scheduler.shutdown();
+		}
+	}
+
+	/**
+	 * Check a set of URLs that are all known up front, eg collected from the whole scope of a run, and wait for the
+	 * results. Because all URLs are queued at once, the scheduler can spread the work over all hosts from the start.
+	 * Deferred URLs are retried before this method returns, so none of the results is deferred.
+	 *
+	 * @param urls the URLs to check.
+	 * @return the result for each URL, keyed by its normalised form.
+	 */
+	public Map<String, LinkResult> checkAll(Collection<String> urls) throws InterruptedException {
+		Map<String, Future<LinkResult>> futures = new LinkedHashMap<>();
+		for (String url : urls) {
+			futures.put(UrlNormaliser.normalise(url), checkOnce(url));
+		}
+		Map<String, LinkResult> results = new HashMap<>();
+		for (Map.Entry<String, Future<LinkResult>> future : futures.entrySet()) {
+			results.put(future.getKey(), getResult(future.getKey(), future.getValue()));
+		}
+		for (Map.Entry<String, LinkResult> deferred : scheduler.retryDeferred().entrySet()) {
+			results.put(UrlNormaliser.normalise(deferred.getKey()), deferred.getValue());
+		}
+		return results;
+	}
+
+	/**
+	 * @return the number of distinct URLs submitted so far.
+	 */
+	public int getNumDistinctUrls() {
+		return checks.size();
+	}
+
+	/**
+	 * @return the result for the URL; the first spelling submitted of each normalised URL is the one requested.
+	 */
+	private Future<LinkResult> checkOnce(String submittedUrl) {
+		String url = UrlNormaliser.normalise(submittedUrl);
+		Future<LinkResult> existing = checks.get(url);
+		if (existing != null) {
+			return existing;
+		}
+		final LinkResult cached = checker.cached(url);
+		if (cached != null) {
+			FutureTask<LinkResult> known = new FutureTask<>(new Callable<LinkResult>() {
+				@Override
+				public LinkResult call() {
+					return cached;
+				}
+			});
+			known.run();
+			checks.put(url, known);
+			return known;
+		}
+		Future<LinkResult> task = scheduler.submit(submittedUrl.trim());
+		checks.put(url, task);
+		return task;
+	}
+
+	private void handOut(PendingItem item) throws InterruptedException, IOException {
+		List<LinkResult> results = new ArrayList<>(item.results.size());
+		for (int i = 0; i < item.results.size(); i++) {
+			results.add(getResult(item.urls.get(i), item.results.get(i)));
+		}
+		listener.itemChecked(item.label, item.urls, item.fields, results);
+	}
+
+	private static LinkResult getResult(String url, Future<LinkResult> future) throws InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			log.warn("Problem checking url (" + url + "): " + e.getCause(), e.getCause());
+			return new LinkResult(0, 0);
+		}
+	}
+}
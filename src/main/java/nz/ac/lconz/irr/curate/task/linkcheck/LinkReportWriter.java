@@ -0,0 +1,123 @@
+package nz.ac.lconz.irr.curate.task.linkcheck;
+
+import org.apache.log4j.Logger;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Streams link results to a file, one record per link occurrence, as CSV (with a header line) or as newline-delimited
+ * JSON. Records have the fields handle, field, url, status, final_url, latency_ms and checked_at (ISO 8601, UTC);
+ * final_url is empty (null) unless redirects were followed. Nothing is kept in memory beyond the writer's buffer.
+ */
+public class LinkReportWriter implements Closeable {
+	private static final Logger log = Logger.getLogger(LinkReportWriter.class);
+
+	public enum Format {
+		CSV,
+		NDJSON
+	}
+
+	private static final String[] COLUMNS = {"handle", "field", "url", "status", "final_url", "latency_ms", "checked_at"};
+
+	private final Format format;
+	private final Writer writer;
+	private final JsonFactory jsonFactory;
+	private final SimpleDateFormat dateFormat;
+
+	/**
+	 * Create the file (replacing any existing one) and, for CSV, write the header line.
+	 */
+	public LinkReportWriter(File file, Format format) throws IOException {
+		this.format = format;
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory for link results file " + file);
+		}
+		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024);
+		if (format == Format.NDJSON) {
+			jsonFactory = new JsonFactory();
+			jsonFactory.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+		} else {
+			jsonFactory = null;
+			writeCsvLine(COLUMNS);
+		}
+		dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	/**
+	 * @param value the configured format, csv or ndjson (case-insensitive).
+	 * @param defaultFormat the format to use if no valid value is configured.
+	 */
+	public static Format parseFormat(String value, Format defaultFormat) {
+		if (value == null || "".equals(value)) {
+			return defaultFormat;
+		}
+		try {
+			return Format.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			log.warn("Unknown link results format " + value + ", using " + defaultFormat);
+			return defaultFormat;
+		}
+	}
+
+	/**
+	 * Write the record for one occurrence of a link.
+	 */
+	public void write(String handle, String field, String url, LinkResult result) throws IOException {
+		String checkedAt = dateFormat.format(new Date(result.getCheckedAt()));
+		if (format == Format.NDJSON) {
+			JsonGenerator generator = jsonFactory.createJsonGenerator(writer);
+			generator.writeStartObject();
+			generator.writeStringField(COLUMNS[0], handle);
+			generator.writeStringField(COLUMNS[1], field);
+			generator.writeStringField(COLUMNS[2], url);
+			generator.writeNumberField(COLUMNS[3], result.getStatus());
+			generator.writeStringField(COLUMNS[4], result.getFinalUrl());
+			generator.writeNumberField(COLUMNS[5], result.getLatencyMillis());
+			generator.writeStringField(COLUMNS[6], checkedAt);
+			generator.writeEndObject();
+			generator.close();
+			writer.write('\n');
+		} else {
+			writeCsvLine(new String[] {handle, field, url, String.valueOf(result.getStatus()), result.getFinalUrl(),
+					                          String.valueOf(result.getLatencyMillis()), checkedAt});
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		writer.close();
+	}
+
+	private void writeCsvLine(String[] values) throws IOException {
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				writer.write(',');
+			}
+			writer.write(csvEscape(values[i]));
+		}
+		writer.write("\r\n");
+	}
+
+	private static String csvEscape(String value) {
+		if (value == null) {
+			return "";
+		}
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}
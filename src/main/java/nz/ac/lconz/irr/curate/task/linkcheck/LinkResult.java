@@ -0,0 +1,165 @@
+package nz.ac.lconz.irr.curate.task.linkcheck;
+
+import java.net.HttpURLConnection;
+
+/**
+ * The outcome of checking one URL.
+ */
+public class LinkResult {
+	/** the status of a link whose host was considered down, so that no request was sent. */
+	public static final int STATUS_HOST_DOWN = -1;
+	/** the status of a link whose host name doesn't resolve. */
+	public static final int STATUS_UNRESOLVABLE = -2;
+
+	private final int status;
+	private final long latencyMillis;
+	private final long checkedAt;
+	private final String etag;
+	private final String lastModified;
+	private final String finalUrl;
+	private final int redirects;
+	private final boolean cached;
+	private final long retryAfterMillis;
+	private final boolean deferred;
+
+	/**
+	 * @param status the HTTP response code, or 0 if no response was received.
+	 * @param latencyMillis how long the check took.
+	 */
+	public LinkResult(int status, long latencyMillis) {
+		this(status, latencyMillis, System.currentTimeMillis(), null, null, null, 0, false);
+	}
+
+	/**
+	 * @param status the HTTP response code, 0 if no response was received, or one of the negative STATUS_ constants.
+	 * @param latencyMillis how long the check took.
+	 * @param checkedAt when the URL was checked, in milliseconds.
+	 * @param etag the ETag header of the response, or null.
+	 * @param lastModified the Last-Modified header of the response, or null.
+	 * @param finalUrl the URL the status belongs to after following redirects, or null if there were none.
+	 * @param redirects the number of redirects followed.
+	 * @param cached whether the result was taken from a previous run rather than checked in this run.
+	 */
+	public LinkResult(int status, long latencyMillis, long checkedAt, String etag, String lastModified, String finalUrl, int redirects, boolean cached) {
+		this(status, latencyMillis, checkedAt, etag, lastModified, finalUrl, redirects, cached, -1, false);
+	}
+
+	private LinkResult(int status, long latencyMillis, long checkedAt, String etag, String lastModified, String finalUrl, int redirects, boolean cached,
+	                   long retryAfterMillis, boolean deferred) {
+		this.status = status;
+		this.latencyMillis = latencyMillis;
+		this.checkedAt = checkedAt;
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.finalUrl = finalUrl;
+		this.redirects = redirects;
+		this.cached = cached;
+		this.retryAfterMillis = retryAfterMillis;
+		this.deferred = deferred;
+	}
+
+	/**
+	 * @param millis how long the server asked us to wait before the next request (Retry-After header).
+	 * @return a copy of this result with the given delay.
+	 */
+	public LinkResult withRetryAfter(long millis) {
+		return new LinkResult(status, latencyMillis, checkedAt, etag, lastModified, finalUrl, redirects, cached, millis, deferred);
+	}
+
+	/**
+	 * @return a copy of this result marked as provisional: the URL will be checked again at the end of the run.
+	 */
+	public LinkResult asDeferred() {
+		return new LinkResult(status, latencyMillis, checkedAt, etag, lastModified, finalUrl, redirects, cached, retryAfterMillis, true);
+	}
+
+	/**
+	 * @return a result for a link whose stored result is still fresh.
+	 */
+	public static LinkResult fromStore(LinkStatusStore.Entry entry) {
+		return new LinkResult(entry.getStatus(), 0, entry.getCheckedAt(), entry.getEtag(), entry.getLastModified(), entry.getFinalUrl(), 0, true);
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public long getLatencyMillis() {
+		return latencyMillis;
+	}
+
+	public long getCheckedAt() {
+		return checkedAt;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	public String getFinalUrl() {
+		return finalUrl;
+	}
+
+	public int getRedirects() {
+		return redirects;
+	}
+
+	public boolean isCached() {
+		return cached;
+	}
+
+	/**
+	 * @return the delay the server asked for in a Retry-After header, in milliseconds, or -1 if it didn't.
+	 */
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+
+	/**
+	 * @return whether the result is provisional because the server was throttling us; the final result is handed out
+	 * at the end of the run.
+	 */
+	public boolean isDeferred() {
+		return deferred;
+	}
+
+	/**
+	 * @return whether the server asked us to slow down.
+	 */
+	public boolean isThrottled() {
+		return status == 429 || status == HttpURLConnection.HTTP_UNAVAILABLE;
+	}
+
+	/**
+	 * @return whether an HTTP request was sent to get this result.
+	 */
+	public boolean isRequestSent() {
+		return !cached && (status >= 0 || redirects > 0);
+	}
+
+	public boolean isOk() {
+		return status >= 200 && status < 300;
+	}
+
+	/**
+	 * @return the status for use in reports.
+	 */
+	public String getStatusLabel() {
+		switch (status) {
+			case STATUS_HOST_DOWN:
+				return status + " (host down)";
+			case STATUS_UNRESOLVABLE:
+				return status + " (unresolvable)";
+			default:
+				return String.valueOf(status);
+		}
+	}
+
+	public LinkStatusStore.Entry toStoreEntry() {
+		return new LinkStatusStore.Entry(status, checkedAt, etag, lastModified, finalUrl);
+	}
+}
@@ -0,0 +1,190 @@
+package nz.ac.lconz.irr.curate.task.linkcheck;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the outcome of link checks across runs, so that a run only needs to recheck links whose last result is
+ * stale. Successful and failed results go stale after separate times: a working link is likely to keep working, while
+ * a broken one may just have been down temporarily.
+ *
+ * The store is a tab-separated file (url, status, checked-at in milliseconds, ETag, Last-Modified, final URL after
+ * redirects) that is read completely when the store is opened and rewritten on {@link #save()}. Lookups and updates
+ * are thread-safe.
+ */
+public class LinkStatusStore {
+	private static final Logger log = Logger.getLogger(LinkStatusStore.class);
+
+	/**
+	 * A stored result.
+	 */
+	public static class Entry {
+		private final int status;
+		private final long checkedAt;
+		private final String etag;
+		private final String lastModified;
+		private final String finalUrl;
+
+		public Entry(int status, long checkedAt, String etag, String lastModified, String finalUrl) {
+			this.status = status;
+			this.checkedAt = checkedAt;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.finalUrl = finalUrl;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		public long getCheckedAt() {
+			return checkedAt;
+		}
+
+		/**
+		 * @return the ETag header of the last response, or null.
+		 */
+		public String getEtag() {
+			return etag;
+		}
+
+		/**
+		 * @return the Last-Modified header of the last response, or null.
+		 */
+		public String getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @return the URL the status belongs to after following redirects, or null if there were none.
+		 */
+		public String getFinalUrl() {
+			return finalUrl;
+		}
+
+		public boolean isOk() {
+			return status >= 200 && status < 300;
+		}
+	}
+
+	private final File file;
+	private final long okTtlMillis;
+	private final long failedTtlMillis;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * Open the store, reading the given file if it exists.
+	 *
+	 * @param file the file backing the store.
+	 * @param okTtlMillis how long a successful result stays fresh.
+	 * @param failedTtlMillis how long a failed result stays fresh.
+	 */
+	public LinkStatusStore(File file, long okTtlMillis, long failedTtlMillis) throws IOException {
+		this.file = file;
+		this.okTtlMillis = okTtlMillis;
+		this.failedTtlMillis = failedTtlMillis;
+		if (file.exists()) {
+			load();
+		}
+	}
+
+	/**
+	 * @return the stored result for the URL, whether fresh or not, or null if there is none.
+	 */
+	public Entry get(String url) {
+		return entries.get(url);
+	}
+
+	/**
+	 * @param entry a stored result, may be null.
+	 * @param now the current time in milliseconds.
+	 * @return whether the entry is still fresh, ie doesn't need to be rechecked.
+	 */
+	public boolean isFresh(Entry entry, long now) {
+		if (entry == null) {
+			return false;
+		}
+		long ttl = entry.isOk() ? okTtlMillis : failedTtlMillis;
+		return now - entry.getCheckedAt() < ttl;
+	}
+
+	public void put(String url, Entry entry) {
+		entries.put(url, entry);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private void load() throws IOException {
+		int invalid = 0;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] parts = line.split("\t", -1);
+				// files written before the final URL was recorded have five columns
+				if (parts.length != 5 && parts.length != 6) {
+					invalid++;
+					continue;
+				}
+				try {
+					entries.put(parts[0], new Entry(Integer.parseInt(parts[1]), Long.parseLong(parts[2]),
+							                               emptyToNull(parts[3]), emptyToNull(parts[4]),
+							                               parts.length > 5 ? emptyToNull(parts[5]) : null));
+				} catch (NumberFormatException e) {
+					invalid++;
+				}
+			}
+		}
+		if (invalid > 0) {
+			log.warn("Ignored " + invalid + " invalid line(s) in link status store " + file);
+		}
+		log.info("Read " + entries.size() + " link status(es) from " + file);
+	}
+
+	/**
+	 * Write the store to its file. The file is replaced atomically, so an interrupted save leaves the previous
+	 * version intact.
+	 */
+	public void save() throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory for link status store " + file);
+		}
+		File tmpFile = new File(directory, file.getName() + ".tmp");
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"))) {
+			for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+				String url = mapEntry.getKey();
+				if (url.indexOf('\t') >= 0 || url.indexOf('\n') >= 0 || url.indexOf('\r') >= 0) {
+					continue;
+				}
+				Entry entry = mapEntry.getValue();
+				writer.write(url + "\t" + entry.getStatus() + "\t" + entry.getCheckedAt() + "\t"
+						             + clean(entry.getEtag()) + "\t" + clean(entry.getLastModified()) + "\t"
+						             + clean(entry.getFinalUrl()) + "\n");
+			}
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static String emptyToNull(String value) {
+		return "".equals(value) ? null : value;
+	}
+
+	private static String clean(String value) {
+		return value == null ? "" : value.replaceAll("[\t\r\n]", " ");
+	}
+}
@@ -0,0 +1,113 @@
+package nz.ac.lconz.irr.curate.task.linkcheck;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Counts link results by host and status class (2xx, 3xx, 4xx, 5xx, no response, host down, unresolvable). Memory use
+ * is bounded: only the first maxHosts hosts are counted separately, all further hosts are lumped together.
+ */
+public class LinkSummary {
+	private static final String[] CLASSES = {"2xx", "3xx", "4xx", "5xx", "no response", "host down", "unresolvable", "other"};
+	private static final String OTHER_HOSTS = "(other hosts)";
+
+	private final int maxHosts;
+	private final Map<String, int[]> counts = new HashMap<>();
+
+	/**
+	 * @param maxHosts the maximum number of hosts to count separately.
+	 */
+	public LinkSummary(int maxHosts) {
+		this.maxHosts = Math.max(1, maxHosts);
+	}
+
+	/**
+	 * Count one occurrence of a link.
+	 */
+	public void add(String url, LinkResult result) {
+		String host = hostName(url);
+		int[] hostCounts = counts.get(host);
+		if (hostCounts == null) {
+			if (counts.size() >= maxHosts) {
+				host = OTHER_HOSTS;
+				hostCounts = counts.get(host);
+			}
+			if (hostCounts == null) {
+				hostCounts = new int[CLASSES.length + 1];
+				counts.put(host, hostCounts);
+			}
+		}
+		hostCounts[statusClass(result.getStatus())]++;
+		hostCounts[CLASSES.length]++;
+	}
+
+	public boolean isEmpty() {
+		return counts.isEmpty();
+	}
+
+	/**
+	 * @return one line per host, hosts with the most failed links first, eg
+	 * "example.com: 12 links; 2xx 10, 4xx 2".
+	 */
+	public String format() {
+		List<Map.Entry<String, int[]>> entries = new ArrayList<>(counts.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, int[]>>() {
+			@Override
+			public int compare(Map.Entry<String, int[]> a, Map.Entry<String, int[]> b) {
+				int failedA = a.getValue()[CLASSES.length] - a.getValue()[0];
+				int failedB = b.getValue()[CLASSES.length] - b.getValue()[0];
+				if (failedA != failedB) {
+					return failedA > failedB ? -1 : 1;
+				}
+				return a.getKey().compareTo(b.getKey());
+			}
+		});
+
+		StringBuilder summary = new StringBuilder();
+		for (Map.Entry<String, int[]> entry : entries) {
+			int[] hostCounts = entry.getValue();
+			summary.append(entry.getKey()).append(": ").append(hostCounts[CLASSES.length]).append(" links");
+			String separator = "; ";
+			for (int i = 0; i < CLASSES.length; i++) {
+				if (hostCounts[i] > 0) {
+					summary.append(separator).append(CLASSES[i]).append(" ").append(hostCounts[i]);
+					separator = ", ";
+				}
+			}
+			summary.append("\n");
+		}
+		return summary.toString();
+	}
+
+	private static int statusClass(int status) {
+		if (status >= 200 && status < 600) {
+			return status / 100 - 2;
+		}
+		switch (status) {
+			case 0:
+				return 4;
+			case LinkResult.STATUS_HOST_DOWN:
+				return 5;
+			case LinkResult.STATUS_UNRESOLVABLE:
+				return 6;
+			default:
+				return 7;
+		}
+	}
+
+	private static String hostName(String url) {
+		try {
+			String host = new URL(url.trim()).getHost();
+			return host == null || "".equals(host) ? "(no host)" : host.toLowerCase(Locale.ROOT);
+		} catch (MalformedURLException e) {
+			return "(invalid url)";
+		}
+	}
+}
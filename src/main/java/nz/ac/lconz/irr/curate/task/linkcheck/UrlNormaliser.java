@@ -0,0 +1,61 @@
+package nz.ac.lconz.irr.curate.task.linkcheck;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Locale;
+
+/**
+ * Brings URLs that point at the same resource into the same form, so that each resource is checked only once:
+ * surrounding whitespace is removed, scheme and host are lower-cased, default ports, fragments and trailing slashes are
+ * dropped, and an empty path becomes "/". Path and query are otherwise left alone, since servers may treat them
+ * case-sensitively.
+ */
+public class UrlNormaliser {
+	private UrlNormaliser() {
+	}
+
+	/**
+	 * @param url the URL as entered in the metadata.
+	 * @return the normalised URL; URLs that cannot be parsed are returned trimmed but otherwise unchanged.
+	 */
+	public static String normalise(String url) {
+		if (url == null) {
+			return null;
+		}
+		String trimmed = url.trim();
+		URI uri;
+		try {
+			uri = new URI(trimmed);
+		} catch (URISyntaxException e) {
+			return trimmed;
+		}
+		if (uri.getScheme() == null || uri.getRawAuthority() == null || uri.getHost() == null) {
+			return trimmed;
+		}
+
+		String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+		StringBuilder normalised = new StringBuilder(trimmed.length());
+		normalised.append(scheme).append("://");
+		if (uri.getRawUserInfo() != null) {
+			normalised.append(uri.getRawUserInfo()).append('@');
+		}
+		normalised.append(uri.getHost().toLowerCase(Locale.ROOT));
+		int port = uri.getPort();
+		if (port != -1 && !(port == 80 && "http".equals(scheme)) && !(port == 443 && "https".equals(scheme))) {
+			normalised.append(':').append(port);
+		}
+
+		String path = uri.getRawPath();
+		if (path == null || "".equals(path)) {
+			path = "/";
+		}
+		while (path.length() > 1 && path.endsWith("/")) {
+			path = path.substring(0, path.length() - 1);
+		}
+		normalised.append(path);
+		if (uri.getRawQuery() != null) {
+			normalised.append('?').append(uri.getRawQuery());
+		}
+		return normalised.toString();
+	}
+}
@@ -15,6 +15,13 @@ import java.io.IOException;
 import java.sql.SQLException;
 
 /**
+ * Task options:
+ * - field.date: Metadata field that contains the embargo expiry date
+ * - select.by-query: true|false Whether to select the items that have an embargo date with a metadata query rather than
+ *   looking at every item in scope. Default: false.
+ * - select.include-not-archived: true|false Whether select.by-query also finds items that aren't archived (workspace and
+ *   workflow items, which are the ones this task changes) when run on the whole site. Default: false.
+ *
  * @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ Institutional Research Repositories
  */
 @Distributive
@@ -25,6 +32,9 @@ public class ApplyThesisEmbargo extends AbstractCurationTask {
 	private String dateElement;
 	private String dateQualifier;
 
+	private boolean selectByQuery;
+	private boolean selectNotArchived;
+
 	int processedItems;
 
 	@Override
@@ -33,7 +43,7 @@ public class ApplyThesisEmbargo extends AbstractCurationTask {
 		processedItems = 0;
 
 		// do work
-		distribute(dso);
+		distributeCandidates(dso);
 
 		// communicate results
 		if (processedItems > 0) {
@@ -47,6 +57,9 @@ public class ApplyThesisEmbargo extends AbstractCurationTask {
 	public void init(Curator curator, String taskId) throws IOException {
 		super.init(curator, taskId);
 
+		selectByQuery = taskBooleanProperty("select.by-query", false);
+		selectNotArchived = taskBooleanProperty("select.include-not-archived", false);
+
 		String dateField = taskProperty("field.date");
 		if (dateField == null || "".equals(dateField)) {
 			log.warn("No embargo date field set up");
@@ -64,6 +77,28 @@ public class ApplyThesisEmbargo extends AbstractCurationTask {
 		}
 	}
 
+	/**
+	 * Run performItem on the items in scope: on all of them via distribute, or, if select.by-query is set, only on the
+	 * items that have an embargo date according to a metadata query.
+	 */
+	private void distributeCandidates(DSpaceObject dso) throws IOException {
+		if (!selectByQuery || !EmbargoCandidates.canSelect(dso) || dateSchema == null) {
+			distribute(dso);
+			return;
+		}
+		try {
+			new EmbargoCandidates().requireField(dateSchema, dateElement, dateQualifier).includeNotArchived(selectNotArchived)
+					.process(Curator.curationContext(), dso, new EmbargoCandidates.ItemProcessor() {
+						@Override
+						public void process(Item item) throws SQLException, IOException {
+							performItem(item);
+						}
+					});
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
 	@Override
 	protected void performItem(Item item) throws SQLException, IOException {
 		if (item.isArchived() || item.isWithdrawn()) {
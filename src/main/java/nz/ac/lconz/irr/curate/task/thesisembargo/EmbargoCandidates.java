@@ -0,0 +1,174 @@
+package nz.ac.lconz.irr.curate.task.thesisembargo;
+
+import org.apache.log4j.Logger;
+import org.dspace.content.Collection;
+import org.dspace.content.Community;
+import org.dspace.content.DSpaceObject;
+import org.dspace.content.Item;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the items in a curation scope (site, community or collection) that have a value in certain metadata fields,
+ * with a single query, so that embargo tasks only need to load the few items that can possibly be embargoed instead
+ * of every item in scope.
+ *
+ * Like distributing over the scope, the query only finds archived, non-withdrawn items in the scope's collections,
+ * unless non-archived items are included; those are only found for the whole site, since workflow items don't belong
+ * to a collection yet. Tasks still check each candidate item as usual.
+ *
+ * {@link #process(Context, DSpaceObject, ItemProcessor)} loads the candidates one at a time and hands them to the task,
+ * eg to its performItem method.
+ */
+public class EmbargoCandidates {
+	private static final Logger log = Logger.getLogger(EmbargoCandidates.class);
+
+	/**
+	 * Receives the candidate items, one at a time.
+	 */
+	public interface ItemProcessor {
+		void process(Item item) throws SQLException, IOException;
+	}
+
+	private final List<String[]> fields = new ArrayList<>();
+	private boolean includeNotArchived;
+
+	/**
+	 * Only select items that have a non-empty value in this field. Can be called several times; items must then have
+	 * values in all fields.
+	 *
+	 * @param qualifier the field's qualifier, or null for an unqualified field.
+	 */
+	public EmbargoCandidates requireField(String schema, String element, String qualifier) {
+		fields.add(new String[] {schema, element, qualifier});
+		return this;
+	}
+
+	/**
+	 * Also select items that aren't archived (eg workflow items) when the scope is the whole site.
+	 */
+	public EmbargoCandidates includeNotArchived(boolean include) {
+		includeNotArchived = include;
+		return this;
+	}
+
+	/**
+	 * @return whether candidates can be selected for this scope; single items should just be processed directly.
+	 */
+	public static boolean canSelect(DSpaceObject scope) {
+		int type = scope.getType();
+		return type == Constants.SITE || type == Constants.COMMUNITY || type == Constants.COLLECTION;
+	}
+
+	/**
+	 * @param scope the site, a community or a collection.
+	 * @return the ids of the matching items, in ascending order.
+	 */
+	public List<Integer> find(Context context, DSpaceObject scope) throws SQLException {
+		List<Object> parameters = new ArrayList<>();
+		StringBuilder query = new StringBuilder("SELECT i.item_id FROM item i WHERE ");
+		// booleans can't be bound as parameters, so these are literals
+		if (includeNotArchived && scope.getType() == Constants.SITE) {
+			query.append("i.withdrawn = '0'");
+		} else {
+			query.append("i.in_archive = '1' AND i.withdrawn = '0'");
+		}
+
+		for (String[] field : fields) {
+			query.append(" AND EXISTS (SELECT 1 FROM metadatavalue mv")
+			     .append(" JOIN metadatafieldregistry mfr ON mv.metadata_field_id = mfr.metadata_field_id")
+			     .append(" JOIN metadataschemaregistry msr ON mfr.metadata_schema_id = msr.metadata_schema_id")
+			     .append(" WHERE mv.resource_id = i.item_id AND mv.resource_type_id = ").append(Constants.ITEM)
+			     .append(" AND msr.short_id = ? AND mfr.element = ?");
+			parameters.add(field[0]);
+			parameters.add(field[1]);
+			if (field[2] == null) {
+				query.append(" AND mfr.qualifier IS NULL");
+			} else {
+				query.append(" AND mfr.qualifier = ?");
+				parameters.add(field[2]);
+			}
+			query.append(" AND mv.text_value IS NOT NULL");
+			if (!DatabaseManager.isOracle()) {
+				// Oracle stores empty strings as null
+				query.append(" AND mv.text_value <> ''");
+			}
+			query.append(")");
+		}
+
+		if (scope.getType() != Constants.SITE) {
+			List<Integer> collectionIds = getCollectionIds(scope);
+			if (collectionIds.isEmpty()) {
+				return new ArrayList<>();
+			}
+			query.append(" AND EXISTS (SELECT 1 FROM collection2item c2i WHERE c2i.item_id = i.item_id AND c2i.collection_id IN (");
+			for (int i = 0; i < collectionIds.size(); i++) {
+				query.append(i > 0 ? ", ?" : "?");
+				parameters.add(collectionIds.get(i));
+			}
+			query.append("))");
+		}
+		query.append(" ORDER BY i.item_id");
+
+		List<Integer> itemIds = new ArrayList<>();
+		TableRowIterator rows = DatabaseManager.query(context, query.toString(), parameters.toArray());
+		try {
+			while (rows.hasNext()) {
+				itemIds.add(rows.next().getIntColumn("item_id"));
+			}
+		} finally {
+			rows.close();
+		}
+		return itemIds;
+	}
+
+	/**
+	 * Find the matching items in the scope and pass each of them to the processor.
+	 *
+	 * @param scope the site, a community or a collection.
+	 * @return the number of items found.
+	 */
+	public int process(Context context, DSpaceObject scope, ItemProcessor processor) throws SQLException, IOException {
+		List<Integer> itemIds = find(context, scope);
+		log.info("Selected " + itemIds.size() + " candidate item(s) in " + scope.getTypeText() + " id=" + scope.getID());
+		processAll(context, itemIds, processor);
+		return itemIds.size();
+	}
+
+	/**
+	 * Load the given items one at a time and pass them to the processor. Each item is removed from the context's cache
+	 * once it has been processed, so memory use doesn't grow with the number of items. Items that no longer exist are
+	 * skipped.
+	 */
+	public static void processAll(Context context, List<Integer> itemIds, ItemProcessor processor) throws SQLException, IOException {
+		for (int itemId : itemIds) {
+			Item item = Item.find(context, itemId);
+			if (item != null) {
+				processor.process(item);
+				context.removeCached(item, itemId);
+			}
+		}
+	}
+
+	/**
+	 * @return the ids of the collections in the scope; empty for the site and for items.
+	 */
+	static List<Integer> getCollectionIds(DSpaceObject scope) throws SQLException {
+		List<Integer> collectionIds = new ArrayList<>();
+		if (scope.getType() == Constants.COLLECTION) {
+			collectionIds.add(scope.getID());
+		} else if (scope.getType() == Constants.COMMUNITY) {
+			for (Collection collection : ((Community) scope).getAllCollections()) {
+				collectionIds.add(collection.getID());
+			}
+		}
+		return collectionIds;
+	}
+}
@@ -6,6 +6,8 @@ import org.dspace.content.DSpaceObject;
 import org.dspace.content.Item;
 import org.dspace.content.Metadatum;
 import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
 import org.dspace.core.Email;
 import org.dspace.core.I18nUtil;
 import org.dspace.curate.AbstractCurationTask;
@@ -14,7 +16,17 @@ import org.dspace.curate.Distributive;
 import org.dspace.handle.HandleManager;
 
 import javax.mail.MessagingException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
 import java.util.*;
 
@@ -29,6 +41,20 @@ import java.util.*;
  * - recipients: A comma-separated list of e-mail addresses that should receive the e-mail. Default: value of mail.admin property.
  * - email.send-if-empty: true|false Whether to send an e-mail if no items match the criteria. Default: true.
  * - template: The name of the e-mail template (in [dspace]/config/emails). Default: thesisembargo_email.
+ * - select.by-query: true|false Whether to select the items that have an embargo date with a metadata query rather than
+ *   looking at every item in scope. Default: false.
+ * - use.index: true|false Whether to look up the items lifting in the reporting period in the lift date index (see
+ *   LiftDateIndex) when run on the whole site. Only used if the index covers field.date. Default: false.
+ * - incremental: true|false Whether to only list items that are new or whose embargo date has changed since the last
+ *   e-mail was sent. Default: false.
+ * - state.file: file in which the items listed so far are kept in incremental mode. Default: [dspace.dir]/var/[task id].state
+ * - attachment.threshold: if more items than this are listed, they are sent as a CSV attachment instead of in the
+ *   e-mail body. Default: 100.
+ *
+ * Only the lift date and id of each listed item are kept in memory; items are loaded again one lift date at a time
+ * when the e-mail is written. In incremental mode, the state file lists every matching item with its embargo date and
+ * is only replaced once the e-mail has been sent, so a failed run lists the same items again next time. The state file
+ * reflects the scope of the last run; use separate task ids (and so separate state files) for different scopes.
  *
  * @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ Institutional Research Repositories
  */
@@ -36,6 +62,8 @@ import java.util.*;
 public class ExpiringEmbargoesReminder extends AbstractCurationTask {
 	private static final Logger log = Logger.getLogger(ExpiringEmbargoesReminder.class);
 
+	private static final String ATTACHMENT_NAME = "embargoes.csv";
+
 	private String dateSchema;
 	private String dateElement;
 	private String dateQualifier;
@@ -47,48 +75,105 @@ public class ExpiringEmbargoesReminder extends AbstractCurationTask {
 	private boolean sendIfEmpty;
 	private int lookaheadMonths;
 	private String templateName;
-
-	private List<EmbargoedItemInfo> items;
+	private boolean selectByQuery;
+	private boolean useIndex;
+	private boolean incremental;
+	private File stateFile;
+	private int attachmentThreshold;
+
+	// listed items as (lift day << 32 | item id), so that sorting orders them by lift date
+	private long[] itemKeys;
+	private int numItems;
+	private int numMatching;
+	// embargo dates of the items listed last time, by item id (incremental mode only)
+	private Map<Integer, String> reported;
+	private File newStateFile;
+	private Writer newState;
+
+	// hands the selected candidate items to performItem
+	private final EmbargoCandidates.ItemProcessor itemPerformer = new EmbargoCandidates.ItemProcessor() {
+		@Override
+		public void process(Item item) throws SQLException, IOException {
+			performItem(item);
+		}
+	};
 
 	@Override
 	public int perform(DSpaceObject dso) throws IOException {
 		// reset status
-		items = new ArrayList<EmbargoedItemInfo>();
-
-		// do work
-		distribute(dso);
-
-		Collections.sort(items, new EmbargoedItemInfoComparator());
-
-		// communicate results
-		String message = String.format("Found %d embargoed items", items.size());
-		report(message);
-		setResult(message);
+		itemKeys = new long[64];
+		numItems = 0;
+		numMatching = 0;
+		if (incremental) {
+			reported = readState();
+			openNewState();
+		}
 
 		boolean hasError = false;
+		File attachment = null;
+		try {
+			// do work
+			try {
+				distributeCandidates(dso);
+			} finally {
+				if (newState != null) {
+					newState.close();
+				}
+			}
+
+			Arrays.sort(itemKeys, 0, numItems);
 
-		if ((sendIfEmpty || !items.isEmpty()) && !recipients.isEmpty()) {
-			// send e-mail
-			Email email = Email.getEmail(I18nUtil.getEmailFilename(Locale.getDefault(), templateName));
-			for (String recipient : recipients) {
-				email.addRecipient(recipient);
+			// communicate results
+			String message;
+			if (incremental) {
+				message = String.format("Found %d embargoed items, %d new or changed", numMatching, numItems);
+			} else {
+				message = String.format("Found %d embargoed items", numItems);
 			}
+			report(message);
+			setResult(message);
+
+			if ((sendIfEmpty || numItems > 0) && !recipients.isEmpty()) {
+				// send e-mail
+				Email email = Email.getEmail(I18nUtil.getEmailFilename(Locale.getDefault(), templateName));
+				for (String recipient : recipients) {
+					email.addRecipient(recipient);
+				}
 
-			email.addArgument(buildMessage());
+				try {
+					if (numItems > attachmentThreshold) {
+						attachment = writeAttachment();
+						email.addArgument(String.format("%d items are listed in the attached file %s.", numItems, ATTACHMENT_NAME));
+						email.addAttachment(attachment, ATTACHMENT_NAME);
+					} else {
+						email.addArgument(buildMessage());
+					}
+					email.send();
+				} catch (MessagingException | IOException | SQLException e) {
+					String error = "Cannot send notification e-mail: " + e.getMessage();
+					log.error(error, e);
+					report(error);
+					setResult(error);
+					hasError = true;
+				}
+			}
 
-			try {
-				email.send();
-			} catch (MessagingException | IOException e) {
-				String error = "Cannot send notification e-mail: " + e.getMessage();
-				log.error(error, e);
-				report(error);
-				setResult(error);
-				hasError = true;
+			if (incremental && !hasError) {
+				Files.move(newStateFile.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		} finally {
+			if (attachment != null && !attachment.delete()) {
+				log.warn("Cannot delete temporary file " + attachment);
+			}
+			if (newStateFile != null && newStateFile.exists() && !newStateFile.delete()) {
+				log.warn("Cannot delete temporary state file " + newStateFile);
 			}
+			itemKeys = null;
+			reported = null;
+			newState = null;
+			newStateFile = null;
 		}
 
-		items = null;
-
 		if (hasError) {
 			return Curator.CURATE_ERROR;
 		} else {
@@ -118,6 +203,16 @@ public class ExpiringEmbargoesReminder extends AbstractCurationTask {
 		includeExpired = taskBooleanProperty("include.expired", true);
 		archivedOnly = !taskBooleanProperty("include.not-archived", false);
 		lookaheadMonths = taskIntProperty("lookahead-months", 0);
+		selectByQuery = taskBooleanProperty("select.by-query", false);
+		useIndex = taskBooleanProperty("use.index", false);
+		incremental = taskBooleanProperty("incremental", false);
+		attachmentThreshold = taskIntProperty("attachment.threshold", 100);
+
+		String stateFileProperty = taskProperty("state.file");
+		if (stateFileProperty == null || "".equals(stateFileProperty)) {
+			stateFileProperty = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + taskId + ".state";
+		}
+		stateFile = new File(stateFileProperty);
 
 		if (lookaheadMonths < 0 && !includeExpired) {
 			log.warn("Embargo e-mails don't include expired items but lookahead window is negative - contradictory configuration, no items can match these criteria");
@@ -139,6 +234,64 @@ public class ExpiringEmbargoesReminder extends AbstractCurationTask {
 		}
 	}
 
+	/**
+	 * Run performItem on the items in scope: on all of them via distribute, or only on the items that may match
+	 * according to the lift date index (if use.index is set) or that have an embargo date according to a metadata
+	 * query (if select.by-query is set).
+	 */
+	private void distributeCandidates(DSpaceObject dso) throws IOException {
+		try {
+			Context context = Curator.curationContext();
+			if (useIndex && dso.getType() == Constants.SITE && dateSchema != null) {
+				List<Integer> itemIds = findIndexedCandidates();
+				if (itemIds != null) {
+					log.info("Selected " + itemIds.size() + " candidate item(s) from the lift date index");
+					EmbargoCandidates.processAll(context, itemIds, itemPerformer);
+					return;
+				}
+			}
+			if (!selectByQuery || !EmbargoCandidates.canSelect(dso) || dateSchema == null) {
+				distribute(dso);
+				return;
+			}
+			new EmbargoCandidates().requireField(dateSchema, dateElement, dateQualifier).includeNotArchived(!archivedOnly)
+					.process(context, dso, itemPerformer);
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Look up the items that lift within the reporting period in the lift date index. The period is widened by a day
+	 * on either side since the index works in UTC days; performItem checks the exact lift dates.
+	 *
+	 * @return the candidate item ids, or null if the index can't be used.
+	 */
+	private List<Integer> findIndexedCandidates() throws IOException {
+		if (!LiftDateIndex.covers(dateSchema, dateElement, dateQualifier)) {
+			log.warn("Lift date index doesn't cover field " + dateSchema + "." + dateElement + (dateQualifier != null ? "." + dateQualifier : "") + ", not using it");
+			return null;
+		}
+		LiftDateIndex index = LiftDateIndex.read();
+		if (index == null) {
+			log.warn("Lift date index hasn't been built yet, not using it");
+			return null;
+		}
+		Date from = null;
+		if (!includeExpired) {
+			Calendar calendar = getBeginningOfToday();
+			calendar.add(Calendar.DAY_OF_MONTH, -1);
+			from = calendar.getTime();
+		}
+		Date to = null;
+		if (lookaheadMonths >= 0) {
+			Calendar calendar = getEndOfLookahead(lookaheadMonths);
+			calendar.add(Calendar.DAY_OF_MONTH, 1);
+			to = calendar.getTime();
+		}
+		return index.find(from, to);
+	}
+
 	@Override
 	protected void performItem(Item item) throws SQLException, IOException {
 		if (item.isWithdrawn()) {
@@ -164,13 +317,40 @@ public class ExpiringEmbargoesReminder extends AbstractCurationTask {
 		if (lookaheadMonths >= 0) {
 			include &= checkExpiresWithinMonths(embargoDate, lookaheadMonths);
 		}
-		if (include) {
-			items.add(new EmbargoedItemInfo(item, embargoDate));
-			report(embargoDate.toString() + ": " + item.getHandle());
+		if (!include) {
+			return;
+		}
+		numMatching++;
+		if (incremental) {
+			newState.write(item.getID() + "\t" + dateMetadata[0].value + "\n");
+			if (dateMetadata[0].value.equals(reported.get(item.getID()))) {
+				return; // already listed last time
+			}
 		}
+		addItem(item.getID(), embargoDate);
+		report(embargoDate.toString() + ": " + item.getHandle());
+	}
+
+	private void addItem(int itemId, DCDate liftDate) {
+		if (numItems == itemKeys.length) {
+			itemKeys = Arrays.copyOf(itemKeys, itemKeys.length * 2);
+		}
+		itemKeys[numItems++] = ((long) liftDay(liftDate) << 32) | (itemId & 0xFFFFFFFFL);
+	}
+
+	private static int liftDay(DCDate liftDate) {
+		return (int) (liftDate.toDate().getTime() / (24L * 60 * 60 * 1000));
 	}
 
 	private boolean checkExpiresWithinMonths(DCDate liftDate, int lookaheadMonths) {
+		// embargo expires within given number of months if it's no later than the end of that month
+		return liftDate.toDate().before(getEndOfLookahead(lookaheadMonths).getTime());
+	}
+
+	/**
+	 * @return the beginning of the month after the lookahead period.
+	 */
+	private static Calendar getEndOfLookahead(int lookaheadMonths) {
 		Calendar beginningOfMonth = Calendar.getInstance(Locale.getDefault());
 		beginningOfMonth.setTime(new Date());
 		// wind back to beginning of month
@@ -181,13 +361,15 @@ public class ExpiringEmbargoesReminder extends AbstractCurationTask {
 		beginningOfMonth.set(Calendar.MILLISECOND, beginningOfMonth.getMinimum(Calendar.MILLISECOND));
 		// adjust by lookahead month number
 		beginningOfMonth.add(Calendar.MONTH, lookaheadMonths);
-
-		// embargo expires within given number of months if it's no later than the end of that month
-		return liftDate.toDate().before(beginningOfMonth.getTime());
+		return beginningOfMonth;
 	}
 
 	private static boolean checkExpired(DCDate liftDate) {
-		// check if it has expired
+		// embargo is expired if embargo date is no later than beginning of today
+		return !liftDate.toDate().after(getBeginningOfToday().getTime());
+	}
+
+	private static Calendar getBeginningOfToday() {
 		Calendar beginningOfToday = Calendar.getInstance(Locale.getDefault());
 		beginningOfToday.setTime(new Date());
 		// reset to beginning of today
@@ -195,34 +377,130 @@ public class ExpiringEmbargoesReminder extends AbstractCurationTask {
 		beginningOfToday.set(Calendar.MINUTE, beginningOfToday.getMinimum(Calendar.MINUTE));
 		beginningOfToday.set(Calendar.SECOND, beginningOfToday.getMinimum(Calendar.SECOND));
 		beginningOfToday.set(Calendar.MILLISECOND, beginningOfToday.getMinimum(Calendar.MILLISECOND));
-
-		// embargo is expired if embargo date is no later than beginning of today
-		return !liftDate.toDate().after(beginningOfToday.getTime());
+		return beginningOfToday;
 	}
 
-	private String buildMessage() {
-		if (items.isEmpty()) {
-			return "No items are currently subject to a thesis embargo.";
+	private String buildMessage() throws SQLException {
+		if (numItems == 0) {
+			return incremental ? "No new or changed thesis embargoes." : "No items are currently subject to a thesis embargo.";
 		}
 		StringBuilder builder = new StringBuilder();
-		for (EmbargoedItemInfo item : items) {
-			if (builder.length() > 0) {
-				builder.append("\n\n");
-			}
+		for (int start = 0; start < numItems; ) {
+			List<EmbargoedItemInfo> sameDay = new ArrayList<EmbargoedItemInfo>();
+			start = loadSameDay(start, sameDay);
+			for (EmbargoedItemInfo item : sameDay) {
+				if (builder.length() > 0) {
+					builder.append("\n\n");
+				}
 
-			builder.append("Lift date: \t");
-			builder.append(item.liftDate.displayLocalDate(false, Locale.getDefault()));
-			builder.append("\nTitle: \t");
-			builder.append(item.title);
-			builder.append("\nAuthor(s): \t");
-			builder.append(item.authors);
-			builder.append("\nLink: \t");
-			builder.append(item.handle);
+				builder.append("Lift date: \t");
+				builder.append(item.liftDate.displayLocalDate(false, Locale.getDefault()));
+				builder.append("\nTitle: \t");
+				builder.append(item.title);
+				builder.append("\nAuthor(s): \t");
+				builder.append(item.authors);
+				builder.append("\nLink: \t");
+				builder.append(item.handle);
+			}
 		}
 
 		return builder.toString();
 	}
 
+	/**
+	 * Write the listed items to a temporary CSV file, one lift date at a time.
+	 */
+	private File writeAttachment() throws IOException, SQLException {
+		File file = File.createTempFile("embargoes", ".csv");
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"))) {
+			writeCsvLine(writer, "Lift date", "Title", "Author(s)", "Link");
+			for (int start = 0; start < numItems; ) {
+				List<EmbargoedItemInfo> sameDay = new ArrayList<EmbargoedItemInfo>();
+				start = loadSameDay(start, sameDay);
+				for (EmbargoedItemInfo item : sameDay) {
+					writeCsvLine(writer, item.liftDate.toString(), item.title, item.authors, item.handle);
+				}
+			}
+		} catch (IOException | SQLException | RuntimeException e) {
+			if (!file.delete()) {
+				log.warn("Cannot delete temporary file " + file);
+			}
+			throw e;
+		}
+		return file;
+	}
+
+	/**
+	 * Load the listed items with the same lift day as the item at position start, sorted by lift date and title.
+	 *
+	 * @return the position of the first item with a later lift day.
+	 */
+	private int loadSameDay(int start, List<EmbargoedItemInfo> sameDay) throws SQLException {
+		Context context = Curator.curationContext();
+		long day = itemKeys[start] >> 32;
+		int end = start;
+		while (end < numItems && itemKeys[end] >> 32 == day) {
+			int itemId = (int) itemKeys[end];
+			Item item = Item.find(context, itemId);
+			if (item != null) {
+				Metadatum[] dateMetadata = item.getMetadata(dateSchema, dateElement, dateQualifier, Item.ANY);
+				if (dateMetadata != null && dateMetadata.length > 0) {
+					sameDay.add(new EmbargoedItemInfo(item, new DCDate(dateMetadata[0].value)));
+				}
+				context.removeCached(item, itemId);
+			}
+			end++;
+		}
+		Collections.sort(sameDay, new EmbargoedItemInfoComparator());
+		return end;
+	}
+
+	private static void writeCsvLine(Writer writer, String... values) throws IOException {
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				writer.write(',');
+			}
+			String value = values[i] == null ? "" : values[i];
+			if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+				value = "\"" + value.replace("\"", "\"\"") + "\"";
+			}
+			writer.write(value);
+		}
+		writer.write("\r\n");
+	}
+
+	private Map<Integer, String> readState() throws IOException {
+		Map<Integer, String> state = new HashMap<Integer, String>();
+		if (!stateFile.exists()) {
+			return state;
+		}
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(stateFile), "UTF-8"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				try {
+					state.put(Integer.parseInt(line.substring(0, tab)), line.substring(tab + 1));
+				} catch (NumberFormatException | IndexOutOfBoundsException e) {
+					log.warn("Ignoring invalid line in state file " + stateFile + ": " + line);
+				}
+			}
+		}
+		return state;
+	}
+
+	/**
+	 * Start writing the new state next to the state file, so that it can replace the state file atomically once the
+	 * e-mail has been sent.
+	 */
+	private void openNewState() throws IOException {
+		File directory = stateFile.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory for state file " + stateFile);
+		}
+		newStateFile = new File(directory, stateFile.getName() + ".tmp");
+		newState = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(newStateFile), "UTF-8"));
+	}
+
 	private class EmbargoedItemInfo {
 		private final String title;
 		private final DCDate liftDate;
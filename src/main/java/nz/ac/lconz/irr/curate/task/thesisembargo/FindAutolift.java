@@ -1,8 +1,7 @@
 package nz.ac.lconz.irr.curate.task.thesisembargo;
 
+import nz.ac.lconz.irr.curate.task.PolicySnapshot;
 import org.apache.log4j.Logger;
-import org.dspace.authorize.AuthorizeManager;
-import org.dspace.authorize.ResourcePolicy;
 import org.dspace.content.Bitstream;
 import org.dspace.content.Bundle;
 import org.dspace.content.DSpaceObject;
@@ -19,6 +18,20 @@ import java.sql.SQLException;
 import java.util.*;
 
 /**
+ * Curation task to find items whose policies, or the policies of their bundles and bitstreams, will start or cease to
+ * apply at a future date, and to send an e-mail listing them.
+ *
+ * Unless the task is run on a single item, the policies with future dates are found with one query, grouped by item
+ * and restricted to the items in scope; only items that have such policies are loaded. The query filters on
+ * resourcepolicy.start_date and end_date, so an index on each of these columns keeps it fast on large repositories.
+ *
+ * Task options:
+ * - recipients: A comma-separated list of e-mail addresses that should receive the e-mail. Default: none (no e-mail).
+ * - email.send-if-empty: true|false Whether to send an e-mail if no items are found. Default: false.
+ * - template: The name of the e-mail template (in [dspace]/config/emails). Default: autolift_items_email.
+ * - select.by-query: true|false Whether to find the policies with a query rather than by looking at every item in
+ *   scope. Default: true.
+ *
  * @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ Institutional Research Repositories
  */
 @Distributive
@@ -32,6 +45,9 @@ public class FindAutolift extends AbstractCurationTask {
 	private boolean sendIfEmpty;
 	private String templateName;
 	private Map<String, List<String>> found;
+	private boolean selectByQuery;
+	// policies starting or ending after this time are reported
+	private Date now;
 
 	@Override
 	public void init(Curator curator, String taskId) throws IOException {
@@ -46,6 +62,7 @@ public class FindAutolift extends AbstractCurationTask {
 		if (templateName == null || "".equals(templateName)) {
 			templateName = "autolift_items_email";
 		}
+		selectByQuery = taskBooleanProperty("select.by-query", true);
 	}
 
 	@Override
@@ -53,8 +70,17 @@ public class FindAutolift extends AbstractCurationTask {
 		numFound = 0;
 		messageText = new StringBuilder();
 		found = new HashMap<>();
+		now = new Date();
 
-		distribute(dso);
+		if (selectByQuery && EmbargoCandidates.canSelect(dso)) {
+			try {
+				checkByQuery(dso);
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
+		} else {
+			distribute(dso);
+		}
 
 		String resultText = String.format("%d item(s) found with policies that will automatically apply/cease to apply at a future date", numFound);
 		report(resultText);
@@ -97,14 +123,35 @@ public class FindAutolift extends AbstractCurationTask {
 		}
 	}
 
+	/**
+	 * Check only the archived items in scope that have policies with future dates, found with a single query.
+	 */
+	private void checkByQuery(DSpaceObject dso) throws SQLException {
+		Context context = Curator.curationContext();
+		List<Integer> collectionIds = dso.getType() == Constants.SITE ? null : EmbargoCandidates.getCollectionIds(dso);
+		Map<Integer, PolicySnapshot> snapshots = PolicySnapshot.loadStartingOrEndingAfter(context, now, collectionIds);
+		log.info("Found policies with future dates for " + snapshots.size() + " item(s) in " + dso.getTypeText() + " id=" + dso.getID());
+		for (Map.Entry<Integer, PolicySnapshot> entry : snapshots.entrySet()) {
+			Item item = Item.find(context, entry.getKey());
+			if (item != null) {
+				checkItem(item, entry.getValue());
+				context.removeCached(item, entry.getKey());
+			}
+		}
+	}
+
 	@Override
 	protected void performItem(Item item) throws SQLException, IOException {
+		checkItem(item, PolicySnapshot.load(Curator.curationContext(), item));
+	}
+
+	private void checkItem(Item item, PolicySnapshot policies) throws SQLException {
 		if (!item.isArchived()) {
 			return; // do nothing
 		}
 
-		boolean hasAutolift = checkAutolift(item, item.getHandle());
-		hasAutolift |= checkBundlesBitstreamsAutolift(item);
+		boolean hasAutolift = checkAutolift(policies, item, item.getHandle());
+		hasAutolift |= checkBundlesBitstreamsAutolift(policies, item);
 
 		if (hasAutolift) {
 			numFound++;
@@ -118,24 +165,22 @@ public class FindAutolift extends AbstractCurationTask {
 		}
 	}
 
-	private boolean checkBundlesBitstreamsAutolift(Item item) throws SQLException {
+	private boolean checkBundlesBitstreamsAutolift(PolicySnapshot policies, Item item) throws SQLException {
 		boolean autoliftFound = false;
 		Bundle[] bundles = item.getBundles();
 		for (Bundle bundle : bundles) {
-			autoliftFound |= checkAutolift(bundle, item.getHandle());
+			autoliftFound |= checkAutolift(policies, bundle, item.getHandle());
 			Bitstream[] bitstreams = bundle.getBitstreams();
 			for (Bitstream bitstream : bitstreams) {
-				autoliftFound |= checkAutolift(bitstream, item.getHandle());
+				autoliftFound |= checkAutolift(policies, bitstream, item.getHandle());
 			}
 		}
 		return autoliftFound;
 	}
 
-	private boolean checkAutolift(DSpaceObject dso, String parentHandle) throws SQLException {
-		Date now = new Date();
+	private boolean checkAutolift(PolicySnapshot policies, DSpaceObject dso, String parentHandle) {
 		boolean autoliftFound = false;
-		List<ResourcePolicy> policies = AuthorizeManager.getPolicies(Curator.curationContext(), dso);
-		for (ResourcePolicy policy : policies) {
+		for (PolicySnapshot.Policy policy : policies.getPolicies(dso)) {
 			Date startDate = policy.getStartDate();
 			Date endDate = policy.getEndDate();
 			if ((endDate != null && endDate.after(now)) || (startDate != null && startDate.after(now))) {
@@ -0,0 +1,114 @@
+package nz.ac.lconz.irr.curate.task.thesisembargo;
+
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * The ids of some groups together with all groups they contain, directly or through other groups. The closure is read
+ * once from DSpace's group2groupcache table, which holds the transitive group memberships; after that, membership
+ * tests are answered from memory in constant time.
+ *
+ * Ids are kept in an open-addressing hash set of ints (linear probing), which avoids boxing and is small enough that
+ * even large group hierarchies fit comfortably.
+ */
+public class GroupClosure {
+	private static final int EMPTY = -1;
+
+	private int[] slots = newSlots(16);
+	private int size;
+
+	GroupClosure() {
+	}
+
+	/**
+	 * @param context the DSpace context.
+	 * @param groupIds the ids of the groups whose closure to load; negative ids are ignored.
+	 * @return the given groups plus all groups they contain.
+	 */
+	public static GroupClosure load(Context context, int... groupIds) throws SQLException {
+		GroupClosure closure = new GroupClosure();
+		for (int groupId : groupIds) {
+			if (groupId < 0) {
+				continue;
+			}
+			closure.add(groupId);
+			TableRowIterator rows = DatabaseManager.query(context, "SELECT child_id FROM group2groupcache WHERE parent_id = ?", groupId);
+			try {
+				while (rows.hasNext()) {
+					TableRow row = rows.next();
+					closure.add(row.getIntColumn("child_id"));
+				}
+			} finally {
+				rows.close();
+			}
+		}
+		return closure;
+	}
+
+	/**
+	 * @return whether the group is one of the groups the closure was loaded for, or contained in one of them.
+	 */
+	public boolean contains(int groupId) {
+		if (groupId < 0) {
+			return false;
+		}
+		int mask = slots.length - 1;
+		for (int i = hash(groupId) & mask; ; i = (i + 1) & mask) {
+			if (slots[i] == groupId) {
+				return true;
+			}
+			if (slots[i] == EMPTY) {
+				return false;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	void add(int groupId) {
+		if ((size + 1) * 2 > slots.length) {
+			int[] old = slots;
+			slots = newSlots(old.length * 2);
+			for (int id : old) {
+				if (id != EMPTY) {
+					insert(id);
+				}
+			}
+		}
+		if (insert(groupId)) {
+			size++;
+		}
+	}
+
+	private boolean insert(int groupId) {
+		int mask = slots.length - 1;
+		for (int i = hash(groupId) & mask; ; i = (i + 1) & mask) {
+			if (slots[i] == groupId) {
+				return false;
+			}
+			if (slots[i] == EMPTY) {
+				slots[i] = groupId;
+				return true;
+			}
+		}
+	}
+
+	private static int hash(int groupId) {
+		// spread consecutive ids over the table
+		int h = groupId * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static int[] newSlots(int capacity) {
+		int[] slots = new int[capacity];
+		Arrays.fill(slots, EMPTY);
+		return slots;
+	}
+}
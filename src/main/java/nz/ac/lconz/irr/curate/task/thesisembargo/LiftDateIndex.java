@@ -0,0 +1,398 @@
+package nz.ac.lconz.irr.curate.task.thesisembargo;
+
+import org.apache.log4j.Logger;
+import org.dspace.content.DCDate;
+import org.dspace.content.Item;
+import org.dspace.content.Metadatum;
+import org.dspace.core.ConfigurationManager;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.storage.rdbms.DatabaseManager;
+import org.dspace.storage.rdbms.TableRow;
+import org.dspace.storage.rdbms.TableRowIterator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A file listing the ids of all items that have an embargo lift date, sorted by lift date, so that embargo tasks can
+ * find the items lifting in a given period with a binary search instead of looking at every item.
+ *
+ * Each entry is a long made up of the lift day (days since 1970-01-01, UTC) in the upper and the item id in the lower
+ * 32 bits, which keeps the index at 8 bytes per embargoed item. Items whose lift date can't be parsed are kept under a
+ * day before all others, since tasks may still treat them as embargoed; {@link #findAll()} includes them, date range
+ * lookups don't. The index only narrows down the candidates: tasks still check the actual lift date of each item they
+ * load.
+ *
+ * The index file records the field it was built from. An index built from another field than the one configured now
+ * counts as not built, until it is rebuilt.
+ *
+ * The index is built from scratch by the {@link RebuildLiftDateIndex} task and kept up to date by
+ * {@link LiftDateIndexConsumer}. Updates hold a lock on [index file].lock and replace the index file atomically, so
+ * readers never see a partly written index.
+ *
+ * Configuration (in lconz-extras.cfg):
+ * - thesisembargo.field: Metadata field that contains the embargo lift date.
+ * - thesisembargo.index.file: The index file. Default: [dspace.dir]/var/thesisembargo-liftdates.idx
+ */
+public class LiftDateIndex {
+	private static final Logger log = Logger.getLogger(LiftDateIndex.class);
+
+	private static final int MAGIC = 0x4C444958; // "LDIX"
+	private static final int VERSION = 2;
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+	/** the day under which items with an unparseable lift date are kept. */
+	static final int UNPARSEABLE_DAY = Integer.MIN_VALUE;
+
+	// guards the lock file within this JVM; FileLock only works between processes
+	private static final Object UPDATE_LOCK = new Object();
+
+	private long[] keys;
+	private int size;
+
+	LiftDateIndex() {
+		this.keys = new long[1024];
+		this.size = 0;
+	}
+
+	private LiftDateIndex(long[] keys, int size) {
+		this.keys = keys;
+		this.size = size;
+	}
+
+	/**
+	 * @return the configured index file.
+	 */
+	public static File getFile() {
+		String file = ConfigurationManager.getProperty("lconz-extras", "thesisembargo.index.file");
+		if (file == null || "".equals(file)) {
+			file = ConfigurationManager.getProperty("dspace.dir") + File.separator + "var" + File.separator + "thesisembargo-liftdates.idx";
+		}
+		return new File(file);
+	}
+
+	/**
+	 * @return the lift date field as schema.element[.qualifier], or null if none is configured.
+	 */
+	public static String getField() {
+		String field = ConfigurationManager.getProperty("lconz-extras", "thesisembargo.field");
+		return field == null || "".equals(field) ? null : field.trim();
+	}
+
+	/**
+	 * @return whether the index covers the given lift date field, ie whether a task using that field can use it.
+	 */
+	public static boolean covers(String schema, String element, String qualifier) {
+		String[] field = parseField(getField());
+		return field != null && field[0].equals(schema) && field[1].equals(element)
+				       && (field[2] == null ? qualifier == null : field[2].equals(qualifier));
+	}
+
+	/**
+	 * Read the index file.
+	 *
+	 * @return the index, or null if it hasn't been built yet, or not for the configured field.
+	 */
+	public static LiftDateIndex read() throws IOException {
+		return read(getFile(), getField());
+	}
+
+	/**
+	 * @return the index in the given file, or null if there is none, or one in an older format or for another field.
+	 */
+	static LiftDateIndex read(File file, String field) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Not a lift date index: " + file);
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				log.warn("Lift date index " + file + " has an old format (version " + version + "), it needs to be rebuilt");
+				return null;
+			}
+			String indexedField = in.readUTF();
+			if (!indexedField.equals(field)) {
+				log.warn("Lift date index " + file + " was built from field " + indexedField + " rather than " + field + ", it needs to be rebuilt");
+				return null;
+			}
+			int size = in.readInt();
+			long[] keys = new long[Math.max(size, 16)];
+			for (int i = 0; i < size; i++) {
+				keys[i] = in.readLong();
+			}
+			return new LiftDateIndex(keys, size);
+		}
+	}
+
+	/**
+	 * Build the index from the metadata of all items and replace the index file.
+	 *
+	 * @return the number of items in the new index.
+	 */
+	public static int rebuild(Context context) throws IOException, SQLException {
+		String[] field = parseField(getField());
+		if (field == null) {
+			throw new IOException("No valid embargo lift date field configured (thesisembargo.field in lconz-extras)");
+		}
+		synchronized (UPDATE_LOCK) {
+			try (FileChannel channel = openLockFile(); FileLock lock = channel.lock()) {
+				LiftDateIndex index = build(context, field);
+				index.write(getFile(), getField());
+				return index.size;
+			}
+		}
+	}
+
+	/**
+	 * Look at the current lift dates of the given items and update the index file accordingly. Items that have been
+	 * deleted or no longer have a lift date are removed from the index. Nothing is done if the index hasn't been built.
+	 */
+	public static void update(Context context, Collection<Integer> itemIds) throws IOException, SQLException {
+		String[] field = parseField(getField());
+		if (field == null || itemIds.isEmpty()) {
+			return;
+		}
+		Map<Integer, Integer> liftDays = new HashMap<>();
+		for (int itemId : itemIds) {
+			Item item = Item.find(context, itemId);
+			Integer liftDay = null;
+			if (item != null) {
+				Metadatum[] md = item.getMetadata(field[0], field[1], field[2], Item.ANY);
+				if (md != null && md.length > 0) {
+					liftDay = liftDay(md[0].value);
+				}
+			}
+			liftDays.put(itemId, liftDay);
+		}
+
+		synchronized (UPDATE_LOCK) {
+			try (FileChannel channel = openLockFile(); FileLock lock = channel.lock()) {
+				LiftDateIndex index = read();
+				if (index == null) {
+					log.debug("Lift date index hasn't been built yet, not updating it");
+					return;
+				}
+				index.apply(liftDays);
+				index.write(getFile(), getField());
+			}
+		}
+	}
+
+	/**
+	 * Find the items whose lift date falls on one of the days from the day of from to the day of to (both inclusive,
+	 * UTC). Items lifting on the first or last day may lie outside the exact period, so callers should check the
+	 * actual lift date. Items whose lift date can't be parsed are never found.
+	 *
+	 * @param from the start of the period, or null for no lower bound.
+	 * @param to the end of the period, or null for no upper bound.
+	 * @return the ids of the items, ordered by lift date.
+	 */
+	public List<Integer> find(Date from, Date to) {
+		int start = lowerBound(from == null ? (long) (UNPARSEABLE_DAY + 1) << 32 : (long) day(from) << 32);
+		int end = to == null ? size : lowerBound((long) (day(to) + 1) << 32);
+		return itemIds(start, end);
+	}
+
+	/**
+	 * @return the ids of all items that have a lift date, including those whose lift date can't be parsed (which come
+	 * first), ordered by lift date.
+	 */
+	public List<Integer> findAll() {
+		return itemIds(0, size);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private List<Integer> itemIds(int start, int end) {
+		List<Integer> itemIds = new ArrayList<>(Math.max(end - start, 0));
+		for (int i = start; i < end; i++) {
+			itemIds.add((int) keys[i]);
+		}
+		return itemIds;
+	}
+
+	private static LiftDateIndex build(Context context, String[] field) throws SQLException {
+		List<Object> parameters = new ArrayList<>();
+		StringBuilder query = new StringBuilder("SELECT mv.resource_id, mv.text_value FROM metadatavalue mv")
+				                      .append(" JOIN metadatafieldregistry mfr ON mv.metadata_field_id = mfr.metadata_field_id")
+				                      .append(" JOIN metadataschemaregistry msr ON mfr.metadata_schema_id = msr.metadata_schema_id")
+				                      .append(" WHERE mv.resource_type_id = ").append(Constants.ITEM)
+				                      .append(" AND msr.short_id = ? AND mfr.element = ?");
+		parameters.add(field[0]);
+		parameters.add(field[1]);
+		if (field[2] == null) {
+			query.append(" AND mfr.qualifier IS NULL");
+		} else {
+			query.append(" AND mfr.qualifier = ?");
+			parameters.add(field[2]);
+		}
+		query.append(" ORDER BY mv.resource_id, mv.place");
+
+		LiftDateIndex index = new LiftDateIndex();
+		int lastItemId = -1;
+		TableRowIterator rows = DatabaseManager.query(context, query.toString(), parameters.toArray());
+		try {
+			while (rows.hasNext()) {
+				TableRow row = rows.next();
+				int itemId = row.getIntColumn("resource_id");
+				if (itemId == lastItemId) {
+					continue; // like the tasks, only the first value counts
+				}
+				lastItemId = itemId;
+				Integer liftDay = liftDay(row.getStringColumn("text_value"));
+				if (liftDay != null) {
+					index.add(itemId, liftDay);
+				}
+			}
+		} finally {
+			rows.close();
+		}
+		index.sort();
+		return index;
+	}
+
+	/**
+	 * Replace the entries of the given items by their new lift days; items mapped to null are removed.
+	 */
+	void apply(Map<Integer, Integer> liftDays) {
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			if (!liftDays.containsKey((int) keys[i])) {
+				keys[kept++] = keys[i];
+			}
+		}
+		size = kept;
+		for (Map.Entry<Integer, Integer> entry : liftDays.entrySet()) {
+			if (entry.getValue() != null) {
+				add(entry.getKey(), entry.getValue());
+			}
+		}
+		sort();
+	}
+
+	/**
+	 * Add an entry; call {@link #sort()} before looking anything up.
+	 */
+	void add(int itemId, int liftDay) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, keys.length * 2);
+		}
+		keys[size++] = ((long) liftDay << 32) | (itemId & 0xFFFFFFFFL);
+	}
+
+	void sort() {
+		Arrays.sort(keys, 0, size);
+	}
+
+	/**
+	 * @return the position of the first key that is not less than the given key.
+	 */
+	int lowerBound(long key) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (keys[middle] < key) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	void write(File file, String field) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		// write to a temporary file first so that readers never see a truncated index
+		File tmpFile = new File(directory, file.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(field);
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				out.writeLong(keys[i]);
+			}
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Open the file whose lock serialises updates between processes.
+	 */
+	private static FileChannel openLockFile() throws IOException {
+		File file = getFile();
+		File directory = file.getAbsoluteFile().getParentFile();
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory for lift date index " + file);
+		}
+		return FileChannel.open(new File(directory, file.getName() + ".lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * @return the lift day for a value of the lift date field: null if the value is empty, {@link #UNPARSEABLE_DAY}
+	 * if it isn't a date.
+	 */
+	private static Integer liftDay(String value) {
+		if (value == null || "".equals(value)) {
+			return null;
+		}
+		Date liftDate = new DCDate(value).toDate();
+		if (liftDate == null) {
+			log.debug("Lift date " + value + " can't be parsed, indexing it as unparseable");
+			return UNPARSEABLE_DAY;
+		}
+		return day(liftDate);
+	}
+
+	/**
+	 * @return the number of days since 1970-01-01 (UTC) of the given time, rounded down.
+	 */
+	static int day(Date date) {
+		long millis = date.getTime();
+		long day = millis / MILLIS_PER_DAY;
+		if (millis % MILLIS_PER_DAY < 0) {
+			day--;
+		}
+		return (int) day;
+	}
+
+	/**
+	 * @return schema, element and qualifier (or null) of the field, or null if the field isn't valid.
+	 */
+	private static String[] parseField(String field) {
+		if (field == null) {
+			return null;
+		}
+		String[] parts = field.split("\\.");
+		if (parts.length < 2) {
+			log.warn("Invalid value for embargo date field, must be schema.element or schema.element.qualifier");
+			return null;
+		}
+		return new String[] {parts[0], parts[1], parts.length > 2 ? parts[2] : null};
+	}
+}
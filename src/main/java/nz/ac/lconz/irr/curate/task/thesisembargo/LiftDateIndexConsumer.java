@@ -0,0 +1,60 @@
+package nz.ac.lconz.irr.curate.task.thesisembargo;
+
+import org.apache.log4j.Logger;
+import org.dspace.core.Constants;
+import org.dspace.core.Context;
+import org.dspace.event.Consumer;
+import org.dspace.event.Event;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Event consumer that keeps the {@link LiftDateIndex} up to date. It collects the ids of items that were created,
+ * installed, deleted or had their metadata changed, and updates the index once per batch of events.
+ *
+ * To enable, add liftdateindex to event.dispatcher.default.consumers in dspace.cfg and configure:
+ * event.consumer.liftdateindex.class = nz.ac.lconz.irr.curate.task.thesisembargo.LiftDateIndexConsumer
+ * event.consumer.liftdateindex.filters = Item+Create|Modify_Metadata|Install|Delete
+ *
+ * The index must have been built once with the {@link RebuildLiftDateIndex} task; until then, nothing is updated.
+ */
+public class LiftDateIndexConsumer implements Consumer {
+	private static final Logger log = Logger.getLogger(LiftDateIndexConsumer.class);
+
+	private static final int RELEVANT_EVENTS = Event.CREATE | Event.MODIFY_METADATA | Event.INSTALL | Event.DELETE;
+
+	private Set<Integer> changedItems;
+
+	@Override
+	public void initialize() throws Exception {
+		changedItems = new HashSet<>();
+	}
+
+	@Override
+	public void consume(Context ctx, Event event) throws Exception {
+		if (event.getSubjectType() != Constants.ITEM || (event.getEventType() & RELEVANT_EVENTS) == 0) {
+			return;
+		}
+		changedItems.add(event.getSubjectID());
+	}
+
+	@Override
+	public void end(Context ctx) throws Exception {
+		if (changedItems.isEmpty()) {
+			return;
+		}
+		try {
+			LiftDateIndex.update(ctx, changedItems);
+		} catch (Exception e) {
+			// don't fail the user's request; the index can be rebuilt
+			log.error("Cannot update lift date index for items " + changedItems + ": " + e.getMessage(), e);
+		} finally {
+			changedItems.clear();
+		}
+	}
+
+	@Override
+	public void finish(Context ctx) throws Exception {
+	}
+}
@@ -25,6 +25,8 @@ import java.util.Locale;
  * - field.date: Metadata field that contains the embargo expiry date
  * - dryrun: If true, don't actually make any changes. Default: false.
  * - bundles: Comma-separated list of bundle names to operate on. Default: ORIGINAL, TEXT, THUMBNAIL.
+ * - select.by-query: true|false Whether to select the items that have an embargo date with a metadata query rather than
+ *   looking at every item in scope. Default: false.
  *
  * @author Andrea Schweer schweer@waikato.ac.nz for the LCoNZ Institutional Research Repositories
  */
@@ -35,6 +37,7 @@ public class MigratePartialEmbargo extends AbstractCurationTask {
 	private String timestamp;
 
 	private boolean dryRun;
+	private boolean selectByQuery;
 
 	private String typeSchema;
 	private String typeElement;
@@ -60,7 +63,7 @@ public class MigratePartialEmbargo extends AbstractCurationTask {
 		errorItems = 0;
 		timestamp = DCDate.getCurrent().displayLocalDate(true, Locale.getDefault());
 
-		distribute(dSpaceObject);
+		distributeCandidates(dSpaceObject);
 
 		String message = String.format("Migrated %d items; encountered problems migrating %d items", itemsMigrated, errorItems);
 		report(message);
@@ -109,6 +112,7 @@ public class MigratePartialEmbargo extends AbstractCurationTask {
 		}
 
 		dryRun = taskBooleanProperty("dryrun", false);
+		selectByQuery = taskBooleanProperty("select.by-query", false);
 
 		String bundlesProperty = taskProperty("bundles");
 		String[] bundlesList;
@@ -120,6 +124,29 @@ public class MigratePartialEmbargo extends AbstractCurationTask {
 		bundles = Arrays.asList(bundlesList);
 	}
 
+	/**
+	 * Run performItem on the items in scope: on all of them via distribute, or, if select.by-query is set, only on the
+	 * items that have an embargo date according to a metadata query.
+	 */
+	private void distributeCandidates(DSpaceObject dso) throws IOException {
+		if (!selectByQuery || !EmbargoCandidates.canSelect(dso) || dateSchema == null) {
+			distribute(dso);
+			return;
+		}
+		try {
+			// items without an embargo type count as partially embargoed, so only the date is required
+			new EmbargoCandidates().requireField(dateSchema, dateElement, dateQualifier)
+					.process(Curator.curationContext(), dso, new EmbargoCandidates.ItemProcessor() {
+						@Override
+						public void process(Item item) throws SQLException, IOException {
+							performItem(item);
+						}
+					});
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
 	@Override
 	protected void performItem(Item item) throws SQLException, IOException {
 		if (!isPartialEmbargo(item)) {
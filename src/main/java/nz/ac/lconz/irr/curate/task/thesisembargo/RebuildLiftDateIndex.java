@@ -0,0 +1,32 @@
+package nz.ac.lconz.irr.curate.task.thesisembargo;
+
+import org.apache.log4j.Logger;
+import org.dspace.content.DSpaceObject;
+import org.dspace.curate.AbstractCurationTask;
+import org.dspace.curate.Curator;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+/**
+ * Curation task to build the {@link LiftDateIndex} from scratch. The index always covers the whole repository,
+ * whatever object the task is run on; run it once before enabling {@link LiftDateIndexConsumer}, and again whenever
+ * the index may have got out of step (eg after changing thesisembargo.field or a batch import without the consumer).
+ */
+public class RebuildLiftDateIndex extends AbstractCurationTask {
+	private static final Logger log = Logger.getLogger(RebuildLiftDateIndex.class);
+
+	@Override
+	public int perform(DSpaceObject dso) throws IOException {
+		try {
+			int size = LiftDateIndex.rebuild(Curator.curationContext());
+			String message = String.format("Lift date index rebuilt with %d items", size);
+			log.info(message);
+			report(message);
+			setResult(message);
+			return Curator.CURATE_SUCCESS;
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package nz.ac.lconz.irr.curate.task.thesisembargo;
 
+import nz.ac.lconz.irr.curate.task.PolicySnapshot;
 import org.apache.log4j.Logger;
 import org.dspace.authorize.AuthorizeException;
 import org.dspace.authorize.AuthorizeManager;
@@ -12,6 +13,7 @@ import org.dspace.curate.AbstractCurationTask;
 import org.dspace.curate.Curator;
 import org.dspace.curate.Distributive;
 import org.dspace.curate.Mutative;
+import org.dspace.eperson.EPerson;
 import org.dspace.eperson.Group;
 
 import java.io.IOException;
@@ -25,6 +27,12 @@ import java.util.List;
  * DSpace curation task to repair the permissions of embargoed items.
  * Note that this uses the LCoNZ definition of embargo, which is a full embargo.
  *
+ * Task options:
+ * - select.by-query: true|false Whether to select the items that have an embargo date with a metadata query
+ *   rather than looking at every item in scope. Default: false.
+ * - use.index: true|false Whether to take the items that have an embargo date from the lift date index (see
+ *   LiftDateIndex) when run on the whole site. Default: false.
+ *
  * @author Andrea Schweer schweer@waikato.ac.nz
  */
 @Distributive
@@ -42,12 +50,18 @@ public class RepairEmbargoPermissions extends AbstractCurationTask {
 	private String schema;
 	private String element;
 	private String qualifier;
+	private GroupClosure readGroupMembers;
+	private GroupClosure authorisedGroups;
+	private boolean selectByQuery;
+	private boolean useIndex;
 
 	@Override
 	public void init(Curator curator, String taskId) throws IOException {
 		super.init(curator, taskId);
 		readGroupId = ConfigurationManager.getIntProperty("lconz-extras", "thesisembargo.read.groupid", 1);
 		adminGroupId = ConfigurationManager.getIntProperty("lconz-extras", "thesisembargo.admin.groupid", 1);
+		selectByQuery = taskBooleanProperty("select.by-query", false);
+		useIndex = taskBooleanProperty("use.index", false);
 		String dateField = ConfigurationManager.getProperty("lconz-extras", "thesisembargo.field");
 		if (dateField == null || "".equals(dateField)) {
 			log.warn("No embargo field set up");
@@ -79,7 +93,12 @@ public class RepairEmbargoPermissions extends AbstractCurationTask {
 		numSkippedItems = 0;
         numOkEmbargoedItems = 0;
 		numFixedEmbargoedItems = 0;
-        distribute(dso);
+		try {
+			loadGroupClosures(Curator.curationContext());
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+        distributeCandidates(dso);
         formatResults();
         if (numFixedEmbargoedItems > 0) {
 	        return Curator.CURATE_SUCCESS;
@@ -90,6 +109,58 @@ public class RepairEmbargoPermissions extends AbstractCurationTask {
         }
 	}
 
+	/**
+	 * Run performItem on the items in scope: on all of them via distribute, or only on the items that have an embargo
+	 * date according to the lift date index (if use.index is set) or a metadata query (if select.by-query is set).
+	 */
+	private void distributeCandidates(DSpaceObject dso) throws IOException {
+		try {
+			Context context = Curator.curationContext();
+			if (useIndex && dso.getType() == Constants.SITE && schema != null) {
+				LiftDateIndex index = LiftDateIndex.read();
+				if (index != null) {
+					List<Integer> itemIds = index.findAll();
+					log.info("Selected " + itemIds.size() + " candidate item(s) from the lift date index");
+					EmbargoCandidates.processAll(context, itemIds, new EmbargoCandidates.ItemProcessor() {
+						@Override
+						public void process(Item item) throws SQLException, IOException {
+							// like distribute, only look at archived items
+							if (item.isArchived() && !item.isWithdrawn()) {
+								performItem(item);
+							}
+						}
+					});
+					return;
+				}
+				log.warn("Lift date index hasn't been built yet, not using it");
+			}
+			if (!selectByQuery || !EmbargoCandidates.canSelect(dso) || schema == null) {
+				distribute(dso);
+				return;
+			}
+			new EmbargoCandidates().requireField(schema, element, qualifier).process(context, dso, new EmbargoCandidates.ItemProcessor() {
+				@Override
+				public void process(Item item) throws SQLException, IOException {
+					performItem(item);
+				}
+			});
+		} catch (SQLException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Load the groups contained in the embargo read group (or in the administrator group if the read group doesn't
+	 * exist), and the groups contained in either the read group or the embargo admin group, once per run.
+	 */
+	private void loadGroupClosures(Context context) throws SQLException {
+		int effectiveReadGroupId = Group.find(context, readGroupId) != null ? readGroupId : Group.ADMIN_ID;
+		readGroupMembers = GroupClosure.load(context, effectiveReadGroupId);
+		authorisedGroups = GroupClosure.load(context, readGroupId, adminGroupId);
+		log.debug("Embargo read group contains " + readGroupMembers.size() + " group(s); "
+				          + authorisedGroups.size() + " group(s) may be given read access");
+	}
+
 	private void formatResults() {
 		StringBuilder builder = new StringBuilder();
 		builder.append(numFixedEmbargoedItems);
@@ -145,12 +216,13 @@ public class RepairEmbargoPermissions extends AbstractCurationTask {
 	}
 
 	public boolean checkPermissions(Context context, Item item) throws SQLException {
+		PolicySnapshot policies = PolicySnapshot.load(context, item);
 		boolean allOk = true;
-		if (!checkItemRead(context, item)) {
+		if (!checkItemRead(context, item, policies)) {
 			allOk = false;
 			report("Item id=" + item.getID() + " is readable but shouldn't be");
 		}
-		if (!checkBundleBitstreamsRead(context, item, FULL_EMBARGO_IGNORED_BUNDLES)) {
+		if (!checkBundleBitstreamsRead(context, item, policies, FULL_EMBARGO_IGNORED_BUNDLES)) {
 			allOk = false;
 			report("Item id=" + item.getID() + " has readable files/bitstreams but shouldn't have");
 		}
@@ -165,45 +237,33 @@ public class RepairEmbargoPermissions extends AbstractCurationTask {
 		return new DCDate(md[0].value);
 	}
 
-	private boolean checkItemRead(Context context, Item item) throws SQLException {
+	private boolean checkItemRead(Context context, Item item, PolicySnapshot policies) throws SQLException {
 		if (!item.isDiscoverable()) {
 			report("CHECK WARNING: Item " + item.getHandle() + " is not discoverable but should be");
 			return false;
 		}
 		// check for ANY read policies and report them (unless they are in the authorised group):
-		for (ResourcePolicy rp : AuthorizeManager.getPoliciesActionFilter(context, item, Constants.READ))
+		for (PolicySnapshot.Policy rp : policies.getPolicies(item, Constants.READ))
 		{
 			// don't warn for authorised users
-			if (rp.getGroupID() != -1 && (rp.getGroupID() == readGroupId || rp.getGroupID() == adminGroupId))
+			if (rp.getGroupID() != -1 && authorisedGroups.contains(rp.getGroupID()))
 			{
 				continue;
 			}
 			// do warn for everyone else
-			report("CHECK WARNING: Item " + item.getHandle() + " allows READ by "
-					       + ((rp.getEPersonID() < 0) ? "Group " + rp.getGroup().getName()
-							          : "EPerson " + rp.getEPerson().getFullName()));
+			report("CHECK WARNING: Item " + item.getHandle() + " allows READ by " + describeGrantee(context, rp));
 			return false;
 		}
 		// verify that embargo read group can actually read
-		Group authorisedGroup = Group.find(context, readGroupId);
-		if (authorisedGroup == null) {
-			authorisedGroup = Group.find(context, 1);
-		}
-		Group[] readGroups = AuthorizeManager.getAuthorizedGroups(context, item, Constants.READ);
-		for (Group group : readGroups) {
-			if (group.getID() == readGroupId || authorisedGroup.isMember(group)) {
+		for (int groupId : policies.getAuthorizedGroupIds(item, Constants.READ)) {
+			if (groupId == readGroupId || readGroupMembers.contains(groupId)) {
 				return true; // if we made it here then all is good if read group can read
 			}
 		}
 		return false;
 	}
 
-	private boolean checkBundleBitstreamsRead(Context context, Item item, List<String> ignoredBundles) throws SQLException {
-		Group authorisedGroup = Group.find(context, readGroupId);
-		if (authorisedGroup == null) {
-			authorisedGroup = Group.find(context, 1);
-		}
-
+	private boolean checkBundleBitstreamsRead(Context context, Item item, PolicySnapshot policies, List<String> ignoredBundles) throws SQLException {
 		for (Bundle bundle : item.getBundles())
 		{
 			String bundleName = bundle.getName();
@@ -212,23 +272,20 @@ public class RepairEmbargoPermissions extends AbstractCurationTask {
 				continue; // don't check these bundles
 			}
 			// check for ANY read policies and report them:
-			for (ResourcePolicy rp : AuthorizeManager.getPoliciesActionFilter(context, bundle, Constants.READ))
+			for (PolicySnapshot.Policy rp : policies.getPolicies(bundle, Constants.READ))
 			{
 				// don't warn for authorised users
-				if (rp.getGroupID() != -1 && (rp.getGroupID() == readGroupId || rp.getGroupID() == adminGroupId))
+				if (rp.getGroupID() != -1 && authorisedGroups.contains(rp.getGroupID()))
 				{
 					continue;
 				}
-				report("CHECK WARNING: Item " + item.getHandle() + ", Bundle " + bundleName + " allows READ by "
-						       + ((rp.getEPersonID() < 0) ? "Group " + rp.getGroup().getName()
-								          : "EPerson " + rp.getEPerson().getFullName()));
+				report("CHECK WARNING: Item " + item.getHandle() + ", Bundle " + bundleName + " allows READ by " + describeGrantee(context, rp));
 				return false;
 			}
 			// verify that read group can read
 			boolean authorisedCanReadBundle = false;
-			Group[] bundleReadGroups = AuthorizeManager.getAuthorizedGroups(context, bundle, Constants.READ);
-			for (Group group : bundleReadGroups) {
-				if (group.getID() == readGroupId || authorisedGroup.isMember(group)) {
+			for (int groupId : policies.getAuthorizedGroupIds(bundle, Constants.READ)) {
+				if (groupId == readGroupId || readGroupMembers.contains(groupId)) {
 					authorisedCanReadBundle = true;
 					break;
 				}
@@ -239,22 +296,20 @@ public class RepairEmbargoPermissions extends AbstractCurationTask {
 
 			for (Bitstream bs : bundle.getBitstreams())
 			{
-				for (ResourcePolicy rp : AuthorizeManager.getPoliciesActionFilter(context, bs, Constants.READ))
+				for (PolicySnapshot.Policy rp : policies.getPolicies(bs, Constants.READ))
 				{
 					// don't warn for authorised users
-					if (rp.getGroupID() != -1 && (rp.getGroupID() == readGroupId || rp.getGroupID() == adminGroupId))
+					if (rp.getGroupID() != -1 && authorisedGroups.contains(rp.getGroupID()))
 					{
 						continue;
 					}
 					report("CHECK WARNING: Item " + item.getHandle() + ", Bitstream " + bs.getName() + " (in Bundle " + bundleName + ") allows READ by "
-							         + ((rp.getEPersonID() < 0) ? "Group " + rp.getGroup().getName()
-									            : "EPerson " + rp.getEPerson().getFullName()));
+							       + describeGrantee(context, rp));
 					return false;
 				}
 				boolean authorisedCanReadBitstream = false;
-				Group[] bitstreamReadGroups = AuthorizeManager.getAuthorizedGroups(context, bs, Constants.READ);
-				for (Group group : bitstreamReadGroups) {
-					if (group.getID() == readGroupId || authorisedGroup.isMember(group)) {
+				for (int groupId : policies.getAuthorizedGroupIds(bs, Constants.READ)) {
+					if (groupId == readGroupId || readGroupMembers.contains(groupId)) {
 						authorisedCanReadBitstream = true;
 						break;
 					}
@@ -268,6 +323,18 @@ public class RepairEmbargoPermissions extends AbstractCurationTask {
 		return true;
 	}
 
+	/**
+	 * @return the group or e-person a policy is for, for use in reports; looked up only when there is something to report.
+	 */
+	private static String describeGrantee(Context context, PolicySnapshot.Policy rp) throws SQLException {
+		if (rp.getEPersonID() < 0) {
+			Group group = Group.find(context, rp.getGroupID());
+			return "Group " + (group != null ? group.getName() : "id=" + rp.getGroupID());
+		}
+		EPerson eperson = EPerson.find(context, rp.getEPersonID());
+		return "EPerson " + (eperson != null ? eperson.getFullName() : "id=" + rp.getEPersonID());
+	}
+
 	private void makeBundlesBitstreamsAuthorisedReadOnly(Context context, Item item, List<String> ignoreBundles) throws SQLException, AuthorizeException {
 		List<Integer> anonymousGroupID = Arrays.asList(0);
 
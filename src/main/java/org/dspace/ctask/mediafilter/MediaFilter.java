@@ -144,14 +144,36 @@ public abstract class MediaFilter extends AbstractCurationTask
         
     protected boolean createDerivative(Item item, Bitstream source, InputStream targetStream)
     	throws AuthorizeException, IOException, SQLException {
+        return createDerivative(item, source, targetStream, null, null, null, null);
+    }
+
+    /**
+     * Create a derivative with its own target settings, for filters that produce several derivatives per source.
+     * Any null target setting falls back to the task's configured value.
+     */
+    protected boolean createDerivative(Item item, Bitstream source, InputStream targetStream,
+                                       String bundleName, String nameSpec, String format, String description)
+    	throws AuthorizeException, IOException, SQLException {
+        if (bundleName == null) {
+            bundleName = targetBundle;
+        }
+        if (nameSpec == null) {
+            nameSpec = targetSpec;
+        }
+        if (format == null) {
+            format = targetFormat;
+        }
+        if (description == null) {
+            description = targetDescription;
+        }
         Bundle targBundle = null;
         Context c = Curator.curationContext();
-        Bitstream existingBitstream = existingTarget(c, item, source);
+        Bitstream existingBitstream = existingTarget(c, item, source, bundleName, nameSpec, format);
         
-        Bundle[] bundles = item.getBundles(targetBundle);    
+        Bundle[] bundles = item.getBundles(bundleName);
         // create new bundle if needed
         if (bundles.length < 1) {
-            targBundle = item.createBundle(targetBundle);
+            targBundle = item.createBundle(bundleName);
         } else {
             // take the first match
             targBundle = bundles[0];
@@ -161,12 +183,12 @@ public abstract class MediaFilter extends AbstractCurationTask
         targetStream.close();
 
         // Now set the format, name, etc of the target bitstream
-        target.setName(targetName(c, source));
+        target.setName(targetName(c, source, nameSpec, format));
         target.setSource("Written by curation task " + taskId + " on " + DCDate.getCurrent() + " (GMT)."); 
-        target.setDescription(targetDescription);
+        target.setDescription(description);
 
         // Find the proper format
-        BitstreamFormat bf = BitstreamFormat.findByShortDescription(c, targetFormat);
+        BitstreamFormat bf = BitstreamFormat.findByShortDescription(c, format);
         target.setFormat(bf);
         target.update();
         
@@ -182,6 +204,26 @@ public abstract class MediaFilter extends AbstractCurationTask
         item.update();
         return true;
     }
+
+    /**
+     * Whether the derivative(s) of the given bitstream already exist. Filters that produce several derivatives per
+     * source can override this to check for all of them.
+     */
+    protected boolean targetExists(Context context, Item item, Bitstream bitstream) throws SQLException {
+        return existingTarget(context, item, bitstream) != null;
+    }
+
+    /**
+     * Whether a derivative with the given target settings already exists; null settings fall back to the task's
+     * configured values.
+     */
+    protected boolean targetExists(Context context, Item item, Bitstream bitstream,
+                                   String bundleName, String nameSpec, String format) throws SQLException {
+        return existingTarget(context, item, bitstream,
+                              bundleName != null ? bundleName : targetBundle,
+                              nameSpec != null ? nameSpec : targetSpec,
+                              format != null ? format : targetFormat) != null;
+    }
     
     private boolean isEligible(Context context, Item item, Bitstream bitstream) throws SQLException {
     	if (bitstream.getSize() < sourceMinSize) {
@@ -190,7 +232,7 @@ public abstract class MediaFilter extends AbstractCurationTask
     	} else if ((sourceSelector != null) && ! sourceSelector.matcher(bitstream.getName()).matches()) {
     		log.debug("Bitstream: '" + bitstream.getName() + "' does not match selector: " + sourceSelector.toString());
     		return false;
-    	} else if (! filterForce && existingTarget(context, item, bitstream) != null) {
+    	} else if (! filterForce && targetExists(context, item, bitstream)) {
     		log.debug("Bitstream: '" + bitstream.getName() + "' target already exists");
     		return false;
     	} else if (sourceFormats.size() > 0 && 
@@ -202,24 +244,29 @@ public abstract class MediaFilter extends AbstractCurationTask
     	}
     }
     
-    private String targetName(Context context, Bitstream source) throws SQLException {
+    private String targetName(Context context, Bitstream source, String nameSpec, String format) throws SQLException {
     	String bsName = source.getName();
     	String targName = null;
-    	BitstreamFormat bsf = BitstreamFormat.findByShortDescription(context, targetFormat);
-    	if (targetSpec == null) {
+    	BitstreamFormat bsf = BitstreamFormat.findByShortDescription(context, format);
+    	if (nameSpec == null) {
     		// use old convention - append suffix of target format
     		targName = bsName + "." + bsf.getExtensions()[0];
     	} else {
     		// interpret the spec - $src = source name, $ext = extension from target format
-    		targName = targetSpec.replace("$src", bsName).replace("$ext", bsf.getExtensions()[0]);
+    		targName = nameSpec.replace("$src", bsName).replace("$ext", bsf.getExtensions()[0]);
     	}
     	return targName;
     }
     
     private Bitstream existingTarget(Context context, Item item, Bitstream source) throws SQLException {
-    	String targName = targetName(context, source);
+    	return existingTarget(context, item, source, targetBundle, targetSpec, targetFormat);
+    }
+    
+    private Bitstream existingTarget(Context context, Item item, Bitstream source,
+                                     String bundleName, String nameSpec, String format) throws SQLException {
+    	String targName = targetName(context, source, nameSpec, format);
         // check whether destination bitstream exists
-        for (Bundle bnd : item.getBundles(targetBundle)) {
+        for (Bundle bnd : item.getBundles(bundleName)) {
         	for (Bitstream bs: bnd.getBitstreams()) {
         		if (bs.getName().equals(targName)) {
         			return bs;
@@ -0,0 +1,82 @@
+package nz.ac.lconz.irr.curate.task;
+
+import org.dspace.core.Constants;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the date and equivalence rules of PolicySnapshot.Policy, which must match those of ResourcePolicy.
+ */
+public class PolicySnapshotTest {
+	private static final long DAY = 24L * 60 * 60 * 1000;
+	private static final Date NOW = new Date(1450000000000L);
+	private static final Date YESTERDAY = new Date(NOW.getTime() - DAY);
+	private static final Date TOMORROW = new Date(NOW.getTime() + DAY);
+
+	@Test
+	public void policyWithoutDatesIsAlwaysValid() {
+		assertTrue(policy(0, null, null).isDateValid(NOW));
+		assertTrue(policy(0, null, null).isDateValid());
+	}
+
+	@Test
+	public void startDateIsIncluded() {
+		assertFalse(policy(0, TOMORROW, null).isDateValid(NOW));
+		assertFalse(policy(0, new Date(NOW.getTime() + 1), null).isDateValid(NOW));
+		assertTrue(policy(0, NOW, null).isDateValid(NOW));
+		assertTrue(policy(0, YESTERDAY, null).isDateValid(NOW));
+	}
+
+	@Test
+	public void endDateIsIncluded() {
+		assertTrue(policy(0, null, TOMORROW).isDateValid(NOW));
+		assertTrue(policy(0, null, NOW).isDateValid(NOW));
+		assertFalse(policy(0, null, new Date(NOW.getTime() - 1)).isDateValid(NOW));
+		assertFalse(policy(0, null, YESTERDAY).isDateValid(NOW));
+	}
+
+	@Test
+	public void windowIsValidOnlyBetweenItsEnds() {
+		PolicySnapshot.Policy window = policy(0, YESTERDAY, TOMORROW);
+		assertTrue(window.isDateValid(YESTERDAY));
+		assertTrue(window.isDateValid(NOW));
+		assertTrue(window.isDateValid(TOMORROW));
+		assertFalse(window.isDateValid(new Date(YESTERDAY.getTime() - 1)));
+		assertFalse(window.isDateValid(new Date(TOMORROW.getTime() + 1)));
+	}
+
+	@Test
+	public void samePolicyOnAnotherObjectGrantsTheSame() {
+		PolicySnapshot.Policy a = new PolicySnapshot.Policy(1, Constants.ITEM, 10, Constants.READ, -1, 0, YESTERDAY, null, "TYPE_CUSTOM");
+		PolicySnapshot.Policy b = new PolicySnapshot.Policy(2, Constants.BITSTREAM, 20, Constants.READ, -1, 0,
+				                                                   new Date(YESTERDAY.getTime()), null, null);
+		// id, resource and rptype don't matter
+		assertTrue(a.grantsSameAs(b));
+		assertTrue(b.grantsSameAs(a));
+	}
+
+	@Test
+	public void differentGrantsAreNotTheSame() {
+		PolicySnapshot.Policy read = policy(0, null, null);
+		assertFalse(read.grantsSameAs(new PolicySnapshot.Policy(2, Constants.ITEM, 10, Constants.WRITE, -1, 0, null, null, null)));
+		assertFalse(read.grantsSameAs(new PolicySnapshot.Policy(2, Constants.ITEM, 10, Constants.READ, -1, 1, null, null, null)));
+		assertFalse(read.grantsSameAs(new PolicySnapshot.Policy(2, Constants.ITEM, 10, Constants.READ, 5, -1, null, null, null)));
+	}
+
+	@Test
+	public void differentDatesAreNotTheSame() {
+		assertFalse(policy(0, YESTERDAY, null).grantsSameAs(policy(0, null, null)));
+		assertFalse(policy(0, null, null).grantsSameAs(policy(0, YESTERDAY, null)));
+		assertFalse(policy(0, YESTERDAY, null).grantsSameAs(policy(0, NOW, null)));
+		assertFalse(policy(0, null, TOMORROW).grantsSameAs(policy(0, null, NOW)));
+		assertTrue(policy(0, YESTERDAY, TOMORROW).grantsSameAs(policy(0, YESTERDAY, TOMORROW)));
+	}
+
+	private static PolicySnapshot.Policy policy(int groupId, Date startDate, Date endDate) {
+		return new PolicySnapshot.Policy(1, Constants.ITEM, 10, Constants.READ, -1, groupId, startDate, endDate, null);
+	}
+}
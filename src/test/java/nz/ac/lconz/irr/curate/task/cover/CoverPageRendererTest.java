@@ -0,0 +1,40 @@
+package nz.ac.lconz.irr.curate.task.cover;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the mapping of stamped text to the WinAnsi encoding of the standard fonts.
+ */
+public class CoverPageRendererTest {
+	@Test
+	public void latin1IsKept() {
+		assertEquals("Caf\u00e9 \u00bd \u00a9 2015", CoverPageRenderer.toWinAnsi("Caf\u00e9 \u00bd \u00a9 2015"));
+	}
+
+	@Test
+	public void typographicCharactersGetTheirWinAnsiCodes() {
+		assertEquals("\u0091quoted\u0092 \u0093double\u0094 \u0096 \u0097 \u0085 \u0080",
+				            CoverPageRenderer.toWinAnsi("\u2018quoted\u2019 \u201cdouble\u201d \u2013 \u2014 \u2026 \u20ac"));
+		assertEquals("\u008a\u009a\u008e\u009e\u008c\u009c\u009f\u0083\u0099\u0095",
+				            CoverPageRenderer.toWinAnsi("\u0160\u0161\u017d\u017e\u0152\u0153\u0178\u0192\u2122\u2022"));
+	}
+
+	@Test
+	public void unsupportedDiacriticsAreStripped() {
+		assertEquals("Maori: Aotearoa, Whanganui", CoverPageRenderer.toWinAnsi("M\u0101ori: Aotearoa, Wh\u0101nganui"));
+	}
+
+	@Test
+	public void otherCharactersBecomeQuestionMarks() {
+		assertEquals("? ?", CoverPageRenderer.toWinAnsi("\u4e2d \u03a9"));
+		// C1 controls would otherwise show up as the WinAnsi glyphs with the same codes
+		assertEquals("a?b", CoverPageRenderer.toWinAnsi("a\u0085b"));
+	}
+
+	@Test
+	public void otherSpacesBecomePlainSpaces() {
+		assertEquals("10 000 m", CoverPageRenderer.toWinAnsi("10\u2009000\u202fm"));
+	}
+}
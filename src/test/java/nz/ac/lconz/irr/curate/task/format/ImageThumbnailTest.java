@@ -0,0 +1,120 @@
+package nz.ac.lconz.irr.curate.task.format;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests for the subsampling of ImageThumbnail, plus a benchmark on large synthetic images. The benchmark only runs with
+ * -Dbenchmark=true, since it needs a few hundred MB of heap for the full-resolution comparison.
+ */
+public class ImageThumbnailTest {
+	private final ImageThumbnail filter = new ImageThumbnail(80, 80, 0.85f);
+
+	@Test
+	public void smallImagesAreNotSubsampled() {
+		assertEquals(1, filter.subsamplingFor(80, 80));
+		assertEquals(1, filter.subsamplingFor(10, 10));
+		// exactly twice the thumbnail size
+		assertEquals(1, filter.subsamplingFor(160, 160));
+		assertEquals(1, filter.subsamplingFor(161, 161));
+	}
+
+	@Test
+	public void subsamplingLeavesTwiceTheThumbnailResolution() {
+		assertEquals(2, filter.subsamplingFor(320, 320));
+		assertEquals(2, filter.subsamplingFor(479, 479));
+		assertEquals(3, filter.subsamplingFor(480, 480));
+		assertEquals(50, filter.subsamplingFor(8000, 6000));
+		for (int size = 100; size < 20000; size += 37) {
+			int subsampling = filter.subsamplingFor(size, size);
+			assertTrue("decoded size for " + size, size / subsampling >= 160 || subsampling == 1);
+		}
+	}
+
+	@Test
+	public void subsamplingFollowsTheMoreConstrainedSide() {
+		// a long strip: width limits the scale, even though the height is tiny
+		assertEquals(50, filter.subsamplingFor(8000, 100));
+		assertEquals(50, filter.subsamplingFor(100, 8000));
+		ImageThumbnail wide = new ImageThumbnail(400, 100, 0.85f);
+		assertEquals(10, wide.subsamplingFor(8000, 2000));
+	}
+
+	@Test
+	public void thumbnailOfLargeImageFitsTheBox() throws IOException {
+		byte[] jpeg = syntheticJpeg(6000, 4000);
+		BufferedImage thumbnail = filter.readThumbnail(new ByteArrayInputStream(jpeg));
+		assertNotNull(thumbnail);
+		assertEquals(80, thumbnail.getWidth());
+		assertEquals(53, thumbnail.getHeight());
+	}
+
+	@Test
+	public void smallImageIsNotEnlarged() throws IOException {
+		byte[] jpeg = syntheticJpeg(40, 30);
+		BufferedImage thumbnail = filter.readThumbnail(new ByteArrayInputStream(jpeg));
+		assertNotNull(thumbnail);
+		assertEquals(40, thumbnail.getWidth());
+		assertEquals(30, thumbnail.getHeight());
+	}
+
+	@Test
+	public void unknownFormatGivesNoThumbnail() throws IOException {
+		assertNull(filter.readThumbnail(new ByteArrayInputStream("not an image".getBytes("UTF-8"))));
+	}
+
+	@Test
+	public void largeImageBenchmark() throws IOException {
+		assumeTrue(Boolean.getBoolean("benchmark"));
+		int[][] sizes = {{4000, 3000}, {8000, 6000}, {12000, 9000}};
+		for (int[] size : sizes) {
+			byte[] jpeg = syntheticJpeg(size[0], size[1]);
+
+			System.gc();
+			long started = System.nanoTime();
+			BufferedImage thumbnail = filter.readThumbnail(new ByteArrayInputStream(jpeg));
+			long subsampledMillis = (System.nanoTime() - started) / 1000000;
+			assertNotNull(thumbnail);
+
+			System.gc();
+			started = System.nanoTime();
+			BufferedImage full = ImageIO.read(new ByteArrayInputStream(jpeg));
+			long fullMillis = (System.nanoTime() - started) / 1000000;
+			long fullBytes = (long) full.getWidth() * full.getHeight() * full.getColorModel().getPixelSize() / 8;
+
+			System.out.println(String.format("%dx%d (%d KB JPEG): subsampled decode %d ms at 1/%d; full decode %d ms, %d MB raster",
+					                                size[0], size[1], jpeg.length / 1024, subsampledMillis,
+					                                filter.subsamplingFor(size[0], size[1]), fullMillis, fullBytes / (1024 * 1024)));
+		}
+	}
+
+	/**
+	 * @return a greyscale JPEG with a diagonal gradient, which compresses well enough to keep test memory low.
+	 */
+	private static byte[] syntheticJpeg(int width, int height) throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		WritableRaster raster = image.getRaster();
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				row[x] = (x + y) & 0xFF;
+			}
+			raster.setPixels(0, y, width, 1, row);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpeg", bytes);
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,216 @@
+package nz.ac.lconz.irr.curate.task.linkcheck;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests for LinkCheckEngine against a stub HTTP server on the loopback interface. The path of each URL tells the stub
+ * what to answer: /status/[code]/delay/[millis]/... answers with the given status after the given delay. The throughput
+ * benchmark only runs with -Dbenchmark=true, since it depends on timing.
+ */
+public class LinkCheckEngineTest {
+	private static final Pattern STUB_PATH = Pattern.compile("/status/(\\d+)/delay/(\\d+)(/.*)?");
+
+	private HttpServer server;
+	private ExecutorService serverThreads;
+	private String baseUrl;
+	private final Queue<String> requestedPaths = new ConcurrentLinkedQueue<>();
+
+	@Before
+	public void startServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 64);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				requestedPaths.add(exchange.getRequestURI().getRawPath());
+				Matcher matcher = STUB_PATH.matcher(exchange.getRequestURI().getRawPath());
+				int status = 404;
+				if (matcher.matches()) {
+					status = Integer.parseInt(matcher.group(1));
+					try {
+						Thread.sleep(Long.parseLong(matcher.group(2)));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				if ("HEAD".equals(exchange.getRequestMethod())) {
+					exchange.sendResponseHeaders(status, -1);
+				} else {
+					byte[] body = "stub".getBytes("UTF-8");
+					exchange.sendResponseHeaders(status, body.length);
+					try (OutputStream out = exchange.getResponseBody()) {
+						out.write(body);
+					}
+				}
+				exchange.close();
+			}
+		});
+		serverThreads = Executors.newFixedThreadPool(32);
+		server.setExecutor(serverThreads);
+		server.start();
+		baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	@After
+	public void stopServer() throws InterruptedException {
+		server.stop(0);
+		serverThreads.shutdownNow();
+		serverThreads.awaitTermination(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void itemsAreHandedOutInSubmissionOrder() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		LinkCheckEngine engine = newEngine(listener, 8, 8, 100);
+
+		// the first items are the slowest, so their results come in last
+		engine.submit("item1", Arrays.asList(url(200, 300, "a"), url(404, 10, "b")), fields(2));
+		engine.submit("item2", Arrays.asList(url(410, 200, "c")), fields(1));
+		engine.submit("item3", Arrays.asList(url(200, 0, "d"), url(404, 0, "e"), url(200, 100, "f")), fields(3));
+		engine.submit("item4", new ArrayList<String>(), fields(0));
+		engine.submit("item5", Arrays.asList(url(200, 0, "g")), fields(1));
+		engine.finish();
+
+		assertEquals(Arrays.asList("item1", "item2", "item3", "item4", "item5"), listener.labels);
+		assertEquals(Arrays.asList(200, 404), listener.statuses.get(0));
+		assertEquals(Arrays.asList(410), listener.statuses.get(1));
+		assertEquals(Arrays.asList(200, 404, 200), listener.statuses.get(2));
+		assertEquals(new ArrayList<Integer>(), listener.statuses.get(3));
+		assertEquals(Arrays.asList(200), listener.statuses.get(4));
+	}
+
+	@Test
+	public void orderIsKeptWhenTooManyItemsAreOutstanding() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		// only two items may be outstanding, so submit has to wait for the oldest ones
+		LinkCheckEngine engine = newEngine(listener, 4, 4, 2);
+		List<String> expected = new ArrayList<>();
+		for (int i = 0; i < 12; i++) {
+			engine.submit("item" + i, Arrays.asList(url(200, (12 - i) * 10, "p" + i)), fields(1));
+			expected.add("item" + i);
+		}
+		engine.finish();
+		assertEquals(expected, listener.labels);
+	}
+
+	@Test
+	public void duplicateUrlsAreRequestedOnce() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		LinkCheckEngine engine = newEngine(listener, 4, 4, 100);
+		engine.submit("item1", Arrays.asList(url(200, 50, "same")), fields(1));
+		engine.submit("item2", Arrays.asList(url(200, 50, "same"), url(200, 50, "other")), fields(2));
+		engine.finish();
+
+		assertEquals(2, engine.getNumDistinctUrls());
+		assertEquals(2, requestedPaths.size());
+		assertEquals(Arrays.asList(200, 200), listener.statuses.get(1));
+	}
+
+	@Test
+	public void urlsAreRequestedAsFirstSubmitted() throws Exception {
+		RecordingListener listener = new RecordingListener();
+		LinkCheckEngine engine = newEngine(listener, 4, 4, 100);
+		// the same resource to the normaliser, but only the first spelling is requested
+		engine.submit("item1", Arrays.asList(" " + url(200, 0, "dir/") + "#section "), fields(1));
+		engine.submit("item2", Arrays.asList(url(200, 0, "dir")), fields(1));
+		engine.finish();
+
+		assertEquals(1, engine.getNumDistinctUrls());
+		assertEquals(Arrays.asList("/status/200/delay/0/dir/"), new ArrayList<>(requestedPaths));
+		assertEquals(Arrays.asList(200), listener.statuses.get(1));
+	}
+
+	@Test
+	public void throughputBenchmark() throws Exception {
+		assumeTrue(Boolean.getBoolean("benchmark"));
+		int numUrls = 40;
+		long delayMillis = 100;
+
+		RecordingListener listener = new RecordingListener();
+		LinkCheckEngine engine = newEngine(listener, 8, 8, 100);
+		long started = System.nanoTime();
+		for (int i = 0; i < numUrls; i++) {
+			engine.submit("item" + i, Arrays.asList(url(200, delayMillis, "t" + i)), fields(1));
+		}
+		engine.finish();
+		long elapsedMillis = (System.nanoTime() - started) / 1000000;
+
+		assertEquals(numUrls, listener.labels.size());
+		long sequentialMillis = numUrls * delayMillis;
+		System.out.println(String.format("%d URLs with %d ms server delay: %d ms with 8 in flight (%.1f URLs/s), %d ms sequentially",
+				                                numUrls, delayMillis, elapsedMillis, numUrls * 1000.0 / Math.max(1, elapsedMillis), sequentialMillis));
+		// eight in flight should take about an eighth of the time; allow plenty of slack for slow build machines
+		assertTrue("took " + elapsedMillis + " ms", elapsedMillis < sequentialMillis / 2);
+	}
+
+	private LinkCheckEngine newEngine(LinkCheckEngine.ResultListener listener, int concurrency, int hostConcurrency, int maxPendingItems) {
+		final HttpProber prober = new HttpProber("LinkCheckEngineTest", 5000, 5000, 5, new HostHealth(3), new DnsCache());
+		LinkCheckEngine.UrlChecker checker = new LinkCheckEngine.UrlChecker() {
+			@Override
+			public LinkResult check(String url) {
+				return prober.probe(url, null);
+			}
+
+			@Override
+			public LinkResult cached(String url) {
+				return null;
+			}
+		};
+		HostScheduler scheduler = new HostScheduler(checker, concurrency, hostConcurrency, 0, 1000, 0, 1000);
+		return new LinkCheckEngine(checker, listener, scheduler, maxPendingItems);
+	}
+
+	private String url(int status, long delayMillis, String name) {
+		return baseUrl + "/status/" + status + "/delay/" + delayMillis + "/" + name;
+	}
+
+	private static List<String> fields(int count) {
+		List<String> fields = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			fields.add("dc.identifier.uri");
+		}
+		return fields;
+	}
+
+	private static class RecordingListener implements LinkCheckEngine.ResultListener {
+		final List<String> labels = new ArrayList<>();
+		final List<List<Integer>> statuses = new ArrayList<>();
+
+		@Override
+		public void itemChecked(String itemLabel, List<String> urls, List<String> fields, List<LinkResult> results) {
+			labels.add(itemLabel);
+			List<Integer> itemStatuses = new ArrayList<>();
+			for (LinkResult result : results) {
+				itemStatuses.add(result.getStatus());
+			}
+			statuses.add(itemStatuses);
+		}
+
+		@Override
+		public void deferredChecked(String url, LinkResult result) {
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package nz.ac.lconz.irr.curate.task.thesisembargo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the in-memory int set of GroupClosure; loading from group2groupcache needs a database.
+ */
+public class GroupClosureTest {
+	@Test
+	public void emptyClosureContainsNothing() {
+		GroupClosure closure = new GroupClosure();
+		assertEquals(0, closure.size());
+		assertFalse(closure.contains(0));
+		assertFalse(closure.contains(1));
+	}
+
+	@Test
+	public void containsExactlyTheAddedGroups() {
+		GroupClosure closure = new GroupClosure();
+		closure.add(0);
+		closure.add(1);
+		closure.add(42);
+		assertEquals(3, closure.size());
+		assertTrue(closure.contains(0));
+		assertTrue(closure.contains(1));
+		assertTrue(closure.contains(42));
+		assertFalse(closure.contains(2));
+		assertFalse(closure.contains(41));
+	}
+
+	@Test
+	public void duplicatesAreCountedOnce() {
+		GroupClosure closure = new GroupClosure();
+		for (int i = 0; i < 5; i++) {
+			closure.add(7);
+			closure.add(8);
+		}
+		assertEquals(2, closure.size());
+		assertTrue(closure.contains(7));
+		assertTrue(closure.contains(8));
+	}
+
+	@Test
+	public void negativeIdsAreNeverMembers() {
+		GroupClosure closure = new GroupClosure();
+		closure.add(1);
+		// -1 marks empty slots, so it must not be reported as a member
+		assertFalse(closure.contains(-1));
+		assertFalse(closure.contains(-2));
+		assertFalse(closure.contains(Integer.MIN_VALUE));
+	}
+
+	@Test
+	public void membershipSurvivesResizing() {
+		GroupClosure closure = new GroupClosure();
+		// well past the initial 16 slots, with consecutive ids (the common case) and widely spread ones
+		for (int i = 0; i < 10000; i++) {
+			closure.add(i);
+			closure.add(Integer.MAX_VALUE - i * 7919);
+		}
+		assertEquals(20000, closure.size());
+		for (int i = 0; i < 10000; i++) {
+			assertTrue("id " + i, closure.contains(i));
+			assertTrue("id " + (Integer.MAX_VALUE - i * 7919), closure.contains(Integer.MAX_VALUE - i * 7919));
+		}
+		for (int i = 10000; i < 20000; i++) {
+			assertFalse("id " + i, closure.contains(i));
+		}
+		assertFalse(closure.contains(Integer.MAX_VALUE - 1));
+	}
+
+	@Test
+	public void addingDuringGrowthKeepsEarlierMembers() {
+		GroupClosure closure = new GroupClosure();
+		// check after every insertion, so that each resize is followed by a full membership test
+		for (int i = 0; i < 300; i++) {
+			closure.add(i * 16);
+			for (int j = 0; j <= i; j++) {
+				assertTrue("id " + j * 16 + " after adding " + (i + 1), closure.contains(j * 16));
+			}
+			assertEquals(i + 1, closure.size());
+		}
+	}
+}
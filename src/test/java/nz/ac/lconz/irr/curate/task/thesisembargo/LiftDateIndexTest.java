@@ -0,0 +1,145 @@
+package nz.ac.lconz.irr.curate.task.thesisembargo;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for the lookups and the file format of LiftDateIndex, on indexes built in memory.
+ */
+public class LiftDateIndexTest {
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	private File file;
+
+	@After
+	public void deleteFile() {
+		if (file != null) {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void findIncludesBothBoundaryDays() {
+		LiftDateIndex index = index(1, 10, 2, 11, 3, 12, 4, 13);
+		assertEquals(Arrays.asList(2, 3), index.find(at(11), at(12)));
+		// any time of the day counts as that day
+		assertEquals(Arrays.asList(2, 3), index.find(at(11, MILLIS_PER_DAY - 1), at(12, MILLIS_PER_DAY - 1)));
+		assertEquals(Arrays.asList(3), index.find(at(12), at(12)));
+		assertEquals(Collections.<Integer>emptyList(), index.find(at(14), at(20)));
+		assertEquals(Collections.<Integer>emptyList(), index.find(at(13), at(12)));
+	}
+
+	@Test
+	public void findWithoutBoundsIsOpenEnded() {
+		LiftDateIndex index = index(1, 10, 2, 11, 3, 12);
+		assertEquals(Arrays.asList(1, 2), index.find(null, at(11)));
+		assertEquals(Arrays.asList(2, 3), index.find(at(11), null));
+		assertEquals(Arrays.asList(1, 2, 3), index.find(null, null));
+	}
+
+	@Test
+	public void daysBefore1970AreNegative() {
+		assertEquals(0, LiftDateIndex.day(new Date(0)));
+		assertEquals(-1, LiftDateIndex.day(new Date(-1)));
+		assertEquals(-1, LiftDateIndex.day(new Date(-MILLIS_PER_DAY)));
+		assertEquals(-2, LiftDateIndex.day(new Date(-MILLIS_PER_DAY - 1)));
+
+		LiftDateIndex index = index(1, -400, 2, -1, 3, 0, 4, 1);
+		assertEquals(Arrays.asList(1, 2, 3, 4), index.find(null, null));
+		assertEquals(Arrays.asList(2, 3), index.find(new Date(-1), new Date(0)));
+		assertEquals(Arrays.asList(1, 2), index.find(null, at(-1)));
+	}
+
+	@Test
+	public void lowerBoundFindsTheFirstEntryOfADay() {
+		LiftDateIndex index = index(7, 5, 3, 5, 9, 5, 1, 6);
+		assertEquals(0, index.lowerBound(Long.MIN_VALUE));
+		assertEquals(0, index.lowerBound((long) 5 << 32));
+		assertEquals(3, index.lowerBound((long) 6 << 32));
+		assertEquals(4, index.lowerBound((long) 7 << 32));
+		assertEquals(4, index.lowerBound(Long.MAX_VALUE));
+		// items sharing a day are ordered by id
+		assertEquals(Arrays.asList(3, 7, 9), index.find(at(5), at(5)));
+		assertEquals(0, new LiftDateIndex().lowerBound(0));
+	}
+
+	@Test
+	public void unparseableLiftDatesAreOnlyFoundByFindAll() {
+		LiftDateIndex index = index(1, 10, 2, LiftDateIndex.UNPARSEABLE_DAY, 3, -10);
+		assertEquals(Arrays.asList(3, 1), index.find(null, null));
+		assertEquals(Arrays.asList(3), index.find(null, at(0)));
+		assertEquals(Arrays.asList(2, 3, 1), index.findAll());
+	}
+
+	@Test
+	public void applyReplacesAndRemovesEntries() {
+		LiftDateIndex index = index(1, 10, 2, 11, 3, 12);
+		Map<Integer, Integer> liftDays = new HashMap<>();
+		liftDays.put(1, 20);
+		liftDays.put(2, null);
+		liftDays.put(4, LiftDateIndex.UNPARSEABLE_DAY);
+		index.apply(liftDays);
+		assertEquals(Arrays.asList(3, 1), index.find(null, null));
+		assertEquals(Arrays.asList(4, 3, 1), index.findAll());
+		assertEquals(3, index.size());
+	}
+
+	@Test
+	public void indexIsReadBackForTheSameField() throws IOException {
+		file = File.createTempFile("liftdates", ".idx");
+		index(1, -3, 2, 4, 3, LiftDateIndex.UNPARSEABLE_DAY).write(file, "dc.date.embargo");
+
+		LiftDateIndex read = LiftDateIndex.read(file, "dc.date.embargo");
+		assertNotNull(read);
+		assertEquals(3, read.size());
+		assertEquals(Arrays.asList(3, 1, 2), read.findAll());
+		assertEquals(Arrays.asList(1, 2), read.find(null, null));
+	}
+
+	@Test
+	public void indexForAnotherFieldCountsAsNotBuilt() throws IOException {
+		file = File.createTempFile("liftdates", ".idx");
+		index(1, 10).write(file, "dc.date.embargo");
+		assertNull(LiftDateIndex.read(file, "local.embargo.lift"));
+	}
+
+	@Test
+	public void missingIndexCountsAsNotBuilt() throws IOException {
+		file = File.createTempFile("liftdates", ".idx");
+		file.delete();
+		assertNull(LiftDateIndex.read(file, "dc.date.embargo"));
+	}
+
+	/**
+	 * @return an index of the given pairs of item id and lift day.
+	 */
+	private static LiftDateIndex index(int... itemIdsAndDays) {
+		LiftDateIndex index = new LiftDateIndex();
+		for (int i = 0; i < itemIdsAndDays.length; i += 2) {
+			index.add(itemIdsAndDays[i], itemIdsAndDays[i + 1]);
+		}
+		index.sort();
+		return index;
+	}
+
+	private static Date at(int day) {
+		return at(day, 0);
+	}
+
+	private static Date at(int day, long millis) {
+		return new Date(day * MILLIS_PER_DAY + millis);
+	}
+}